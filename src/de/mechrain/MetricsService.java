@@ -0,0 +1,265 @@
+package de.mechrain;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import de.mechrain.device.Device;
+import de.mechrain.device.DeviceRegistry;
+import de.mechrain.device.LatestValueCache;
+import de.mechrain.log.Logging;
+import de.mechrain.protocol.MRP;
+import de.mechrain.util.ThreadSupport;
+
+/**
+ * Serves the latest value of each series of all devices at {@code /metrics} in the Prometheus text exposition format,
+ * so Prometheus or VictoriaMetrics can scrape the server at their own interval. Disabled unless
+ * {@link #PORT_PROPERTY} is set.
+ * <p>
+ * Each type of measurement is a gauge {@code mechrain_<type>} labeled with the device and, if present, the channel,
+ * e.g. {@code mechrain_temperature{device="3",channel="1"} 21.5 1700000000000}. The series are read from the
+ * {@link LatestValueCache} of each device. The line prefixes of the series are built once and the response is rendered
+ * into a reused buffer, so a scrape allocates little besides the formatting of non-integral values.
+ */
+public class MetricsService {
+
+	private static final Logger LOG = LogManager.getLogger(Logging.SERVER);
+
+	/** Port of the HTTP server, 0 disables the endpoint (default 0) */
+	public static final String PORT_PROPERTY = "mechrain.metrics.port";
+
+	private static final String PATH = "/metrics";
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	private static final MRP[] MRPS = MRP.values();
+	/* metric names and type lines indexed by MRP ordinal */
+	private static final String[] NAMES = new String[MRPS.length];
+	private static final byte[][] TYPE_LINES = new byte[MRPS.length][];
+	private static final byte[] NAN = "NaN".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] POSITIVE_INF = "+Inf".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] NEGATIVE_INF = "-Inf".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+	static {
+		for (final MRP mrp : MRPS) {
+			NAMES[mrp.ordinal()] = "mechrain_" + mrp.name().toLowerCase(Locale.ROOT);
+			TYPE_LINES[mrp.ordinal()] = ("# TYPE " + NAMES[mrp.ordinal()] + " gauge\n").getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	private final DeviceRegistry registry;
+	private final int port;
+	private HttpServer server;
+
+	/* guarded by renderLock */
+	private final ReentrantLock renderLock = new ReentrantLock();
+	private byte[] buffer = new byte[64 * 1024];
+	private int length;
+	private Map<Integer, Prefixes> prefixes = new HashMap<>();
+	private Map<Integer, Prefixes> previousPrefixes = new HashMap<>();
+	private final boolean[] present = new boolean[MRPS.length];
+	private final long[] timestamp = new long[1];
+	private final double[] value = new double[1];
+
+	public MetricsService(final DeviceRegistry registry) {
+		this.registry = registry;
+		this.port = Integer.getInteger(PORT_PROPERTY, 0);
+	}
+
+	/**
+	 * Starts the HTTP server if a port is configured.
+	 *
+	 * @throws IOException if the port cannot be bound
+	 */
+	public synchronized void start() throws IOException {
+		if (port <= 0 || server != null) {
+			return;
+		}
+		final ThreadPoolExecutor executor = ThreadSupport.newBoundedExecutor("Metrics", 1, 4);
+		/* back pressure on the HTTP dispatcher instead of dropping its connections */
+		executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext(PATH, this::handle);
+		server.setExecutor(executor);
+		server.start();
+		LOG.info(() -> "Serving metrics on port " + port + PATH);
+	}
+
+	private void handle(final HttpExchange exchange) throws IOException {
+		try (exchange) {
+			if ( ! "GET".equals(exchange.getRequestMethod())) {
+				exchange.getResponseHeaders().set("Allow", "GET");
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			renderLock.lock();
+			try {
+				final long start = System.nanoTime();
+				final int series = render();
+				LOG.debug(() -> "Rendered " + series + " series in " + (System.nanoTime() - start) / 1000 + "us");
+				exchange.sendResponseHeaders(200, length);
+				final OutputStream out = exchange.getResponseBody();
+				out.write(buffer, 0, length);
+			} finally {
+				renderLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Renders the latest values of all devices into the buffer, grouped by type as the format requires.
+	 *
+	 * @return the number of series rendered
+	 */
+	private int render() {
+		length = 0;
+		int series = 0;
+		final List<Device> devices = registry.getDevices();
+		synchronized (devices) {
+			Arrays.fill(present, false);
+			final Map<Integer, Prefixes> current = previousPrefixes;
+			for (final Device device : devices) {
+				final LatestValueCache cache = device.getLatestValues();
+				Prefixes devicePrefixes = prefixes.get(device.getId());
+				if (devicePrefixes == null || devicePrefixes.cache != cache) {
+					devicePrefixes = new Prefixes(device.getId(), cache);
+				}
+				current.put(device.getId(), devicePrefixes);
+				final int size = cache.size();
+				for (int slot = 0; slot < size; slot++) {
+					present[cache.getMrp(slot).ordinal()] = true;
+				}
+			}
+			/* prefixes of removed devices are dropped */
+			previousPrefixes = prefixes;
+			previousPrefixes.clear();
+			prefixes = current;
+			for (int ordinal = 0; ordinal < present.length; ordinal++) {
+				if ( ! present[ordinal]) {
+					continue;
+				}
+				write(TYPE_LINES[ordinal]);
+				for (final Device device : devices) {
+					final Prefixes devicePrefixes = prefixes.get(device.getId());
+					final LatestValueCache cache = devicePrefixes.cache;
+					final int size = cache.size();
+					for (int slot = 0; slot < size; slot++) {
+						if (cache.getMrp(slot).ordinal() != ordinal || cache.read(slot, timestamp, value) == 0) {
+							continue;
+						}
+						write(devicePrefixes.get(slot));
+						writeDouble(value[0]);
+						ensure(1);
+						buffer[length++] = ' ';
+						writeLong(timestamp[0]);
+						ensure(1);
+						buffer[length++] = '\n';
+						series++;
+					}
+				}
+			}
+		}
+		return series;
+	}
+
+	private void ensure(final int bytes) {
+		if (length + bytes > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + bytes));
+		}
+	}
+
+	private void write(final byte[] bytes) {
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, buffer, length, bytes.length);
+		length += bytes.length;
+	}
+
+	private void writeLong(final long l) {
+		/* at most 19 digits and the sign */
+		ensure(20);
+		if (l == Long.MIN_VALUE) {
+			write(MIN_LONG);
+			return;
+		}
+		long remaining = l;
+		if (remaining < 0) {
+			buffer[length++] = '-';
+			remaining = -remaining;
+		}
+		final int start = length;
+		do {
+			buffer[length++] = (byte) ('0' + remaining % 10);
+			remaining /= 10;
+		} while (remaining > 0);
+		/* the digits were written in reverse */
+		for (int i = start, j = length - 1; i < j; i++, j--) {
+			final byte digit = buffer[i];
+			buffer[i] = buffer[j];
+			buffer[j] = digit;
+		}
+	}
+
+	private void writeDouble(final double d) {
+		if (d == (long) d && Math.abs(d) < 1e15) {
+			/* integral values, e.g. counts and raw readings, without formatting a string */
+			writeLong((long) d);
+		} else if (Double.isNaN(d)) {
+			write(NAN);
+		} else if (Double.isInfinite(d)) {
+			write(d > 0 ? POSITIVE_INF : NEGATIVE_INF);
+		} else {
+			final String s = Double.toString(d);
+			ensure(s.length());
+			for (int i = 0; i < s.length(); i++) {
+				buffer[length++] = (byte) s.charAt(i);
+			}
+		}
+	}
+
+	/**
+	 * The line prefixes of the series of one device by slot, up to the value. Slots of a cache never change, so a
+	 * prefix is built once per series.
+	 */
+	private static final class Prefixes {
+
+		private final String deviceLabel;
+		private final LatestValueCache cache;
+		private byte[][] lines = new byte[8][];
+
+		private Prefixes(final int deviceId, final LatestValueCache cache) {
+			this.deviceLabel = "{device=\"" + deviceId + '"';
+			this.cache = cache;
+		}
+
+		private byte[] get(final int slot) {
+			if (slot >= lines.length) {
+				lines = Arrays.copyOf(lines, Math.max(lines.length * 2, slot + 1));
+			}
+			byte[] line = lines[slot];
+			if (line == null) {
+				final int channel = cache.getChannel(slot);
+				final StringBuilder sb = new StringBuilder(NAMES[cache.getMrp(slot).ordinal()]).append(deviceLabel);
+				if (channel >= 0) {
+					sb.append(",channel=\"").append(channel).append('"');
+				}
+				line = sb.append("} ").toString().getBytes(StandardCharsets.UTF_8);
+				lines[slot] = line;
+			}
+			return line;
+		}
+	}
+}
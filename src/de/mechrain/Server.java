@@ -1,9 +1,14 @@
 package de.mechrain;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -12,11 +17,17 @@ import org.apache.logging.log4j.core.LoggerContext;
 import de.mechrain.cmdline.CliService;
 import de.mechrain.device.Device;
 import de.mechrain.device.DeviceRegistry;
+import de.mechrain.device.StateSnapshot;
+import de.mechrain.device.connection.BlockingDeviceConnection;
+import de.mechrain.device.connection.IoMode;
+import de.mechrain.device.connection.NioDeviceConnection;
+import de.mechrain.device.connection.NioEventLoopGroup;
 import de.mechrain.log.CliAppender;
 import de.mechrain.log.Logging;
 import de.mechrain.protocol.MRP;
 import de.mechrain.util.ServerConfig;
 import de.mechrain.util.ServerConfig.CONFIG_TYPE;
+import de.mechrain.util.ThreadSupport;
 import de.mechrain.util.Util;
 
 /**
@@ -28,14 +39,27 @@ public class Server {
 
 	private static final int UDP_PORT = 5000;
 	
+	/** Time in ms a new connection has to complete the handshake (default 5000) */
+	public static final String HANDSHAKE_TIMEOUT_PROPERTY = "mechrain.handshake.timeoutMs";
+	/** Number of threads performing handshakes (default 4) */
+	public static final String HANDSHAKE_THREADS_PROPERTY = "mechrain.handshake.threads";
+	/** Maximum number of accepted connections waiting for a handshake thread (default 64) */
+	public static final String HANDSHAKE_QUEUE_PROPERTY = "mechrain.handshake.queue";
+	
 	private final ServerConfig config;
 	private final DeviceRegistry registry;
+	private final StateSnapshot snapshot;
 	
 	private final boolean testMode;
+	private final int handshakeTimeout = Integer.getInteger(HANDSHAKE_TIMEOUT_PROPERTY, 5000);
 	
 	private Server(final boolean testMode) {
 		this.config = new ServerConfig();
 		this.registry = config.maybeRestore(CONFIG_TYPE.DEVICE_REGISTRY, () -> new DeviceRegistry());
+		this.registry.bindSharedSinks();
+		/* before any device connects, so restored tasks keep their phase */
+		this.snapshot = new StateSnapshot(registry);
+		this.snapshot.load();
 		this.testMode = testMode;
 	}
 
@@ -48,9 +72,11 @@ public class Server {
 	}
 	
 	private void run() throws IOException {
-		try (final ServerSocket deviceSocket = new ServerSocket(0);
+		final IoMode ioMode = IoMode.configured();
+		try (final ServerSocketChannel deviceChannel = ServerSocketChannel.open();
 				final ServerSocket cliSocket = new ServerSocket(0)) {
-			final int devicePort = deviceSocket.getLocalPort();
+			deviceChannel.bind(null);
+			final int devicePort = deviceChannel.socket().getLocalPort();
 			final int cliPort = cliSocket.getLocalPort();
 
 			final Thread udpThread = new Thread(new UdpDiscoveryService(UDP_PORT, devicePort, cliPort, testMode));
@@ -67,51 +93,145 @@ public class Server {
 			cliThread.setName("CLI-Service");
 			cliThread.setDaemon(true);
 			cliThread.start();
+			
+			snapshot.start();
+			new MetricsService(registry).start();
+			
+			final NioEventLoopGroup eventLoopGroup = ioMode == IoMode.NIO ? new NioEventLoopGroup() : null;
+			final ThreadPoolExecutor handshakeExecutor = ThreadSupport.newBoundedExecutor("Handshake",
+					Integer.getInteger(HANDSHAKE_THREADS_PROPERTY, 4), Integer.getInteger(HANDSHAKE_QUEUE_PROPERTY, 64));
+			final ThreadPoolExecutor sinkExecutor = ThreadSupport.newBoundedExecutor("Sink-Connect", 2, 256);
+			/* back pressure instead of losing sink connects */
+			sinkExecutor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
 					
-			LOG.info("Listening for Connections");
+			LOG.info(() -> "Listening for Connections (" + ioMode + ")");
 			while (true) {
 				try {
-					final Socket client = deviceSocket.accept();
+					final SocketChannel channel = deviceChannel.accept();
 					LOG.info("Got connection");
-					final InputStream is = client.getInputStream();
-					final OutputStream os = client.getOutputStream();
-
-					final byte[] handshakeBytes = new byte[3];
-					is.read(handshakeBytes);
-					if (handshakeBytes[0] != MRP.DEVICE_ID.byteVal || handshakeBytes[1] != (byte) 0x00 || handshakeBytes[2] != (byte) 0x01) {
-						LOG.error("Invalid handshake received: " + Util.BYTES2HEX(handshakeBytes));
-						client.close();
-						continue;
-					} else {
-						LOG.debug(() -> "Handshake: " + Util.BYTES2HEX(handshakeBytes));
+					try {
+						handshakeExecutor.execute(() -> onboard(channel, eventLoopGroup, sinkExecutor));
+					} catch (final RejectedExecutionException e) {
+						LOG.warn(() -> "Too many pending handshakes, closing " + channel);
+						channel.close();
 					}
-					
-					final int deviceId = is.read() & 0xFF;
-					final Device device = getRegistry().getOrAddDevice(deviceId);
-					
-					LOG.debug(() -> "Connected to device " + device);
-					
-					/* if device loses connection and shortly after connects again it like still shows as connected */
-					if (device.isConnected()) {
-						device.disconnect();
-					}
-					device.connect(client, is, os);
-					/* 45s ~ 900 ml bei 5V 	 -> 20ml/s */
-					/* 45s ~ 600 ml bei 3.3V -> 13ml/s */
 				} catch (IOException e) {
-					e.printStackTrace();
 					LOG.error(() -> "Error", e);
 				};
 			}
 		}
 	}
+	
+	/**
+	 * Performs the handshake of a freshly accepted connection and connects the device, runs on the handshake executor.
+	 *
+	 * @param channel        the accepted channel
+	 * @param eventLoopGroup the event loops in NIO mode, null in blocking mode
+	 * @param sinkExecutor   the executor connecting the sinks of the device
+	 */
+	private void onboard(final SocketChannel channel, final NioEventLoopGroup eventLoopGroup, final Executor sinkExecutor) {
+		try {
+			final Socket client = channel.socket();
+			final InputStream is = client.getInputStream();
+
+			final Device device = handshake(client, is);
+			if (device == null) {
+				return;
+			}
+			
+			/* reconnects of the same device are handled one after the other */
+			synchronized (device) {
+				/* if device loses connection and shortly after connects again it like still shows as connected */
+				if (device.isConnected()) {
+					device.disconnect();
+				}
+				if (eventLoopGroup != null) {
+					device.connect(new NioDeviceConnection(channel, eventLoopGroup), sinkExecutor);
+				} else {
+					device.connect(new BlockingDeviceConnection(client, is, client.getOutputStream()), sinkExecutor);
+				}
+			}
+			/* 45s ~ 900 ml bei 5V 	 -> 20ml/s */
+			/* 45s ~ 600 ml bei 3.3V -> 13ml/s */
+		} catch (final SocketTimeoutException e) {
+			LOG.warn(() -> "Handshake not completed within " + handshakeTimeout + "ms, closing " + channel);
+			close(channel);
+		} catch (final IOException e) {
+			LOG.error(() -> "Error", e);
+			close(channel);
+		}
+	}
+
+	private static void close(final SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (final IOException e) {
+			LOG.error("I/O Error closing channel", e);
+		}
+	}
+	
+	/**
+	 * Reads the handshake and device ID of a freshly accepted connection. The whole handshake must arrive within
+	 * {@value #HANDSHAKE_TIMEOUT_PROPERTY} ms.
+	 *
+	 * @param client the accepted socket
+	 * @param is     the input stream of the socket
+	 * @return the device the connection belongs to or null if the handshake was invalid and the socket was closed
+	 * @throws SocketTimeoutException if the handshake deadline expired
+	 * @throws IOException            if an I/O error occurs
+	 */
+	private Device handshake(final Socket client, final InputStream is) throws IOException {
+		/* handshake (3 bytes) and device ID */
+		final byte[] handshakeBytes = new byte[4];
+		final long deadline = System.currentTimeMillis() + handshakeTimeout;
+		int read = 0;
+		while (read < handshakeBytes.length) {
+			final long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				throw new SocketTimeoutException("Handshake deadline expired");
+			}
+			client.setSoTimeout((int) remaining);
+			final int n = is.read(handshakeBytes, read, handshakeBytes.length - read);
+			if (n == -1) {
+				break;
+			}
+			read += n;
+		}
+		client.setSoTimeout(0);
+		if (read < 3 || handshakeBytes[0] != MRP.DEVICE_ID.byteVal || handshakeBytes[1] != (byte) 0x00 || handshakeBytes[2] != (byte) 0x01) {
+			LOG.error("Invalid handshake received: " + Util.BYTES2HEX(handshakeBytes, Math.min(read, 3)));
+			client.close();
+			return null;
+		} else {
+			LOG.debug(() -> "Handshake: " + Util.BYTES2HEX(handshakeBytes, 3));
+		}
+		if (read < handshakeBytes.length) {
+			LOG.error("No device ID received");
+			client.close();
+			return null;
+		}
+		
+		final int deviceId = handshakeBytes[3] & 0xFF;
+		final Device device = getRegistry().getOrAddDevice(deviceId);
+		
+		LOG.debug(() -> "Connected to device " + device);
+		return device;
+	}
 
 	public static void main(final String[] args) throws IOException, InterruptedException {
 		boolean testMode = false;
-		if (args.length > 0 && args[0].equalsIgnoreCase("--test")) {
-			System.setProperty("mechrain.testmode", "true");
-			testMode = true;
-			LOG.info("!!!! Starting server in TEST mode !!!!");
+		for (final String arg : args) {
+			if (arg.equalsIgnoreCase("--test")) {
+				System.setProperty("mechrain.testmode", "true");
+				testMode = true;
+				LOG.info("!!!! Starting server in TEST mode !!!!");
+			} else if (arg.startsWith("--") && arg.indexOf('=') > 2) {
+				/* --io=nio is made available as system property mechrain.io */
+				final int idx = arg.indexOf('=');
+				System.setProperty("mechrain." + arg.substring(2, idx), arg.substring(idx + 1));
+			} else {
+				LOG.warn(() -> "Ignoring unknown argument " + arg);
+			}
 		}
 		final Server server = new Server(testMode);
 		server.run();
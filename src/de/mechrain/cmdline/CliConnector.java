@@ -24,7 +24,10 @@ import de.mechrain.cmdline.beans.DeviceListRequest;
 import de.mechrain.cmdline.beans.DeviceListResponse;
 import de.mechrain.cmdline.beans.DeviceResetRequest;
 import de.mechrain.cmdline.beans.EndConfigureDeviceRequest;
+import de.mechrain.cmdline.beans.HistoryRequest;
 import de.mechrain.cmdline.beans.ICliBean;
+import de.mechrain.cmdline.beans.LatestValueRequest;
+import de.mechrain.cmdline.beans.LatestValueResponse;
 import de.mechrain.cmdline.beans.RemoveDeviceRequest;
 import de.mechrain.cmdline.beans.RemoveSinkRequest;
 import de.mechrain.cmdline.beans.RemoveTaskRequest;
@@ -38,7 +41,14 @@ import de.mechrain.device.Device;
 import de.mechrain.device.DeviceRegistry;
 import de.mechrain.device.sink.IDataSink;
 import de.mechrain.device.sink.DummySink;
+import de.mechrain.device.sink.AbstractDataSink;
+import de.mechrain.device.sink.AbstractFilteredDataSink;
+import de.mechrain.device.sink.Aggregation;
+import de.mechrain.device.sink.Deadband;
 import de.mechrain.device.sink.InfluxSink;
+import de.mechrain.device.sink.LocalSink;
+import de.mechrain.device.sink.SharedSink;
+import de.mechrain.device.sink.SinkDispatcher;
 import de.mechrain.device.sink.VictoriaMetricsSink;
 import de.mechrain.device.task.ChanneledMeasurementTask;
 import de.mechrain.device.task.MeasurementTask;
@@ -53,6 +63,9 @@ import de.mechrain.protocol.LedMode1DataUnit.LedMode1Builder;
 import de.mechrain.protocol.LedAllRgbDataUnit;
 import de.mechrain.protocol.LedAllRgbDataUnit.LedAllRgbBuilder;
 import de.mechrain.protocol.MRP;
+import de.mechrain.protocol.MeasurementRecord.Aggregate;
+import de.mechrain.storage.TimeSeriesStore;
+import de.mechrain.util.ThreadSupport;
 import de.mechrain.util.Util;
 import de.mechrain.util.Util.ParsedTime;
 
@@ -64,6 +77,7 @@ public class CliConnector implements LogEventSink {
 	private final DataOutputStream dos;
 	private final CliAppender appender;
 	private final CliThread cliThread;
+	private final Thread thread;
 	private boolean removed = false;
 
 	public CliConnector(final Socket socket, final CliAppender appender, final Server server) throws IOException {
@@ -72,8 +86,7 @@ public class CliConnector implements LogEventSink {
 
 		this.dos = new DataOutputStream(socket.getOutputStream());
 		this.cliThread = new CliThread(server, socket.getInputStream(), dos);
-		cliThread.setName("CLI-Thread");
-		cliThread.start();
+		this.thread = ThreadSupport.start("CLI-Thread", cliThread);
 	}
 
 	@Override
@@ -93,17 +106,17 @@ public class CliConnector implements LogEventSink {
 				appender.removeSink(this);
 				removed = true;
 				cliThread.end();
-				cliThread.interrupt();
+				thread.interrupt();
 			}
 		}
 	}
 
-	private static class CliThread extends Thread {
+	private static class CliThread implements Runnable {
 
 		private final Server server;
 		private final DataOutputStream dos;
 		private final DataInputStream dis;
-		private boolean run = true;
+		private volatile boolean run = true;
 
 		private CliThread(final Server server, final InputStream is, final DataOutputStream dos) throws IOException {
 			this.server = server;
@@ -143,6 +156,16 @@ public class CliConnector implements LogEventSink {
 								MechRainFory.serializeAndSend(SwitchToNonInteractiveRequest.INSTANCE, dos);
 							}
 						}
+					} else if (object instanceof LatestValueRequest latestValueRequest) {
+						final Optional<Device> device = server.getRegistry().getDevice(latestValueRequest.getDeviceId());
+						if (device.isEmpty()) {
+							LOG.error(() -> "Device with id " + latestValueRequest.getDeviceId() + " not found");
+							MechRainFory.serializeAndSend(new LatestValueResponse(), dos);
+						} else {
+							MechRainFory.serializeAndSend(new LatestValueResponse(device.get().getLatestValues(), latestValueRequest), dos);
+						}
+					} else if (object instanceof HistoryRequest historyRequest) {
+						queryHistory(historyRequest);
 					} else {
 						LOG.warn("Unhandled request " + object.getClass().getSimpleName());
 					}
@@ -160,6 +183,47 @@ public class CliConnector implements LogEventSink {
 			}
 		}
 
+		/**
+		 * Streams the values of a device from the local sink storing them, always ending with a last response.
+		 */
+		private void queryHistory(final HistoryRequest request) throws IOException {
+			final HistoryQuery query = new HistoryQuery(dos);
+			final LocalSink sink = findLocalSink(request);
+			if (sink != null) {
+				try {
+					final TimeSeriesStore store = sink.acquireStore();
+					try {
+						query.run(store, request);
+					} finally {
+						store.release();
+					}
+				} catch (final IOException e) {
+					LOG.error(() -> "Could not open local store of device " + request.getDeviceId(), e);
+				}
+			}
+			final long sent = query.finish();
+			LOG.debug(() -> "Sent " + sent + " values of device " + request.getDeviceId() + ' ' + request.getMrp());
+		}
+
+		private LocalSink findLocalSink(final HistoryRequest request) {
+			final DeviceRegistry registry = server.getRegistry();
+			final Optional<Device> device = registry.getDevice(request.getDeviceId());
+			if (device.isEmpty()) {
+				LOG.error(() -> "Device with id " + request.getDeviceId() + " not found");
+				return null;
+			}
+			for (final IDataSink sink : device.get().getSinks()) {
+				final IDataSink target = sink instanceof SharedSink shared
+						? registry.getSharedSink(shared.getSharedId()).orElse(null)
+						: sink;
+				if (target instanceof LocalSink localSink && localSink.accepts(request.getMrp())) {
+					return localSink;
+				}
+			}
+			LOG.error(() -> "Device " + request.getDeviceId() + " has no local sink storing " + request.getMrp());
+			return null;
+		}
+
 		private void configureDevice(final Device device) throws IOException {
 			MechRainFory.serializeAndSend(new DeviceConfigResponse(new DeviceListResponse.DeviceData(device)), dos);
 			boolean isConfiguring = true;
@@ -175,23 +239,20 @@ public class CliConnector implements LogEventSink {
 				} else if (object instanceof SetIdRequest setIdRequest) {
 					final int oldId = device.getId();
 					LOG.debug(() -> "Changing id of device from " + oldId + " to " + setIdRequest.newId);
+					final DeviceSettingChangeDataUnit du;
 					try {
-						final DeviceSettingChangeDataUnit du = new DeviceSettingChangeBuilder()
+						du = new DeviceSettingChangeBuilder()
 								.settingId(MRP.DEVICE_ID)
 								.settingValue(setIdRequest.newId)
 								.build();
-
-						device.queueRequest(du);
 					} catch (final DataUnitValidationException e) {
 						LOG.error(() -> "Error validating device id change request " + e);
 						return;
 					}
-					final DeviceRegistry registry = server.getRegistry();
-					//TODO: add single method for this
-					registry.removeDevice(oldId);
-					device.setId(setIdRequest.newId);
-					registry.addDevice(device);
-					server.saveConfig();
+					if (server.getRegistry().changeDeviceId(device, setIdRequest.newId)) {
+						device.queueRequest(du);
+						server.saveConfig();
+					}
 				} else if (object instanceof SetDescriptionRequest setDescriptionRequest) {
 					device.setDescription(setDescriptionRequest.description);
 					server.saveConfig();
@@ -325,96 +386,59 @@ public class CliConnector implements LogEventSink {
 		private void addSink(final Device device) throws IOException {
 			try {
 				final IDataSink sink;
-				final String type = ask("Sink type (Influx|VM|Dummy)");
-				if ("influx".equalsIgnoreCase(type)) {
-					final InfluxSink.Builder influxSinkBuilder = new InfluxSink.Builder();
-					final String host = ask("Host (default 127.0.0.1)");
-					influxSinkBuilder.host(host == null || host.isEmpty() ? "127.0.0.1" : host);
-					final String port = ask("Port (default 8086)");
-					influxSinkBuilder.port(Integer.parseInt(port == null || port.isEmpty() ? "8086" : port));
-					final String user = ask("User");
-					if (user == null || user.isEmpty()) {
-						LOG.error(() -> "User required");
-						return;
-					}
-					influxSinkBuilder.user(user);
-
-					final String password = ask("Password");
-					if (password == null || password.isEmpty()) {
-						LOG.error(() -> "Password required");
-						return;
-					}
-					influxSinkBuilder.password(password);
-
-					final String dbName = ask("Database Name");
-					if (dbName == null || dbName.isEmpty()) {
-						LOG.error(() -> "Database name required");
-						return;
-					}
-					influxSinkBuilder.dbName(dbName);
-
-					final String measurementName = ask("Measurement Name");
-					if (measurementName == null || measurementName.isEmpty()) {
-						LOG.error(() -> "Measurement name required");
-						return;
-					}
-					influxSinkBuilder.measurementName(measurementName);
+				final String type = ask("Sink type (Influx|VM|Local|Shared|Dummy)");
+				if ("dummy".equalsIgnoreCase(type)) {
+					sink = new DummySink();
+				} else if ("shared".equalsIgnoreCase(type)) {
+					sink = addSharedSink(device);
+				} else {
+					sink = buildSink(type);
+				}
+				if (sink == null) {
+					return;
+				}
 
-					final String filters = ask("Filters (MRP values like TEMPERATURE)");
-					if (filters == null || filters.isEmpty()) {
-						LOG.error(() -> "At least one filter required");
-						return;
-					}
-					final String[] parts = filters.split(",");
-					final List<MRP> mrps = new ArrayList<>();
-					for (final String part : parts) {
+				if (sink instanceof AbstractFilteredDataSink || sink instanceof SharedSink) {
+					final String backpressure = ask("Backpressure (BLOCK|DROP|SPILL, default "
+							+ System.getProperty(SinkDispatcher.BACKPRESSURE_PROPERTY, SinkDispatcher.Backpressure.DROP.name()) + ")");
+					if (backpressure != null && ! backpressure.isEmpty()) {
 						try {
-							mrps.add(MRP.valueOf(part));
+							((AbstractDataSink) sink).setBackpressure(SinkDispatcher.Backpressure.valueOf(backpressure.toUpperCase()));
 						} catch (final IllegalArgumentException e) {
-							LOG.error(() -> "Unkown MRP type " + part, e);
+							LOG.error(() -> "Unknown backpressure " + backpressure);
 							return;
 						}
 					}
-					influxSinkBuilder.filter(mrps);
-					sink = influxSinkBuilder.build();
-				} else if ("vm".equalsIgnoreCase(type)) {
-					final VictoriaMetricsSink.Builder vmSinkBuilder = new VictoriaMetricsSink.Builder();
-					final String host = ask("Host (default 127.0.0.1)");
-					vmSinkBuilder.host(host == null || host.isEmpty() ? "127.0.0.1" : host);
-
-					final String port = ask("Port (default 8428)");
-					vmSinkBuilder.port(Integer.parseInt(port == null || port.isEmpty() ? "8428" : port));
-
-					final String filters = ask("Filters (MRP values like TEMPERATURE)");
-					if (filters == null || filters.isEmpty()) {
-						LOG.error(() -> "At least one filter required");
-						return;
-					}
-					final String[] parts = filters.split(",");
-					final List<MRP> mrps = new ArrayList<>();
-					for (final String part : parts) {
+					final String deadband = ask("Deadband, absolute like 0.5 or relative like 2% (default none)");
+					if (deadband != null && ! deadband.isEmpty()) {
+						final String maxSilence = ask("Deadband max silence in seconds (default none)");
 						try {
-							mrps.add(MRP.valueOf(part));
+							final boolean relative = deadband.endsWith("%");
+							final double threshold = Double.parseDouble(relative ? deadband.substring(0, deadband.length() - 1) : deadband);
+							final long maxSilenceMillis = maxSilence == null || maxSilence.isEmpty() ? 0 : Long.parseLong(maxSilence) * 1000;
+							((AbstractDataSink) sink).setDeadband(new Deadband(relative ? 0 : threshold, relative ? threshold / 100 : 0,
+									maxSilenceMillis));
 						} catch (final IllegalArgumentException e) {
-							LOG.error(() -> "Unkown MRP type " + part, e);
+							LOG.error(() -> "Invalid deadband " + deadband + ' ' + maxSilence);
 							return;
 						}
 					}
-					vmSinkBuilder.filter(mrps);
-					
-					final String measurementName = ask("Measurement name");
-					if (measurementName == null || measurementName.isEmpty()) {
-						LOG.error(() -> "Measurement name required");
-						return;
+					final String window = ask("Aggregation window in seconds (default none)");
+					if (window != null && ! window.isEmpty()) {
+						final String aggregates = ask("Aggregates (MIN,MAX,MEAN,LAST,COUNT, default all)");
+						final List<Aggregate> selected = new ArrayList<>();
+						try {
+							if (aggregates != null && ! aggregates.isEmpty()) {
+								for (final String part : aggregates.split(",")) {
+									selected.add(Aggregate.valueOf(part.trim().toUpperCase()));
+								}
+							}
+							((AbstractDataSink) sink).setAggregation(new Aggregation(Long.parseLong(window) * 1000, selected));
+						} catch (final IllegalArgumentException e) {
+							LOG.error(() -> "Invalid aggregation " + window + ' ' + aggregates);
+							return;
+						}
 					}
-					vmSinkBuilder.measurementName(measurementName);
-					
-					sink = vmSinkBuilder.build();
-				} else if ("dummy".equalsIgnoreCase(type)) {
-					sink = new DummySink();
-				} else {
-					LOG.error(() -> "Unkown sink type " + type);
-					return;
 				}
 
 				/* determine id and assign lowest unused value starting from 0 */
@@ -429,6 +453,186 @@ public class CliConnector implements LogEventSink {
 			}
 		}
 		
+		/**
+		 * Asks for the settings of an influx, VictoriaMetrics or local sink.
+		 * 
+		 * @param type the sink type entered by the user
+		 * @return the sink or null if the input was invalid
+		 */
+		private IDataSink buildSink(final String type) throws IOException {
+			if ("influx".equalsIgnoreCase(type)) {
+				final InfluxSink.Builder influxSinkBuilder = new InfluxSink.Builder();
+				final String host = ask("Host (default 127.0.0.1)");
+				influxSinkBuilder.host(host == null || host.isEmpty() ? "127.0.0.1" : host);
+				final String port = ask("Port (default 8086)");
+				influxSinkBuilder.port(Integer.parseInt(port == null || port.isEmpty() ? "8086" : port));
+				final String user = ask("User");
+				if (user == null || user.isEmpty()) {
+					LOG.error(() -> "User required");
+					return null;
+				}
+				influxSinkBuilder.user(user);
+
+				final String password = ask("Password");
+				if (password == null || password.isEmpty()) {
+					LOG.error(() -> "Password required");
+					return null;
+				}
+				influxSinkBuilder.password(password);
+
+				final String dbName = ask("Database Name");
+				if (dbName == null || dbName.isEmpty()) {
+					LOG.error(() -> "Database name required");
+					return null;
+				}
+				influxSinkBuilder.dbName(dbName);
+
+				final String measurementName = ask("Measurement Name");
+				if (measurementName == null || measurementName.isEmpty()) {
+					LOG.error(() -> "Measurement name required");
+					return null;
+				}
+				influxSinkBuilder.measurementName(measurementName);
+
+				final String batchSize = ask("Batch size (default " + InfluxSink.DEFAULT_BATCH_SIZE + ")");
+				if (batchSize != null && ! batchSize.isEmpty()) {
+					influxSinkBuilder.batchSize(Integer.parseInt(batchSize));
+				}
+				final String flushInterval = ask("Flush interval ms (default " + InfluxSink.DEFAULT_FLUSH_INTERVAL_MS + ")");
+				if (flushInterval != null && ! flushInterval.isEmpty()) {
+					influxSinkBuilder.flushIntervalMs(Integer.parseInt(flushInterval));
+				}
+				final String queueCapacity = ask("Queue capacity (default " + InfluxSink.DEFAULT_QUEUE_CAPACITY + ")");
+				if (queueCapacity != null && ! queueCapacity.isEmpty()) {
+					influxSinkBuilder.queueCapacity(Integer.parseInt(queueCapacity));
+				}
+
+				final String filters = ask("Filters (MRP values like TEMPERATURE)");
+				if (filters == null || filters.isEmpty()) {
+					LOG.error(() -> "At least one filter required");
+					return null;
+				}
+				final String[] parts = filters.split(",");
+				final List<MRP> mrps = new ArrayList<>();
+				for (final String part : parts) {
+					try {
+						mrps.add(MRP.valueOf(part));
+					} catch (final IllegalArgumentException e) {
+						LOG.error(() -> "Unkown MRP type " + part, e);
+						return null;
+					}
+				}
+				influxSinkBuilder.filter(mrps);
+				return influxSinkBuilder.build();
+			} else if ("vm".equalsIgnoreCase(type)) {
+				final VictoriaMetricsSink.Builder vmSinkBuilder = new VictoriaMetricsSink.Builder();
+				final String host = ask("Host (default 127.0.0.1)");
+				vmSinkBuilder.host(host == null || host.isEmpty() ? "127.0.0.1" : host);
+
+				final String port = ask("Port (default 8428)");
+				vmSinkBuilder.port(Integer.parseInt(port == null || port.isEmpty() ? "8428" : port));
+
+				final String filters = ask("Filters (MRP values like TEMPERATURE)");
+				if (filters == null || filters.isEmpty()) {
+					LOG.error(() -> "At least one filter required");
+					return null;
+				}
+				final String[] parts = filters.split(",");
+				final List<MRP> mrps = new ArrayList<>();
+				for (final String part : parts) {
+					try {
+						mrps.add(MRP.valueOf(part));
+					} catch (final IllegalArgumentException e) {
+						LOG.error(() -> "Unkown MRP type " + part, e);
+						return null;
+					}
+				}
+				vmSinkBuilder.filter(mrps);
+				
+				final String measurementName = ask("Measurement name");
+				if (measurementName == null || measurementName.isEmpty()) {
+					LOG.error(() -> "Measurement name required");
+					return null;
+				}
+				vmSinkBuilder.measurementName(measurementName);
+				
+				return vmSinkBuilder.build();
+			} else if ("local".equalsIgnoreCase(type)) {
+				final LocalSink.Builder localSinkBuilder = new LocalSink.Builder();
+				final String directory = ask("Directory (default data)");
+				if (directory != null && ! directory.isEmpty()) {
+					localSinkBuilder.directory(directory);
+				}
+				final String partitionHours = ask("Hours per segment file (default 24)");
+				if (partitionHours != null && ! partitionHours.isEmpty()) {
+					localSinkBuilder.partitionHours(Integer.parseInt(partitionHours));
+				}
+				final String retentionDays = ask("Retention days (default 30)");
+				if (retentionDays != null && ! retentionDays.isEmpty()) {
+					localSinkBuilder.retentionDays(Integer.parseInt(retentionDays));
+				}
+
+				final String filters = ask("Filters (MRP values like TEMPERATURE, default all)");
+				if (filters != null && ! filters.isEmpty()) {
+					final List<MRP> mrps = new ArrayList<>();
+					for (final String part : filters.split(",")) {
+						try {
+							mrps.add(MRP.valueOf(part));
+						} catch (final IllegalArgumentException e) {
+							LOG.error(() -> "Unkown MRP type " + part, e);
+							return null;
+						}
+					}
+					localSinkBuilder.filter(mrps);
+				}
+				try {
+					return localSinkBuilder.build();
+				} catch (final IllegalStateException e) {
+					LOG.error(() -> e.getMessage());
+					return null;
+				}
+			}
+			LOG.error(() -> "Unkown sink type " + type);
+			return null;
+		}
+		
+		/**
+		 * Creates a reference to a shared sink, the shared sink is defined first if requested.
+		 * 
+		 * @param device the device the reference is added to
+		 * @return the reference or null if the input was invalid
+		 */
+		private SharedSink addSharedSink(final Device device) throws IOException {
+			final DeviceRegistry registry = server.getRegistry();
+			for (final IDataSink shared : registry.getSharedSinks()) {
+				LOG.info(() -> "Shared sink " + shared.getId() + ": " + shared);
+			}
+			final String sharedId = ask("Shared sink ID or NEW");
+			final IDataSink shared;
+			if ("new".equalsIgnoreCase(sharedId)) {
+				final String type = ask("Shared sink type (Influx|VM|Local)");
+				shared = buildSink(type);
+				if (shared == null) {
+					return null;
+				}
+				registry.addSharedSink(shared);
+			} else {
+				try {
+					shared = registry.getSharedSink(Integer.parseInt(sharedId)).orElse(null);
+				} catch (final NumberFormatException e) {
+					LOG.error(() -> "Invalid shared sink ID " + sharedId);
+					return null;
+				}
+				if (shared == null) {
+					LOG.error(() -> "Shared sink " + sharedId + " not found");
+					return null;
+				}
+			}
+			final SharedSink sink = new SharedSink(shared.getId());
+			sink.bind(shared, device.getId(), device.getName());
+			return sink;
+		}
+		
 		private String ask(final String request) throws IOException {
 			final ConsoleRequest consoleRequest = new ConsoleRequest();
 			consoleRequest.setRequest(request);
@@ -0,0 +1,93 @@
+package de.mechrain.cmdline;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.mechrain.cmdline.beans.HistoryRequest;
+import de.mechrain.cmdline.beans.HistoryResponse;
+import de.mechrain.log.Logging;
+import de.mechrain.storage.Downsampler;
+import de.mechrain.storage.IPointConsumer;
+import de.mechrain.storage.TimeSeriesStore;
+
+/**
+ * Answers a {@link HistoryRequest} from a local store. The values are sent in {@link HistoryResponse} chunks while
+ * they are read, so long ranges are not collected in memory.
+ */
+class HistoryQuery implements IPointConsumer {
+
+	private static final Logger LOG = LogManager.getLogger(Logging.CLI);
+
+	/** Number of values per response */
+	static final int CHUNK_POINTS = 1000;
+
+	private final DataOutputStream dos;
+	private final long[] timestamps = new long[CHUNK_POINTS];
+	private final double[] values = new double[CHUNK_POINTS];
+	private int count;
+	private long total;
+
+	HistoryQuery(final DataOutputStream dos) {
+		this.dos = dos;
+	}
+
+	/**
+	 * Reads the requested values and sends all full chunks. Errors reading the store are logged.
+	 *
+	 * @param store   the store of the device
+	 * @param request the request
+	 * @throws IOException if a response cannot be sent
+	 */
+	void run(final TimeSeriesStore store, final HistoryRequest request) throws IOException {
+		final long series = TimeSeriesStore.seriesKey(request.getDeviceId(), request.getChannel(), request.getMrp(),
+				request.getAggregate());
+		final Downsampler downsampler = request.getBucketMillis() > 0
+				? new Downsampler(request.getBucketMillis(), request.getFunction(), this)
+				: null;
+		try {
+			store.read(series, request.getFrom(), request.getTo(), downsampler != null ? downsampler : this);
+			if (downsampler != null) {
+				downsampler.finish();
+			}
+		} catch (final UncheckedIOException e) {
+			throw e.getCause();
+		} catch (final IOException e) {
+			LOG.error(() -> "Could not read " + store, e);
+		}
+	}
+
+	@Override
+	public void accept(final long timestamp, final double value) {
+		timestamps[count] = timestamp;
+		values[count] = value;
+		count++;
+		total++;
+		if (count == CHUNK_POINTS) {
+			try {
+				send(false);
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Sends the remaining values as the last chunk, also if there are none.
+	 *
+	 * @return the number of values sent
+	 * @throws IOException if the response cannot be sent
+	 */
+	long finish() throws IOException {
+		send(true);
+		return total;
+	}
+
+	private void send(final boolean last) throws IOException {
+		MechRainFory.serializeAndSend(new HistoryResponse(timestamps, values, count, last), dos);
+		count = 0;
+	}
+}
@@ -17,7 +17,12 @@ import de.mechrain.cmdline.beans.DeviceListRequest;
 import de.mechrain.cmdline.beans.DeviceListResponse;
 import de.mechrain.cmdline.beans.DeviceResetRequest;
 import de.mechrain.cmdline.beans.EndConfigureDeviceRequest;
+import de.mechrain.cmdline.beans.HistoryRequest;
+import de.mechrain.cmdline.beans.HistoryResponse;
 import de.mechrain.cmdline.beans.ICliBean;
+import de.mechrain.cmdline.beans.LatestValueRequest;
+import de.mechrain.cmdline.beans.LatestValueResponse;
+import de.mechrain.cmdline.beans.LatestValueResponse.SeriesData;
 import de.mechrain.cmdline.beans.LogEvent;
 import de.mechrain.cmdline.beans.RemoveDeviceRequest;
 import de.mechrain.cmdline.beans.RemoveSinkRequest;
@@ -29,6 +34,9 @@ import de.mechrain.cmdline.beans.SetNumPixelsRequest;
 import de.mechrain.cmdline.beans.SetLedAllRgbRequest;
 import de.mechrain.cmdline.beans.SwitchToNonInteractiveRequest;
 import de.mechrain.cmdline.beans.DeviceListResponse.DeviceData;
+import de.mechrain.protocol.MRP;
+import de.mechrain.protocol.MeasurementRecord.Aggregate;
+import de.mechrain.storage.Downsampler;
 
 public class MechRainFory {
 	
@@ -61,6 +69,14 @@ public class MechRainFory {
 		INSTANCE.register(SetNumPixelsRequest.class);
 		INSTANCE.register(SetLedAllRgbRequest.class);
 		INSTANCE.register(SetLedMode1Request.class);
+		INSTANCE.register(MRP.class);
+		INSTANCE.register(Aggregate.class);
+		INSTANCE.register(Downsampler.Function.class);
+		INSTANCE.register(HistoryRequest.class);
+		INSTANCE.register(HistoryResponse.class);
+		INSTANCE.register(LatestValueRequest.class);
+		INSTANCE.register(SeriesData.class);
+		INSTANCE.register(LatestValueResponse.class);
 	}
 	
 	/**
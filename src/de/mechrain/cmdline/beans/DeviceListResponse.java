@@ -19,7 +19,7 @@ public class DeviceListResponse implements ICliBean {
 
 	public void setDeviceList(final List<Device> deviceList) {
 		this.deviceList = deviceList.stream()
-			.map(d -> new DeviceData(d.getId(), d.getName(), d.getDescription(), d.getBuildId(), d.isConnected(), d.getTasks(), d.getSinks()))
+			.map(DeviceData::new)
 			.toList();
 	}
 	
@@ -34,12 +34,13 @@ public class DeviceListResponse implements ICliBean {
 		private final boolean connected;
 		private final Map<Integer, String> tasks;
 		private final Map<Integer, String> sinks;
+		private final Map<String, Number> statistics;
 		
 		public DeviceData(final Device device) {
-			this(device.getId(), device.getName(), device.getDescription(), device.getBuildId(), device.isConnected(), device.getTasks(), device.getSinks());
+			this(device.getId(), device.getName(), device.getDescription(), device.getBuildId(), device.isConnected(), device.getTasks(), device.getSinks(), device.getStatistics());
 		}
 		
-		public DeviceData(final int id, final String name, final String description, final String buildId, final boolean connected, final List<MeasurementTask> tasks, final List<IDataSink> sinks) {
+		public DeviceData(final int id, final String name, final String description, final String buildId, final boolean connected, final List<MeasurementTask> tasks, final List<IDataSink> sinks, final Map<String, Number> statistics) {
 			this.id = id;
 			this.name = name;
 			this.description = description;
@@ -47,6 +48,7 @@ public class DeviceListResponse implements ICliBean {
 			this.buildId = buildId;
 			this.tasks = tasks.stream().collect(java.util.stream.Collectors.toMap(MeasurementTask::getId, t -> t.toString()));
 			this.sinks = sinks.stream().collect(java.util.stream.Collectors.toMap(IDataSink::getId, s -> s.toString()));
+			this.statistics = statistics;
 		}
 
 		public int getId() {
@@ -76,5 +78,9 @@ public class DeviceListResponse implements ICliBean {
 		public Map<Integer, String> getTasks() {
 			return tasks;
 		}
+		
+		public Map<String, Number> getStatistics() {
+			return statistics;
+		}
 	}
 }
@@ -0,0 +1,109 @@
+package de.mechrain.cmdline.beans;
+
+import de.mechrain.protocol.MRP;
+import de.mechrain.protocol.MeasurementRecord.Aggregate;
+import de.mechrain.storage.Downsampler;
+
+/**
+ * Queries the values of a device stored by its local sink. Answered by {@link HistoryResponse} chunks, the last one
+ * is marked.
+ */
+public class HistoryRequest implements ICliBean {
+
+	private static final long serialVersionUID = -3427120619563985412L;
+
+	private int deviceId;
+	private MRP mrp;
+	private int channel = -1;
+	private Aggregate aggregate;
+	private long from;
+	private long to;
+	private long bucketMillis;
+	private Downsampler.Function function = Downsampler.Function.AVG;
+
+	public int getDeviceId() {
+		return deviceId;
+	}
+
+	public void setDeviceId(final int deviceId) {
+		this.deviceId = deviceId;
+	}
+
+	public MRP getMrp() {
+		return mrp;
+	}
+
+	public void setMrp(final MRP mrp) {
+		this.mrp = mrp;
+	}
+
+	/**
+	 * Gets the channel of the values.
+	 *
+	 * @return the channel or -1 for values without channel
+	 */
+	public int getChannel() {
+		return channel;
+	}
+
+	public void setChannel(final int channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Gets the statistic written by a sink with aggregation.
+	 *
+	 * @return the statistic or null for raw values
+	 */
+	public Aggregate getAggregate() {
+		return aggregate;
+	}
+
+	public void setAggregate(final Aggregate aggregate) {
+		this.aggregate = aggregate;
+	}
+
+	public long getFrom() {
+		return from;
+	}
+
+	/**
+	 * @param from the start of the range in milliseconds since the epoch, inclusive
+	 */
+	public void setFrom(final long from) {
+		this.from = from;
+	}
+
+	public long getTo() {
+		return to;
+	}
+
+	/**
+	 * @param to the end of the range in milliseconds since the epoch, inclusive
+	 */
+	public void setTo(final long to) {
+		this.to = to;
+	}
+
+	public long getBucketMillis() {
+		return bucketMillis;
+	}
+
+	/**
+	 * @param bucketMillis the length of the buckets the values are downsampled to, 0 for all values
+	 */
+	public void setBucketMillis(final long bucketMillis) {
+		this.bucketMillis = bucketMillis;
+	}
+
+	public Downsampler.Function getFunction() {
+		return function;
+	}
+
+	/**
+	 * @param function the statistic per bucket
+	 */
+	public void setFunction(final Downsampler.Function function) {
+		this.function = function;
+	}
+}
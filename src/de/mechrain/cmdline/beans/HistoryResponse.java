@@ -0,0 +1,39 @@
+package de.mechrain.cmdline.beans;
+
+import java.util.Arrays;
+
+/**
+ * A chunk of the values answering a {@link HistoryRequest}, in time order.
+ */
+public class HistoryResponse implements ICliBean {
+
+	private static final long serialVersionUID = 6080443017851640219L;
+
+	private final long[] timestamps;
+	private final double[] values;
+	private final boolean last;
+
+	/**
+	 * @param timestamps the timestamps in milliseconds since the epoch, the first count are copied
+	 * @param values     the values, the first count are copied
+	 * @param count      the number of values in this chunk
+	 * @param last       true for the last chunk of the answer
+	 */
+	public HistoryResponse(final long[] timestamps, final double[] values, final int count, final boolean last) {
+		this.timestamps = Arrays.copyOf(timestamps, count);
+		this.values = Arrays.copyOf(values, count);
+		this.last = last;
+	}
+
+	public long[] getTimestamps() {
+		return timestamps;
+	}
+
+	public double[] getValues() {
+		return values;
+	}
+
+	public boolean isLast() {
+		return last;
+	}
+}
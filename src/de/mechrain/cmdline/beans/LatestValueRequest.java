@@ -0,0 +1,64 @@
+package de.mechrain.cmdline.beans;
+
+import de.mechrain.protocol.MRP;
+
+/**
+ * Queries the latest and recent values received from a device, answered by a {@link LatestValueResponse}.
+ */
+public class LatestValueRequest implements ICliBean {
+
+	private static final long serialVersionUID = 2265704518811316795L;
+
+	/** Selects the series of all channels */
+	public static final int ANY_CHANNEL = Integer.MIN_VALUE;
+
+	private int deviceId;
+	private MRP mrp;
+	private int channel = ANY_CHANNEL;
+	private int history = 1;
+
+	public int getDeviceId() {
+		return deviceId;
+	}
+
+	public void setDeviceId(final int deviceId) {
+		this.deviceId = deviceId;
+	}
+
+	/**
+	 * Gets the type of the values.
+	 *
+	 * @return the type or null for all types
+	 */
+	public MRP getMrp() {
+		return mrp;
+	}
+
+	public void setMrp(final MRP mrp) {
+		this.mrp = mrp;
+	}
+
+	/**
+	 * Gets the channel of the values.
+	 *
+	 * @return the channel, -1 for values without channel or {@link #ANY_CHANNEL}
+	 */
+	public int getChannel() {
+		return channel;
+	}
+
+	public void setChannel(final int channel) {
+		this.channel = channel;
+	}
+
+	public int getHistory() {
+		return history;
+	}
+
+	/**
+	 * @param history the number of recent values per series, 1 for the latest value only
+	 */
+	public void setHistory(final int history) {
+		this.history = history;
+	}
+}
@@ -0,0 +1,97 @@
+package de.mechrain.cmdline.beans;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.mechrain.device.LatestValueCache;
+import de.mechrain.protocol.MRP;
+
+/**
+ * The recent values of the series of a device matching a {@link LatestValueRequest}.
+ */
+public class LatestValueResponse implements ICliBean {
+
+	private static final long serialVersionUID = -4153978946043372571L;
+
+	private final List<SeriesData> series = new ArrayList<>();
+	private long bytes;
+	private long bytesPerSeries;
+
+	public LatestValueResponse() {
+		/* no values, e.g. for an unknown device */
+	}
+
+	/**
+	 * Copies the requested series from the cache of a device.
+	 *
+	 * @param cache   the cache of the device
+	 * @param request the request
+	 */
+	public LatestValueResponse(final LatestValueCache cache, final LatestValueRequest request) {
+		final int history = Math.max(1, Math.min(request.getHistory(), cache.getHistory()));
+		final long[] timestamps = new long[history];
+		final double[] values = new double[history];
+		for (int slot = 0; slot < cache.size(); slot++) {
+			if (request.getMrp() != null && request.getMrp() != cache.getMrp(slot)
+					|| request.getChannel() != LatestValueRequest.ANY_CHANNEL && request.getChannel() != cache.getChannel(slot)) {
+				continue;
+			}
+			final int count = cache.read(slot, timestamps, values);
+			series.add(new SeriesData(cache.getMrp(slot), cache.getChannel(slot), timestamps, values, count));
+		}
+		this.bytes = cache.getBytes();
+		this.bytesPerSeries = cache.getBytesPerSeries();
+	}
+
+	public List<SeriesData> getSeries() {
+		return series;
+	}
+
+	/**
+	 * Gets the memory taken by the cache of the device.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	public long getBytesPerSeries() {
+		return bytesPerSeries;
+	}
+
+	public static class SeriesData implements ICliBean {
+
+		private static final long serialVersionUID = 1L;
+
+		private final MRP mrp;
+		private final int channel;
+		private final long[] timestamps;
+		private final double[] values;
+
+		public SeriesData(final MRP mrp, final int channel, final long[] timestamps, final double[] values, final int count) {
+			this.mrp = mrp;
+			this.channel = channel;
+			this.timestamps = Arrays.copyOf(timestamps, count);
+			this.values = Arrays.copyOf(values, count);
+		}
+
+		public MRP getMrp() {
+			return mrp;
+		}
+
+		public int getChannel() {
+			return channel;
+		}
+
+		/**
+		 * Gets the timestamps of the recent values, the newest last.
+		 */
+		public long[] getTimestamps() {
+			return timestamps;
+		}
+
+		public double[] getValues() {
+			return values;
+		}
+	}
+}
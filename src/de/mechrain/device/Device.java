@@ -1,60 +1,77 @@
 package de.mechrain.device;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.Serializable;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import de.mechrain.device.connection.IDeviceConnection;
 import de.mechrain.device.sink.IDataSink;
+import de.mechrain.device.sink.SinkDispatcher;
+import de.mechrain.device.sink.SinkSpool;
 import de.mechrain.device.task.ITask;
 import de.mechrain.device.task.MeasurementTask;
 import de.mechrain.log.Logging;
 import de.mechrain.protocol.AbstractMechRainDataUnit;
 import de.mechrain.protocol.AckDataUnit;
-import de.mechrain.protocol.DataUnitFactory;
 import de.mechrain.protocol.DataUnitValidationException;
 import de.mechrain.protocol.HeartbeatDataUnit;
 import de.mechrain.protocol.HeartbeatDataUnit.HeartbeatBuilder;
 import de.mechrain.protocol.MRP;
+import de.mechrain.protocol.MeasurementRecord;
+import de.mechrain.protocol.MeasurementRequestDataUnit;
 import de.mechrain.protocol.datatypes.TextDataUnit;
-import de.mechrain.util.Util;
+import de.mechrain.util.HashedWheelTimer;
+import de.mechrain.util.HashedWheelTimer.Timeout;
+import de.mechrain.util.ThreadSupport;
 
 public class Device implements Serializable {
 
 	private static final long serialVersionUID = -3497448345309413749L;
 	private static final Logger LOG_DATA = LogManager.getLogger(Logging.DATA);
 	private static final Logger LOG = LogManager.getLogger(Logging.DEVICE);
+	
+	/** Upper bound in ms of the random jitter added to the phase of each task, 0 (default) disables jitter */
+	public static final String TASK_JITTER_PROPERTY = "mechrain.task.jitterMs";
+
+	/** Stops the dispatchers and disconnects the sinks of disconnected devices, off the thread reading the connection */
+	private static final ThreadPoolExecutor SINK_DISCONNECT_EXECUTOR = newSinkDisconnectExecutor();
 
-	private transient Socket socket;
-	private transient ReadThread readThread;
-	private transient RequestThread requestThread;
-	private transient boolean connected;
+	/* read by the connection threads to check whether they still belong to the device */
+	private transient volatile IDeviceConnection connection;
+	private transient volatile boolean connected;
 	private transient boolean isDisconnecting;
-	private transient List<Timer> timers = new ArrayList<>();
-	private transient BlockingQueue<AbstractMechRainDataUnit> requests = new ArrayBlockingQueue<>(10, true);
-	private transient Timer heartbeatTimer;
+	private transient DeviceRequestQueue requests = new DeviceRequestQueue();
+	private transient RequestTracker tracker = new RequestTracker(this);
+	private transient Timeout heartbeatTimer;
+	/* one per sink while connected, replaced as a whole */
+	private transient volatile SinkDispatcher[] dispatchers = new SinkDispatcher[0];
+	/* dispatchers of the sinks accepting each MRP indexed by ordinal, rebuilt with the dispatchers */
+	private transient volatile SinkDispatcher[][] routes = routes(dispatchers);
+	/* stopping the dispatchers and disconnecting the sinks of the previous connection */
+	private transient volatile CompletableFuture<Void> sinkTeardown = CompletableFuture.completedFuture(null);
+	/* recent values of each series, updated by the thread reading the connection */
+	private transient LatestValueCache latestValues = new LatestValueCache();
 
 	private List<IDataSink> sinks = new ArrayList<>();
 	private List<MeasurementTask> tasks = new ArrayList<>();
 	
 	/** Maps task IDs to their corresponding timers */
-	private transient Map<Integer, Timer> taskTimers = new HashMap<>();
+	private transient Map<Integer, Timeout> taskTimers = new ConcurrentHashMap<>();
 	
 	private String name;
 	private String description;
@@ -88,53 +105,91 @@ public class Device implements Serializable {
 		return buildId;
 	}
 
+	/**
+	 * Gets the recent values received from the device.
+	 *
+	 * @return the cache of the recent values
+	 */
+	public LatestValueCache getLatestValues() {
+		return latestValues;
+	}
+
 	public void setTimeout(final int timeout) {
 		// TODO: provide option to change timeout on active connections
 		this.timeout = timeout;
 	}
 
-	public void connect(final Socket socket, final InputStream is, final OutputStream os) throws SocketException {
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Opens the given connection and starts the tasks of the device. Sinks are connected on the given executor since
+	 * connecting them may involve slow network round trips.
+	 *
+	 * @param connection   the new connection of the device
+	 * @param sinkExecutor the executor connecting the sinks
+	 * @throws IOException if the connection could not be opened
+	 */
+	public void connect(final IDeviceConnection connection, final Executor sinkExecutor) throws IOException {
 		if (connected) {
 			LOG.error("Device already connected");
 		} else {
-			this.socket = socket;
-			/*
-			 * Enable TCP keepalive (OS-level) and set a reasonable SO_TIMEOUT so read() can
-			 * detect network failures
-			 */
-			socket.setKeepAlive(true);
-			socket.setSoTimeout(timeout);
+			/* the sinks of the previous connection must be disconnected and their spools closed first */
+			awaitSinkTeardown();
+			this.connection = connection;
 			this.connected = true;
-			this.readThread = new ReadThread(is, this);
-			readThread.setName("ReadThread(" + id + ")");
-			readThread.start();
-			this.requestThread = new RequestThread(os, this, requests);
-			requestThread.setName("RequestThread(" + id + ")");
-			requestThread.start();
-			for (final IDataSink sink : sinks) {
-				sink.connect();
+			updateDispatchers();
+			try {
+				connection.open(this);
+			} catch (final IOException e) {
+				this.connection = null;
+				this.connected = false;
+				updateDispatchers();
+				throw e;
 			}
+			sinkExecutor.execute(this::connectSinks);
 			addTimers();
 			
 			if (tasks.isEmpty()) {
-				heartbeatTimer = new Timer("Device " + id + " Heartbeat Timer");
-				heartbeatTimer.scheduleAtFixedRate(new TimerTask() {
-					@Override
-					public void run() {
-						HeartbeatDataUnit heartbeat;
-						try {
-							heartbeat = new HeartbeatBuilder().build();
-							queueRequest(heartbeat);
-						} catch (final DataUnitValidationException e) {
-							e.printStackTrace();
-						}
+				heartbeatTimer = HashedWheelTimer.shared().scheduleAtFixedRate(() -> {
+					try {
+						queueRequest(new HeartbeatBuilder().build());
+					} catch (final DataUnitValidationException e) {
+						LOG.error(() -> "Could not queue heartbeat (Device " + id + ")", e);
 					}
-				}, 60_000, 60_000); /* every 60 seconds */
+				}, 60_000, 60_000, TimeUnit.MILLISECONDS); /* every 60 seconds */
 				LOG.info(() -> "Started heartbeat timer (Device " + id + ")");
 			}
 		}
 	}
 
+	private void connectSinks() {
+		for (final IDataSink sink : sinks) {
+			if ( ! connected) {
+				/* disconnected again before all sinks were connected */
+				return;
+			}
+			if ( ! sink.connect()) {
+				LOG.warn(() -> "Could not connect sink " + sink + " (Device " + id + ")");
+			}
+		}
+	}
+
+	/**
+	 * Disconnects the device if the given connection is still its connection. Called by a connection that failed, a
+	 * connection that was already replaced must not tear down its successor.
+	 *
+	 * @param failed the connection that failed
+	 */
+	public void disconnect(final IDeviceConnection failed) {
+		if (connection != failed) {
+			LOG.debug(() -> "Ignoring disconnect of a replaced connection (Device " + id + ")");
+			return;
+		}
+		disconnect();
+	}
+
 	public void disconnect() {
 		LOG.debug(() -> "Disconnecting (Device " + id + ")");
 		if (isDisconnecting || !connected) {
@@ -143,45 +198,27 @@ public class Device implements Serializable {
 		try {
 			isDisconnecting = true;
 			removeTimers();
-			timers.clear();
 			requests.clear();
-			taskTimers.clear();
+			tracker.clear();
 			
 			if (heartbeatTimer != null) {
 				heartbeatTimer.cancel();
-				heartbeatTimer.purge();
 				heartbeatTimer = null;
 				LOG.debug(() -> "Stopped heartbeat timer (Device " + id + ")");
 			}
 			
-			try {
-				socket.close();
-			} catch (final IOException e) {
-				LOG.error("I/O Error closing socket", e);
-			}
-			readThread.end();
-			if (readThread.isAlive() && !readThread.isInterrupted()) {
-				readThread.interrupt();
-				try {
-					readThread.join();
-				} catch (final InterruptedException e) {
-					LOG.debug(() -> "Interrupted (Device " + id + ")", e);
-					Thread.currentThread().interrupt();
-				}
-			}
-			requestThread.end();
-			if (requestThread.isAlive() && !requestThread.isInterrupted()) {
-				requestThread.interrupt();
-				try {
-					requestThread.join();
-				} catch (final InterruptedException e) {
-					LOG.debug(() -> "Interrupted (Device " + id + ")", e);
-					Thread.currentThread().interrupt();
+			connection.close();
+			connection = null;
+			connected = false;
+			/* values not delivered yet are discarded, stopping may wait for the sinks, e.g. on the NIO loop */
+			final SinkDispatcher[] stopped = replaceDispatchers();
+			final List<IDataSink> disconnected = new ArrayList<>(sinks);
+			sinkTeardown = CompletableFuture.runAsync(() -> {
+				stopDispatchers(stopped);
+				for (final IDataSink sink : disconnected) {
+					sink.disconnect();
 				}
-			}
-			for (final IDataSink sink : sinks) {
-				sink.disconnect();
-			}
+			}, SINK_DISCONNECT_EXECUTOR);
 		} finally {
 			connected = false;
 			isDisconnecting = false;
@@ -197,28 +234,48 @@ public class Device implements Serializable {
 
 	public void addTimer(final ITask task) {
 		if (task instanceof MeasurementTask mt) {
-			final Timer timer = new Timer("Device " + id + " Task " + task.getId());
-			timer.scheduleAtFixedRate(new TimerTask() {
-				@Override
-				public void run() {
-					mt.queueTask(requests);
+			final long interval = mt.getIntervalMillis();
+			/* a phase restored from the snapshot survives restarts even with jitter */
+			final long phase = mt.getLastFired() >= 0
+					? Math.floorMod(mt.getLastFired(), interval)
+					: (mt.computePhase(id) + jitter(interval)) % interval;
+			mt.setPhase(phase);
+			/* align ticks to the wall clock so the phase stays the same across reconnects and restarts */
+			final long initialDelay = Math.floorMod(phase - System.currentTimeMillis(), interval);
+			final Timeout timer = HashedWheelTimer.shared().scheduleAtFixedRate(() -> {
+				/* the scheduled tick, the timer may fire a little late */
+				final long now = System.currentTimeMillis();
+				mt.setLastFired(now - Math.floorMod(now - phase, interval));
+				if (tracker.isSaturated()) {
+					LOG.debug(() -> "Too many unanswered requests, skipping " + task + " (Device " + id + ")");
+					return;
 				}
-			}, 0, mt.getTimeUnit().toMillis(mt.getInterval()));
+				mt.queueTask(requests);
+				notifyRequestsQueued();
+			}, initialDelay, interval, TimeUnit.MILLISECONDS);
 			LOG.info(() -> "Started new timer for task " + task);
-			timers.add(timer);
-			taskTimers.put(task.getId(), timer);
+			final Timeout previous = taskTimers.put(task.getId(), timer);
+			if (previous != null) {
+				previous.cancel();
+			}
 		} else {
 			LOG.error(() -> "Unknown task " + task + " " + task.getClass().getSimpleName());
 		}
 	}
 
+	private static long jitter(final long interval) {
+		final long maxJitter = Math.min(Long.getLong(TASK_JITTER_PROPERTY, 0), interval);
+		return maxJitter > 0 ? ThreadLocalRandom.current().nextLong(maxJitter) : 0;
+	}
+
 	private void removeTimers() {
-		for (final Iterator<Timer> iterator = timers.iterator(); iterator.hasNext();) {
-			final Timer timer = iterator.next();
-			timer.cancel();
-			timer.purge();
+		for (final Iterator<Timeout> iterator = taskTimers.values().iterator(); iterator.hasNext();) {
+			iterator.next().cancel();
 			iterator.remove();
 		}
+		for (final MeasurementTask task : tasks) {
+			task.setPhase(-1);
+		}
 		LOG.info(() -> "Timers removed (Device " + id + ")");
 	}
 
@@ -232,10 +289,13 @@ public class Device implements Serializable {
 		if (connected) {
 			sink.connect();
 		}
+		updateDispatchers();
 	}
 
 	public void removeSink(final IDataSink sink) {
-		sinks.remove(sink);
+		if (sinks.remove(sink)) {
+			sinkRemoved(sink);
+		}
 	}
 
 	public void removeSink(final int sinkId) {
@@ -243,11 +303,107 @@ public class Device implements Serializable {
 			final IDataSink sink = iterator.next();
 			if (sink.getId() == sinkId) {
 				iterator.remove();
+				sinkRemoved(sink);
 				break;
 			}
 		}
 	}
 
+	private void sinkRemoved(final IDataSink sink) {
+		updateDispatchers();
+		/* measurements spooled for the sink are not replayed into a later sink with the same ID */
+		SinkSpool.delete(dispatcherName(sink));
+	}
+
+	private String dispatcherName(final IDataSink sink) {
+		return "Sink-" + id + '-' + sink.getId();
+	}
+
+	private static ThreadPoolExecutor newSinkDisconnectExecutor() {
+		final ThreadPoolExecutor executor = ThreadSupport.newBoundedExecutor("Sink-Disconnect", 1, 256);
+		/* back pressure instead of leaving sinks connected */
+		executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+		return executor;
+	}
+
+	private void awaitSinkTeardown() {
+		try {
+			sinkTeardown.join();
+		} catch (final CompletionException e) {
+			LOG.error(() -> "Could not disconnect sinks (Device " + id + ")", e.getCause());
+		}
+	}
+
+	/**
+	 * Starts a dispatcher for each sink while connected and stops the dispatchers of removed sinks.
+	 */
+	private void updateDispatchers() {
+		stopDispatchers(replaceDispatchers());
+	}
+
+	private static void stopDispatchers(final SinkDispatcher[] stopped) {
+		for (final SinkDispatcher dispatcher : stopped) {
+			dispatcher.stop(false);
+		}
+	}
+
+	/**
+	 * Starts a dispatcher for each sink while connected and detaches the dispatchers of removed sinks.
+	 *
+	 * @return the detached dispatchers, to be stopped by the caller
+	 */
+	private synchronized SinkDispatcher[] replaceDispatchers() {
+		final SinkDispatcher[] current = dispatchers;
+		final SinkDispatcher[] updated = new SinkDispatcher[connected ? sinks.size() : 0];
+		for (int i = 0; i < updated.length; i++) {
+			final IDataSink sink = sinks.get(i);
+			for (final SinkDispatcher dispatcher : current) {
+				if (dispatcher.getSink() == sink) {
+					updated[i] = dispatcher;
+					break;
+				}
+			}
+			if (updated[i] == null) {
+				updated[i] = new SinkDispatcher(sink, dispatcherName(sink));
+			}
+		}
+		dispatchers = updated;
+		routes = routes(updated);
+		final List<SinkDispatcher> detached = new ArrayList<>();
+		for (final SinkDispatcher dispatcher : current) {
+			if ( ! Arrays.asList(updated).contains(dispatcher)) {
+				detached.add(dispatcher);
+			}
+		}
+		return detached.toArray(new SinkDispatcher[0]);
+	}
+
+	/**
+	 * Builds the routing table, so values are only handed to the dispatchers of sinks accepting their type.
+	 */
+	private static SinkDispatcher[][] routes(final SinkDispatcher[] dispatchers) {
+		final MRP[] mrps = MRP.values();
+		final SinkDispatcher[][] routes = new SinkDispatcher[mrps.length][];
+		final SinkDispatcher[] none = new SinkDispatcher[0];
+		for (final MRP mrp : mrps) {
+			int count = 0;
+			for (final SinkDispatcher dispatcher : dispatchers) {
+				if (dispatcher.getSink().accepts(mrp)) {
+					count++;
+				}
+			}
+			final SinkDispatcher[] route = count == 0 ? none : new SinkDispatcher[count];
+			count = 0;
+			for (final SinkDispatcher dispatcher : dispatchers) {
+				if (dispatcher.getSink().accepts(mrp)) {
+					route[count++] = dispatcher;
+				}
+			}
+			routes[mrp.ordinal()] = route;
+		}
+		return routes;
+	}
+
 	public List<IDataSink> getSinks() {
 		return sinks;
 	}
@@ -255,7 +411,6 @@ public class Device implements Serializable {
 	public void addTask(final MeasurementTask task) {
 		if (heartbeatTimer != null) {
 			heartbeatTimer.cancel();
-			heartbeatTimer.purge();
 			heartbeatTimer = null;
 			LOG.info(() -> "Stopped heartbeat timer (Device " + id + ")");
 		}
@@ -267,7 +422,9 @@ public class Device implements Serializable {
 	}
 
 	public void removeTask(final ITask task) {
-		tasks.remove(task);
+		if (tasks.remove(task)) {
+			cancelTimer(task.getId());
+		}
 	}
 
 	public void removeTask(final int taskId) {
@@ -275,14 +432,19 @@ public class Device implements Serializable {
 			final ITask task = iterator.next();
 			if (task.getId() == taskId) {
 				iterator.remove();
-				final Timer removedTimer = taskTimers.remove(task.getId());
-				removedTimer.cancel();
-				removedTimer.purge();
+				cancelTimer(task.getId());
 				break;
 			}
 		}
 	}
 
+	private void cancelTimer(final int taskId) {
+		final Timeout removedTimer = taskTimers.remove(taskId);
+		if (removedTimer != null) {
+			removedTimer.cancel();
+		}
+	}
+
 	public ITask getTask(final int idx) {
 		return tasks.get(idx);
 	}
@@ -308,171 +470,139 @@ public class Device implements Serializable {
 	}
 
 	public void queueRequest(final AbstractMechRainDataUnit request) {
-		requests.add(request);
+		if (requests.offer(request)) {
+			notifyRequestsQueued();
+		}
 	}
 
-	@Override
-	public String toString() {
-		final StringBuilder sb = new StringBuilder();
-		sb.append("Device ").append(id).append(' ').append(name != null ? name : "").append(' ')
-				.append(description != null ? description : "").append(' ')
-				.append(connected ? "<connected>" : "<disconnected>").append(' ').append("sinks: ").append(sinks.size())
-				.append(' ').append("tasks: ").append(tasks.size());
-		return sb.toString();
+	/**
+	 * Queues a request to be sent to the device again.
+	 *
+	 * @param request the request
+	 * @return true if the request itself was queued, false if an identical pending request will be sent instead or the
+	 *         queue was full
+	 */
+	boolean requeueRequest(final AbstractMechRainDataUnit request) {
+		final boolean queued = requests.offerInstance(request);
+		if (queued) {
+			notifyRequestsQueued();
+		}
+		return queued;
 	}
 
-	private static class RequestThread extends Thread {
+	private void notifyRequestsQueued() {
+		final IDeviceConnection current = connection;
+		if (current != null) {
+			current.requestsQueued();
+		}
+	}
 
-		private final OutputStream os;
-		private final Device device;
-		private final BlockingQueue<AbstractMechRainDataUnit> requests;
-		private boolean run = true;
+	/**
+	 * Gets the queue of requests waiting to be sent to the device.
+	 *
+	 * @return the request queue
+	 */
+	public DeviceRequestQueue getRequests() {
+		return requests;
+	}
 
-		private RequestThread(final OutputStream os, final Device device,
-				final BlockingQueue<AbstractMechRainDataUnit> requests) {
-			this.os = os;
-			this.device = device;
-			this.requests = requests;
-		}
+	/**
+	 * Notifies the device that a request has been written to the connection, called by the connection.
+	 *
+	 * @param request the request sent to the device
+	 */
+	public void requestSent(final AbstractMechRainDataUnit request) {
+		tracker.sent(request);
+	}
 
-		public void end() {
-			this.run = false;
+	/**
+	 * Gets counters describing the state of the device connection, e.g. for display in the CLI.
+	 *
+	 * @return counter names mapped to their current values
+	 */
+	public Map<String, Number> getStatistics() {
+		final Map<String, Number> statistics = new LinkedHashMap<>();
+		statistics.put("requests.pending", requests.size());
+		statistics.put("requests.coalesced", requests.getCoalesced());
+		statistics.put("requests.dropped", requests.getDropped());
+		statistics.put("requests.rejected", requests.getRejected());
+		tracker.collectStatistics(statistics);
+		latestValues.collectStatistics("cache", statistics);
+		final IDeviceConnection current = connection;
+		if (current != null) {
+			current.collectStatistics(statistics);
 		}
-
-		@Override
-		public void run() {
-			while (run) {
-				try {
-					final AbstractMechRainDataUnit poll = requests.poll(60, TimeUnit.SECONDS);
-					if (poll != null) {
-						final byte[] bytes = poll.toBytes();
-						LOG_DATA.debug(() -> "Sending data unit (Device " + device.id + ") " + poll);
-						LOG_DATA.trace(() -> "Data: " + Util.BYTES2HEX(bytes));
-						os.write(bytes);
-						os.flush();
-					}
-				} catch (final InterruptedException e) {
-					LOG.debug(() -> "Interrupted (Device " + device.id + ")", e);
-					run = false;
-					Thread.currentThread().interrupt();
-				} catch (final IOException e) {
-					LOG.error(() -> "Error sending data unit (Device " + device.id + ")", e);
-					run = false;
-				}
-			}
-			LOG.info("Request thread ended (Device " + device.id + ")");
-			requests.clear();
-			device.disconnect();
+		for (final SinkDispatcher dispatcher : dispatchers) {
+			dispatcher.collectStatistics("sink." + dispatcher.getSink().getId(), statistics);
 		}
+		for (final IDataSink sink : sinks) {
+			sink.collectStatistics("sink." + sink.getId(), statistics);
+		}
+		return statistics;
 	}
 
-	private static class ReadThread extends Thread {
-
-		private final InputStream is;
-		private final Device device;
-		private boolean run = true;
-
-		private ReadThread(final InputStream is, final Device device) {
-			this.is = is;
-			this.device = device;
+	/**
+	 * Handles a numeric measurement received from the device without allocating a data unit.
+	 *
+	 * @param record the measurement, only the type and value need to be set, the record is reused after returning
+	 */
+	public void handleMeasurement(final MeasurementRecord record) {
+		final AbstractMechRainDataUnit request = tracker.received(record.getMrp());
+		record.setDeviceId(id);
+		/* responses carry no channel, it is known from the answered request */
+		record.setChannel(request instanceof MeasurementRequestDataUnit mreq ? mreq.getChannelId() : -1);
+		record.setTimestamp(System.currentTimeMillis());
+		LOG_DATA.debug(() -> "Received measurement (Device " + id + ") - " + record);
+		latestValues.update(record);
+		for (final SinkDispatcher dispatcher : routes[record.getMrp().ordinal()]) {
+			dispatcher.publish(record);
 		}
+	}
 
-		public void end() {
-			this.run = false;
+	/**
+	 * Handles a data unit received from the device.
+	 *
+	 * @param dataUnit the received data unit, may be null for unknown message types
+	 */
+	public void handleDataUnit(final AbstractMechRainDataUnit dataUnit) {
+		if (dataUnit == null) {
+			return;
 		}
-
-		@Override
-		public void run() {
-			final byte[] header = new byte[3];
-			final DataUnitFactory duf = new DataUnitFactory();
-			int timeoutCounter = 0;
-			final int maxTimeouts = 3; // after 3 consecutive timeouts treat as disconnected
-			try {
-				while (run) {
-					int readSoFar = 0;
-					try {
-						while (readSoFar < header.length) {
-							final int bytesRead = is.read(header, readSoFar, header.length - readSoFar);
-							if (bytesRead == -1) {
-								// EOF - remote closed connection
-								LOG.info("Input stream no longer available");
-								run = false;
-								break;
-							}
-							readSoFar += bytesRead;
-						}
-						/* if we got here with full header, reset timeout counter */
-						if (readSoFar == header.length) {
-							timeoutCounter = 0;
-						}
-					} catch (final SocketTimeoutException ste) {
-						/* read timed out - increment counter and possibly treat as disconnected */
-						++timeoutCounter;
-						LOG.debug("Socket read timed out (Device " + device.id + ") - count " + timeoutCounter, ste);
-						if (timeoutCounter < maxTimeouts) {
-							/* try again */
-							continue;
-						} else {
-							LOG.warn("Connection appears dead after " + timeoutCounter + " read timeouts (Device "
-									+ device.id + ")");
-							run = false;
-							break;
-						}
-					}
-					if (!run) {
-						break;
-					}
-					if (readSoFar != header.length) {
-						/* we already logged EOF above; but safeguard */
-						LOG_DATA.error("Invalid number of header bytes " + readSoFar);
-						run = false;
-						break;
-					}
-					LOG_DATA.trace(() -> "Header: " + Util.BYTES2HEX(header, 3));
-
-					try {
-						final AbstractMechRainDataUnit dataUnit = duf.getDataUnit(header, is);
-						if (dataUnit instanceof TextDataUnit text) {
-							if (text.getId() == MRP.STATUS_MSG) {
-								LOG_DATA.info(() -> "Received status (Device " + device.id + ") " + text.getText());
-							} else if (text.getId() == MRP.ERROR) {
-								LOG_DATA.error(() -> "Received error (Device " + device.id + ") " + text.getText());
-							} else if (text.getId() == MRP.BUILD_ID) {
-								LOG_DATA.info(() -> "Received build ID (Device " + device.id + ") " + text.getText());
-								device.setBuildId(text.getText());
-							} else {
-								LOG_DATA.error(() -> "Unknown Message type " + text.getId() + " " + text);
-							}
-						} else if (dataUnit instanceof AckDataUnit) {
-							LOG_DATA.info(() -> "Received ACK (Device " + device.id + ")");
-						} else if (dataUnit instanceof HeartbeatDataUnit) {
-							LOG_DATA.info(() -> "Received Heartbeat (Device " + device.id + ")");
-						} else {
-							LOG_DATA.debug(() -> "Received data unit (Device " + device.id + ") - " + dataUnit);
-							for (final IDataSink sink : device.getSinks()) {
-								if (sink.isAvailable()) {
-									sink.handleDataUnit(dataUnit);
-								} else {
-									LOG.warn(() -> "Sink " + sink + " unavailable");
-								}
-							}
-						}
-					} catch (final DataUnitValidationException e) {
-						LOG_DATA.error(() -> "Error receiving data unit (Device " + device.id + ")", e);
-					}
-
-				}
-			} catch (final IOException e) {
-				LOG.error("I/O Error (Device " + device.id + ")", e);
-			} finally {
-				try {
-					is.close();
-				} catch (final IOException e) {
-					LOG.error("I/O Error in cleanup", e);
-				}
+		final boolean answered = tracker.received(dataUnit);
+		if (dataUnit instanceof TextDataUnit text) {
+			if (text.getId() == MRP.STATUS_MSG) {
+				LOG_DATA.info(() -> "Received status (Device " + id + ") " + text.getText());
+			} else if (text.getId() == MRP.ERROR) {
+				LOG_DATA.error(() -> "Received error (Device " + id + ") " + text.getText());
+			} else if (text.getId() == MRP.BUILD_ID) {
+				LOG_DATA.info(() -> "Received build ID (Device " + id + ") " + text.getText());
+				setBuildId(text.getText());
+			} else {
+				LOG_DATA.error(() -> "Unknown Message type " + text.getId() + " " + text);
+			}
+		} else if (dataUnit instanceof AckDataUnit) {
+			if (answered) {
+				LOG_DATA.info(() -> "Received ACK (Device " + id + ")");
+			} else {
+				LOG_DATA.warn(() -> "Received unexpected ACK (Device " + id + ")");
+			}
+		} else if (dataUnit instanceof HeartbeatDataUnit) {
+			LOG_DATA.info(() -> "Received Heartbeat (Device " + id + ")");
+		} else {
+			LOG_DATA.debug(() -> "Received data unit (Device " + id + ") - " + dataUnit);
+			for (final SinkDispatcher dispatcher : routes[dataUnit.getId().ordinal()]) {
+				dispatcher.publish(dataUnit);
 			}
-			LOG.info("Read thread ended (Device " + device.id + ")");
-			device.disconnect();
 		}
 	}
-}
\ No newline at end of file
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("Device ").append(id).append(' ').append(name != null ? name : "").append(' ')
+				.append(description != null ? description : "").append(' ')
+				.append(connected ? "<connected>" : "<disconnected>").append(' ').append("sinks: ").append(sinks.size())
+				.append(' ').append("tasks: ").append(tasks.size());
+		return sb.toString();
+	}
+}
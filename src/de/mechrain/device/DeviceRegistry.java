@@ -10,7 +10,10 @@ import java.util.Optional;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import de.mechrain.device.sink.IDataSink;
+import de.mechrain.device.sink.SharedSink;
 import de.mechrain.log.Logging;
+import de.mechrain.util.Util;
 
 public class DeviceRegistry implements Serializable {
 	
@@ -19,6 +22,8 @@ public class DeviceRegistry implements Serializable {
 	private static final Logger LOG = LogManager.getLogger(Logging.DEVICE_REGISTRY);
 	
 	final List<Device> deviceList = Collections.synchronizedList(new ArrayList<>());
+	/** Sinks defined once and referenced by the {@link SharedSink} of any number of devices */
+	final List<IDataSink> sharedSinks = Collections.synchronizedList(new ArrayList<>());
 	
 	public DeviceRegistry() {
 		/* empty constructor for de-serialization */
@@ -50,9 +55,31 @@ public class DeviceRegistry implements Serializable {
 			return;
 		}
 		deviceList.add(device);
+		bindSharedSinks(device);
 		LOG.info(() -> "Added device " + device);
 	}
 	
+	/**
+	 * Changes the ID of a device and binds its shared sink references again, since the ID is written as a tag.
+	 * 
+	 * @param device the device
+	 * @param newId  the new ID
+	 * @return false if another device already has the new ID
+	 */
+	public boolean changeDeviceId(final Device device, final int newId) {
+		final int oldId = device.getId();
+		synchronized(deviceList) {
+			if (getDevice(newId).isPresent()) {
+				LOG.warn(() -> "Device with ID " + newId + " already exists in registry");
+				return false;
+			}
+			device.setId(newId);
+		}
+		bindSharedSinks(device);
+		LOG.info(() -> "Changed ID of device " + oldId + " to " + newId);
+		return true;
+	}
+	
 	public void removeDevice(final int id) {
 		for (final Iterator<Device> iterator = deviceList.iterator(); iterator.hasNext();) {
 			final Device device = iterator.next();
@@ -69,4 +96,83 @@ public class DeviceRegistry implements Serializable {
 			return Collections.unmodifiableList(deviceList);
 		}
 	}
+	
+	public Optional<IDataSink> getSharedSink(final int id) {
+		synchronized(sharedSinks) {
+			return sharedSinks.stream().filter(s -> s.getId() == id).findFirst();
+		}
+	}
+	
+	public List<IDataSink> getSharedSinks() {
+		synchronized(sharedSinks) {
+			return Collections.unmodifiableList(sharedSinks);
+		}
+	}
+	
+	/**
+	 * Adds a shared sink definition and assigns it the lowest unused ID.
+	 * 
+	 * @param sink the sink, it is connected once the first device using it connects
+	 */
+	public void addSharedSink(final IDataSink sink) {
+		synchronized(sharedSinks) {
+			sink.setId(Util.determineNextFreeId(sharedSinks));
+			sharedSinks.add(sink);
+		}
+		LOG.info(() -> "Added shared sink " + sink);
+	}
+	
+	/**
+	 * Removes a shared sink definition unless a device still refers to it.
+	 * 
+	 * @param id the ID of the shared sink
+	 * @return true if the definition was removed
+	 */
+	public boolean removeSharedSink(final int id) {
+		synchronized(deviceList) {
+			for (final Device device : deviceList) {
+				for (final IDataSink sink : device.getSinks()) {
+					if (sink instanceof SharedSink shared && shared.getSharedId() == id) {
+						LOG.error(() -> "Shared sink " + id + " is still used by device " + device.getId());
+						return false;
+					}
+				}
+			}
+		}
+		final boolean removed = sharedSinks.removeIf(s -> s.getId() == id);
+		if (removed) {
+			LOG.info(() -> "Removed shared sink " + id);
+		}
+		return removed;
+	}
+	
+	/**
+	 * Binds the shared sink references of all devices, called after the registry was restored.
+	 */
+	public void bindSharedSinks() {
+		synchronized(deviceList) {
+			for (final Device device : deviceList) {
+				bindSharedSinks(device);
+			}
+		}
+	}
+	
+	/**
+	 * Binds the shared sink references of the given device to their definitions. Must be called again when a
+	 * reference was added or the ID or name of the device changed, since they are written as tags. Adding a device
+	 * and {@link #changeDeviceId(Device, int)} bind the references.
+	 * 
+	 * @param device the device
+	 */
+	public void bindSharedSinks(final Device device) {
+		for (final IDataSink sink : device.getSinks()) {
+			if (sink instanceof SharedSink shared) {
+				final IDataSink definition = getSharedSink(shared.getSharedId()).orElse(null);
+				if (definition == null) {
+					LOG.error(() -> "Device " + device.getId() + " refers to undefined shared sink " + shared.getSharedId());
+				}
+				shared.bind(definition, device.getId(), device.getName());
+			}
+		}
+	}
 }
@@ -0,0 +1,287 @@
+package de.mechrain.device;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.mechrain.log.Logging;
+import de.mechrain.protocol.AbstractMechRainDataUnit;
+import de.mechrain.protocol.MeasurementRequestDataUnit;
+
+/**
+ * Bounded queue of requests waiting to be sent to a device.
+ * <p>
+ * A measurement request is coalesced with an identical pending request (same measurement and channel) instead of being
+ * queued twice. When the queue is full the configured {@link OverflowPolicy} applies. {@link #offer(AbstractMechRainDataUnit)}
+ * never throws, so scheduler ticks survive a stalled connection.
+ */
+public class DeviceRequestQueue extends AbstractQueue<AbstractMechRainDataUnit> {
+
+	private static final Logger LOG = LogManager.getLogger(Logging.DEVICE);
+
+	/** Maximum number of pending requests per device */
+	public static final String CAPACITY_PROPERTY = "mechrain.requests.capacity";
+	/** {@link OverflowPolicy} applied when the queue is full */
+	public static final String OVERFLOW_PROPERTY = "mechrain.requests.overflow";
+
+	/**
+	 * Behavior when a request is offered to a full queue.
+	 */
+	public enum OverflowPolicy {
+		/** Drop the oldest pending request to make room for the new one */
+		DROP_OLDEST,
+		/** Silently drop the new request */
+		DROP_NEWEST,
+		/** Reject the new request and log it */
+		REJECT
+	}
+
+	private enum Enqueued {
+		QUEUED,
+		COALESCED,
+		REFUSED
+	}
+
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final ArrayDeque<AbstractMechRainDataUnit> queue;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * Creates a queue configured by the {@value #CAPACITY_PROPERTY} (default 10) and {@value #OVERFLOW_PROPERTY}
+	 * (default DROP_OLDEST) system properties.
+	 */
+	public DeviceRequestQueue() {
+		this(Integer.getInteger(CAPACITY_PROPERTY, 10),
+				OverflowPolicy.valueOf(System.getProperty(OVERFLOW_PROPERTY, OverflowPolicy.DROP_OLDEST.name()).toUpperCase()));
+	}
+
+	public DeviceRequestQueue(final int capacity, final OverflowPolicy policy) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		this.capacity = capacity;
+		this.policy = policy;
+		this.queue = new ArrayDeque<>(capacity);
+	}
+
+	/**
+	 * Queues a request unless an identical measurement request is already pending.
+	 *
+	 * @param request the request to queue
+	 * @return true if the request is pending after the call (queued or coalesced), false if it was dropped or rejected
+	 */
+	@Override
+	public boolean offer(final AbstractMechRainDataUnit request) {
+		return enqueue(request) != Enqueued.REFUSED;
+	}
+
+	/**
+	 * Queues a request unless an identical measurement request is already pending and tells whether the given object
+	 * itself will be sent.
+	 *
+	 * @param request the request to queue
+	 * @return true if the request was queued, false if it was coalesced into a pending request, dropped or rejected
+	 */
+	public boolean offerInstance(final AbstractMechRainDataUnit request) {
+		return enqueue(request) == Enqueued.QUEUED;
+	}
+
+	private Enqueued enqueue(final AbstractMechRainDataUnit request) {
+		lock.lock();
+		try {
+			if (request instanceof MeasurementRequestDataUnit mreq && isPending(mreq)) {
+				coalesced.increment();
+				return Enqueued.COALESCED;
+			}
+			if (queue.size() >= capacity) {
+				switch (policy) {
+				case DROP_OLDEST:
+					final AbstractMechRainDataUnit oldest = queue.poll();
+					dropped.increment();
+					LOG.debug(() -> "Request queue full, dropped " + oldest);
+					break;
+				case DROP_NEWEST:
+					dropped.increment();
+					LOG.debug(() -> "Request queue full, dropped " + request);
+					return Enqueued.REFUSED;
+				case REJECT:
+				default:
+					rejected.increment();
+					LOG.warn(() -> "Request queue full, rejected " + request);
+					return Enqueued.REFUSED;
+				}
+			}
+			queue.add(request);
+			notEmpty.signal();
+			return Enqueued.QUEUED;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Same as {@link #offer(AbstractMechRainDataUnit)}, never throws when the queue is full.
+	 */
+	@Override
+	public boolean add(final AbstractMechRainDataUnit request) {
+		return offer(request);
+	}
+
+	private boolean isPending(final MeasurementRequestDataUnit request) {
+		final int key = request.getRequestKey();
+		for (final AbstractMechRainDataUnit pending : queue) {
+			if (pending instanceof MeasurementRequestDataUnit mreq && mreq.getRequestKey() == key) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public AbstractMechRainDataUnit poll() {
+		lock.lock();
+		try {
+			return queue.poll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Retrieves and removes the head of the queue, waiting up to the given time for a request to become available.
+	 *
+	 * @param timeout how long to wait
+	 * @param unit    the unit of the timeout
+	 * @return the head of the queue or null if the timeout elapsed
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public AbstractMechRainDataUnit poll(final long timeout, final TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (queue.isEmpty()) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return queue.poll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes all pending requests and adds them to the given collection.
+	 *
+	 * @param c the collection to add the requests to
+	 * @return the number of requests transferred
+	 */
+	public int drainTo(final Collection<? super AbstractMechRainDataUnit> c) {
+		lock.lock();
+		try {
+			final int n = queue.size();
+			AbstractMechRainDataUnit request;
+			while ((request = queue.poll()) != null) {
+				c.add(request);
+			}
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public AbstractMechRainDataUnit peek() {
+		lock.lock();
+		try {
+			return queue.peek();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void clear() {
+		lock.lock();
+		try {
+			queue.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gets a snapshot iterator, modifications of the queue are not reflected.
+	 */
+	@Override
+	public Iterator<AbstractMechRainDataUnit> iterator() {
+		lock.lock();
+		try {
+			return new ArrayList<>(queue).iterator();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean addAll(final Collection<? extends AbstractMechRainDataUnit> c) {
+		boolean modified = false;
+		for (final AbstractMechRainDataUnit request : c) {
+			modified |= offer(request);
+		}
+		return modified;
+	}
+
+	/**
+	 * Gets the number of measurement requests merged into an identical pending request.
+	 *
+	 * @return the number of coalesced requests
+	 */
+	public long getCoalesced() {
+		return coalesced.sum();
+	}
+
+	/**
+	 * Gets the number of requests dropped by the DROP_OLDEST or DROP_NEWEST policy.
+	 *
+	 * @return the number of dropped requests
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Gets the number of requests rejected by the REJECT policy.
+	 *
+	 * @return the number of rejected requests
+	 */
+	public long getRejected() {
+		return rejected.sum();
+	}
+}
@@ -0,0 +1,290 @@
+package de.mechrain.device;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import de.mechrain.protocol.MRP;
+import de.mechrain.protocol.MeasurementRecord;
+
+/**
+ * Keeps the recent values of each series of a device, a series being the values of one type and channel. Each series
+ * has a ring of the last {@value #DEFAULT_HISTORY} values (see {@link #HISTORY_PROPERTY}), the newest one being the
+ * latest value.
+ * <p>
+ * Updated without locks by the thread reading the connection of the device. Readers on other threads get consistent
+ * values through a sequence number per series: the writer makes it odd before and even after changing the series,
+ * readers retry while it is odd or changed during their read. The series are found in an open addressing table and
+ * their values kept in primitive arrays indexed by slot. Adding a series publishes a copy of the table, which happens
+ * once per series. The memory of a series is fixed by the history length and the number of series per device is
+ * bounded by {@link #MAX_SERIES_PROPERTY}.
+ */
+public final class LatestValueCache {
+
+	/** Number of recent values kept per series (default 32) */
+	public static final String HISTORY_PROPERTY = "mechrain.cache.history";
+	/** Maximum number of series per device, values of further series are not cached (default 256) */
+	public static final String MAX_SERIES_PROPERTY = "mechrain.cache.maxSeries";
+
+	private static final int DEFAULT_HISTORY = 32;
+	private static final MRP[] MRPS = MRP.values();
+
+	private final int history;
+	private final int maxSeries;
+	private volatile State state;
+	/* written by the writer only */
+	private volatile long rejected;
+
+	public LatestValueCache() {
+		this.history = Math.max(1, Integer.getInteger(HISTORY_PROPERTY, DEFAULT_HISTORY));
+		this.maxSeries = Math.max(1, Integer.getInteger(MAX_SERIES_PROPERTY, 256));
+		this.state = new State(new int[16], new int[16], new int[8], 0, 8, history);
+	}
+
+	private static int key(final MRP mrp, final int channel) {
+		return (channel & 0xFFFF) << 8 | mrp.ordinal();
+	}
+
+	private static int hash(final int key) {
+		final int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Adds a measurement as latest value of its series. Must only be called by one thread at a time.
+	 *
+	 * @param record the measurement
+	 */
+	void update(final MeasurementRecord record) {
+		update(record.getMrp(), record.getChannel(), record.getTimestamp(),
+				record.isFloatingPoint() ? record.getDoubleValue() : record.getLongValue());
+	}
+
+	/**
+	 * Adds a value as latest value of its series. Must only be called by one thread at a time, e.g. when restoring
+	 * the values of a snapshot before the device connects.
+	 *
+	 * @param mrp       the type of the value
+	 * @param channel   the channel or -1
+	 * @param timestamp the time of the value in milliseconds since the epoch
+	 * @param value     the value
+	 */
+	void update(final MRP mrp, final int channel, final long timestamp, final double value) {
+		final int key = key(mrp, channel);
+		State current = state;
+		int slot = current.find(key);
+		if (slot < 0) {
+			if (current.size == maxSeries) {
+				rejected++;
+				return;
+			}
+			current = add(current, key);
+			slot = current.size - 1;
+		}
+		final long sequence = current.sequences.get(slot);
+		current.sequences.setOpaque(slot, sequence + 1);
+		/* the odd sequence must be visible before any value changes */
+		VarHandle.storeStoreFence();
+		final long count = current.counts[slot];
+		final int index = slot * history + (int) (count % history);
+		current.timestamps[index] = timestamp;
+		current.values[index] = value;
+		current.counts[slot] = count + 1;
+		current.sequences.setRelease(slot, sequence + 2);
+	}
+
+	/**
+	 * Publishes a copy of the state with the given series added.
+	 */
+	private State add(final State current, final int key) {
+		final int size = current.size + 1;
+		int tableLength = current.table.length;
+		while (size * 2 > tableLength) {
+			tableLength *= 2;
+		}
+		final int capacity = size > current.capacity ? current.capacity * 2 : current.capacity;
+		final int[] keys = Arrays.copyOf(current.keys, capacity);
+		keys[size - 1] = key;
+		final int[] table = new int[tableLength];
+		final int[] tableSlots = new int[tableLength];
+		for (int slot = 0; slot < size; slot++) {
+			int entry = hash(keys[slot]) & (tableLength - 1);
+			while (table[entry] != 0) {
+				entry = (entry + 1) & (tableLength - 1);
+			}
+			table[entry] = keys[slot] + 1;
+			tableSlots[entry] = slot;
+		}
+		final State added = capacity == current.capacity
+				? new State(table, tableSlots, keys, size, current)
+				: new State(table, tableSlots, keys, size, capacity, history).copyValues(current);
+		state = added;
+		return added;
+	}
+
+	/**
+	 * Gets the number of series, the slots range from 0 to size - 1 and stay valid.
+	 */
+	public int size() {
+		return state.size;
+	}
+
+	/**
+	 * Gets the slot of a series.
+	 *
+	 * @param mrp     the type of the values
+	 * @param channel the channel or -1
+	 * @return the slot or -1 if no value of the series was cached yet
+	 */
+	public int slot(final MRP mrp, final int channel) {
+		return state.find(key(mrp, channel));
+	}
+
+	public MRP getMrp(final int slot) {
+		return MRPS[state.keys[slot] & 0xFF];
+	}
+
+	public int getChannel(final int slot) {
+		return (short) (state.keys[slot] >>> 8);
+	}
+
+	/**
+	 * Copies the recent values of a series, the newest last. Pass arrays of length 1 to get the latest value only.
+	 *
+	 * @param slot       the slot of the series
+	 * @param timestamps receives the timestamps in milliseconds since the epoch
+	 * @param values     receives the values
+	 * @return the number of values copied, at most the length of the arrays and the history length
+	 */
+	public int read(final int slot, final long[] timestamps, final double[] values) {
+		final State current = state;
+		while (true) {
+			final long sequence = current.sequences.getAcquire(slot);
+			if ((sequence & 1) != 0) {
+				Thread.onSpinWait();
+				continue;
+			}
+			final long count = current.counts[slot];
+			final int copied = (int) Math.min(Math.min(count, history), Math.min(timestamps.length, values.length));
+			for (int i = 0; i < copied; i++) {
+				final int index = slot * history + (int) ((count - copied + i) % history);
+				timestamps[i] = current.timestamps[index];
+				values[i] = current.values[index];
+			}
+			/* the values must be read before the sequence is checked again */
+			VarHandle.loadLoadFence();
+			if (current.sequences.getOpaque(slot) == sequence) {
+				return copied;
+			}
+		}
+	}
+
+	public int getHistory() {
+		return history;
+	}
+
+	/**
+	 * Gets the memory taken by the values and index of one series.
+	 *
+	 * @return the size in bytes
+	 */
+	public long getBytesPerSeries() {
+		/* ring of timestamps and values, count and sequence, key and two table entries */
+		return history * 16L + 16 + 4 + 16;
+	}
+
+	/**
+	 * Gets the memory taken by the arrays of this cache, including unused capacity.
+	 *
+	 * @return the size in bytes
+	 */
+	public long getBytes() {
+		final State current = state;
+		return current.timestamps.length * 16L + current.capacity * 16L + current.keys.length * 4L
+				+ current.table.length * 8L;
+	}
+
+	/**
+	 * Adds the counters of this cache to the given statistics.
+	 *
+	 * @param prefix     the prefix of the counter names
+	 * @param statistics counter names mapped to their values
+	 */
+	public void collectStatistics(final String prefix, final Map<String, Number> statistics) {
+		statistics.put(prefix + ".series", size());
+		statistics.put(prefix + ".bytes", getBytes());
+		statistics.put(prefix + ".bytesPerSeries", getBytesPerSeries());
+		statistics.put(prefix + ".rejected", rejected);
+	}
+
+	/**
+	 * The series and their values, replaced as a whole when a series is added. The value arrays are shared with the
+	 * previous state unless they had to grow.
+	 */
+	private static final class State {
+
+		/* key + 1 of each table entry, 0 marks a free entry */
+		private final int[] table;
+		private final int[] tableSlots;
+		/* keys by slot */
+		private final int[] keys;
+		private final int size;
+		private final int capacity;
+		private final AtomicLongArray sequences;
+		private final long[] counts;
+		/* rings of the series, history entries per slot */
+		private final long[] timestamps;
+		private final double[] values;
+
+		private State(final int[] table, final int[] tableSlots, final int[] keys, final int size, final int capacity,
+				final int history) {
+			this.table = table;
+			this.tableSlots = tableSlots;
+			this.keys = keys;
+			this.size = size;
+			this.capacity = capacity;
+			this.sequences = new AtomicLongArray(capacity);
+			this.counts = new long[capacity];
+			this.timestamps = new long[capacity * history];
+			this.values = new double[capacity * history];
+		}
+
+		private State(final int[] table, final int[] tableSlots, final int[] keys, final int size, final State values) {
+			this.table = table;
+			this.tableSlots = tableSlots;
+			this.keys = keys;
+			this.size = size;
+			this.capacity = values.capacity;
+			this.sequences = values.sequences;
+			this.counts = values.counts;
+			this.timestamps = values.timestamps;
+			this.values = values.values;
+		}
+
+		/**
+		 * Copies the values of the previous state, called by the writer before publishing.
+		 */
+		private State copyValues(final State previous) {
+			for (int slot = 0; slot < previous.size; slot++) {
+				sequences.set(slot, previous.sequences.get(slot));
+			}
+			System.arraycopy(previous.counts, 0, counts, 0, previous.size);
+			System.arraycopy(previous.timestamps, 0, timestamps, 0, previous.timestamps.length);
+			System.arraycopy(previous.values, 0, values, 0, previous.values.length);
+			return this;
+		}
+
+		private int find(final int key) {
+			final int mask = table.length - 1;
+			int entry = hash(key) & mask;
+			while (table[entry] != 0) {
+				if (table[entry] == key + 1) {
+					return tableSlots[entry];
+				}
+				entry = (entry + 1) & mask;
+			}
+			return -1;
+		}
+	}
+}
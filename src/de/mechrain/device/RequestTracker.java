@@ -0,0 +1,318 @@
+package de.mechrain.device;
+
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.mechrain.log.Logging;
+import de.mechrain.protocol.AbstractMechRainDataUnit;
+import de.mechrain.protocol.DeviceSettingRequestDataUnit;
+import de.mechrain.protocol.HeartbeatDataUnit;
+import de.mechrain.protocol.MRP;
+import de.mechrain.protocol.MeasurementRequestDataUnit;
+import de.mechrain.util.HashedWheelTimer;
+import de.mechrain.util.HashedWheelTimer.Timeout;
+import de.mechrain.util.LatencyHistogram;
+
+/**
+ * Tracks the requests sent to a device until the device answers them.
+ * <p>
+ * The protocol carries no correlation ID, so responses are matched first in, first out by the MRP they answer:
+ * measurement requests by their measurement, setting requests by their setting and all other commands by an ACK.
+ * Measurement and setting requests that are not answered within the timeout are queued again up to the configured
+ * number of retries, commands are not repeated since they may not be idempotent.
+ * A timed out request stays tracked as expired for another timeout, so a late response answers it instead of being
+ * taken for the response to a newer request of the same type, e.g. of another channel.
+ * Round-trip latencies are recorded per device and per MRP.
+ */
+public class RequestTracker {
+
+	private static final Logger LOG = LogManager.getLogger(Logging.DEVICE);
+
+	/** Time in ms after which an unanswered request times out (default 5000) */
+	public static final String TIMEOUT_PROPERTY = "mechrain.requests.timeoutMs";
+	/** Number of times a timed out measurement or setting request is sent again (default 1) */
+	public static final String RETRIES_PROPERTY = "mechrain.requests.retries";
+	/** Maximum number of unanswered requests, scheduled measurements are skipped while exceeded (default 8) */
+	public static final String MAX_IN_FLIGHT_PROPERTY = "mechrain.requests.maxInFlight";
+
+	private final Device device;
+	private final long timeoutMillis;
+	private final int maxRetries;
+	private final int maxInFlight;
+
+	/* guarded by this */
+	private final ArrayDeque<Outstanding> outstanding = new ArrayDeque<>();
+	/* expired entries in outstanding, guarded by this */
+	private int expired;
+	/* attempts of requests queued again after a timeout, guarded by this */
+	private final Map<AbstractMechRainDataUnit, Integer> retrying = new IdentityHashMap<>();
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LatencyHistogram[] latencyByMrp = new LatencyHistogram[MRP.values().length];
+
+	private final LongAdder timeouts = new LongAdder();
+	private final LongAdder retries = new LongAdder();
+	private final LongAdder throttled = new LongAdder();
+	private final LongAdder unmatched = new LongAdder();
+	private final LongAdder late = new LongAdder();
+
+	/**
+	 * Creates a tracker configured by the {@value #TIMEOUT_PROPERTY}, {@value #RETRIES_PROPERTY} and
+	 * {@value #MAX_IN_FLIGHT_PROPERTY} system properties.
+	 *
+	 * @param device the device the requests are sent to, timed out requests are queued on it again
+	 */
+	public RequestTracker(final Device device) {
+		this.device = device;
+		this.timeoutMillis = Long.getLong(TIMEOUT_PROPERTY, 5000);
+		this.maxRetries = Integer.getInteger(RETRIES_PROPERTY, 1);
+		this.maxInFlight = Integer.getInteger(MAX_IN_FLIGHT_PROPERTY, 8);
+	}
+
+	/**
+	 * Gets the MRP of the data unit answering the given request.
+	 *
+	 * @param request the request
+	 * @return the MRP of the expected response or null if the request is not answered
+	 */
+	static MRP expectedResponse(final AbstractMechRainDataUnit request) {
+		if (request instanceof MeasurementRequestDataUnit mreq) {
+			return mreq.getMeasurementId();
+		} else if (request instanceof DeviceSettingRequestDataUnit sreq) {
+			return sreq.getSettingId();
+		} else if (request instanceof HeartbeatDataUnit) {
+			/* the device sends heartbeats on its own, they cannot be told apart from answers */
+			return null;
+		}
+		return MRP.ACK;
+	}
+
+	/**
+	 * Checks whether further scheduled requests should be sent.
+	 *
+	 * @return true if the number of unanswered requests reached the limit, the caller should skip its request
+	 */
+	public boolean isSaturated() {
+		final boolean saturated;
+		synchronized (this) {
+			saturated = outstanding.size() - expired >= maxInFlight;
+		}
+		if (saturated) {
+			throttled.increment();
+		}
+		return saturated;
+	}
+
+	/**
+	 * Starts tracking a request that has just been written to the device.
+	 *
+	 * @param request the request
+	 */
+	public void sent(final AbstractMechRainDataUnit request) {
+		final MRP expected = expectedResponse(request);
+		if (expected == null) {
+			return;
+		}
+		final Outstanding entry;
+		synchronized (this) {
+			final Integer previousAttempts = retrying.remove(request);
+			entry = new Outstanding(request, expected, previousAttempts != null ? previousAttempts + 1 : 1);
+			outstanding.add(entry);
+		}
+		entry.timeout = HashedWheelTimer.shared().schedule(() -> expire(entry), timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Matches a data unit received from the device to the oldest request it answers.
+	 *
+	 * @param response the received data unit
+	 * @return true if the data unit answered a tracked request
+	 */
+	public boolean received(final AbstractMechRainDataUnit response) {
+		return received(response.getId()) != null;
+	}
+
+	/**
+	 * Matches a response of the given type to the oldest request it answers. A late response to an expired request
+	 * answers the retry of that request if one is outstanding, otherwise the expired request itself.
+	 *
+	 * @param mrp the type of the received data unit
+	 * @return the answered request or null if no tracked request expected the response
+	 */
+	public AbstractMechRainDataUnit received(final MRP mrp) {
+		final long now = System.nanoTime();
+		Outstanding match = null;
+		Outstanding expiredMatch = null;
+		synchronized (this) {
+			for (final Iterator<Outstanding> iterator = outstanding.iterator(); iterator.hasNext();) {
+				final Outstanding entry = iterator.next();
+				if (expiredMatch != null) {
+					if (entry.request == expiredMatch.request && ! entry.expired) {
+						iterator.remove();
+						match = entry;
+						break;
+					}
+				} else if (entry.expected == mrp) {
+					iterator.remove();
+					if ( ! entry.expired) {
+						match = entry;
+						break;
+					}
+					expired--;
+					expiredMatch = entry;
+				}
+			}
+		}
+		if (expiredMatch != null) {
+			late.increment();
+			cancel(expiredMatch);
+			if (match == null) {
+				final AbstractMechRainDataUnit request = expiredMatch.request;
+				LOG.debug(() -> "Late response to " + request + " (Device " + device.getId() + ")");
+				return request;
+			}
+		}
+		if (match == null) {
+			if (mrp == MRP.ACK) {
+				unmatched.increment();
+			}
+			return null;
+		}
+		cancel(match);
+		final long rtt = now - match.sentNanos;
+		latency.record(rtt);
+		histogram(mrp).record(rtt);
+		final AbstractMechRainDataUnit request = match.request;
+		LOG.debug(() -> "Response to " + request + " after " + TimeUnit.NANOSECONDS.toMicros(rtt) + "µs (Device " + device.getId() + ")");
+		return request;
+	}
+
+	private static void cancel(final Outstanding entry) {
+		final Timeout timeout = entry.timeout;
+		if (timeout != null) {
+			timeout.cancel();
+		}
+	}
+
+	private void expire(final Outstanding entry) {
+		final boolean retry;
+		synchronized (this) {
+			if (entry.expired || ! outstanding.contains(entry)) {
+				/* answered in the meantime */
+				return;
+			}
+			entry.expired = true;
+			expired++;
+			retry = entry.expected != MRP.ACK && entry.attempts <= maxRetries;
+			if (retry) {
+				retrying.put(entry.request, entry.attempts);
+			}
+		}
+		entry.timeout = HashedWheelTimer.shared().schedule(() -> forget(entry), timeoutMillis, TimeUnit.MILLISECONDS);
+		if (retry) {
+			retries.increment();
+			LOG.debug(() -> "No response to " + entry.request + " within " + timeoutMillis + "ms, retrying (Device " + device.getId() + ")");
+			if ( ! device.requeueRequest(entry.request)) {
+				/* an identical pending request is sent instead, this one is never sent again */
+				synchronized (this) {
+					retrying.remove(entry.request);
+				}
+			}
+		} else {
+			timeouts.increment();
+			LOG.warn(() -> "No response to " + entry.request + " after " + entry.attempts + " attempts (Device " + device.getId() + ")");
+		}
+	}
+
+	/**
+	 * Stops waiting for a late response to an expired request.
+	 */
+	private void forget(final Outstanding entry) {
+		synchronized (this) {
+			if (outstanding.remove(entry)) {
+				expired--;
+			}
+			/* a retry still queued by now is sent as a first attempt */
+			retrying.remove(entry.request, entry.attempts);
+		}
+	}
+
+	private LatencyHistogram histogram(final MRP mrp) {
+		LatencyHistogram histogram = latencyByMrp[mrp.ordinal()];
+		if (histogram == null) {
+			synchronized (latencyByMrp) {
+				histogram = latencyByMrp[mrp.ordinal()];
+				if (histogram == null) {
+					histogram = new LatencyHistogram();
+					latencyByMrp[mrp.ordinal()] = histogram;
+				}
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Stops tracking all requests, e.g. on disconnect. Latency histograms and counters are kept.
+	 */
+	public void clear() {
+		final Outstanding[] entries;
+		synchronized (this) {
+			entries = outstanding.toArray(new Outstanding[0]);
+			outstanding.clear();
+			expired = 0;
+			retrying.clear();
+		}
+		for (final Outstanding entry : entries) {
+			cancel(entry);
+		}
+	}
+
+	/**
+	 * Adds the tracking counters and latency percentiles to the given statistics.
+	 *
+	 * @param statistics counter names mapped to their values
+	 */
+	public void collectStatistics(final Map<String, Number> statistics) {
+		synchronized (this) {
+			statistics.put("requests.inFlight", outstanding.size() - expired);
+		}
+		statistics.put("requests.timeouts", timeouts.sum());
+		statistics.put("requests.retries", retries.sum());
+		statistics.put("requests.throttled", throttled.sum());
+		statistics.put("requests.unmatchedAcks", unmatched.sum());
+		statistics.put("requests.late", late.sum());
+		latency.collectStatistics("latency", statistics);
+		final MRP[] mrps = MRP.values();
+		for (int i = 0; i < latencyByMrp.length; i++) {
+			final LatencyHistogram histogram = latencyByMrp[i];
+			if (histogram != null) {
+				histogram.collectStatistics("latency." + mrps[i].name(), statistics);
+			}
+		}
+	}
+
+	private static final class Outstanding {
+
+		private final AbstractMechRainDataUnit request;
+		private final MRP expected;
+		private final int attempts;
+		private final long sentNanos = System.nanoTime();
+		/* the timeout, once expired the end of waiting for a late response */
+		private volatile Timeout timeout;
+		/* guarded by the tracker */
+		private boolean expired;
+
+		private Outstanding(final AbstractMechRainDataUnit request, final MRP expected, final int attempts) {
+			this.request = request;
+			this.expected = expected;
+			this.attempts = attempts;
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package de.mechrain.device;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.mechrain.device.task.MeasurementTask;
+import de.mechrain.log.Logging;
+import de.mechrain.protocol.MRP;
+import de.mechrain.util.HashedWheelTimer;
+import de.mechrain.util.HashedWheelTimer.Timeout;
+import de.mechrain.util.ThreadSupport;
+
+/**
+ * Saves the runtime state of the devices in a compact binary file and restores it at startup: the latest value of
+ * each series in the {@link LatestValueCache} and the last tick of each {@link MeasurementTask}. Restored values are
+ * available before the devices connect again and restored tasks keep their phase.
+ * <p>
+ * The snapshot is written periodically on its own thread. It is written to a temporary file that replaces the previous
+ * snapshot by an atomic move, so a crash leaves either the old or the new snapshot.
+ * <p>
+ * Layout: magic (int), version (int), time written (long), devices (int), per device: ID (int), series (int), per
+ * series: MRP (byte), channel (short), timestamp (long), value (double), tasks (int), per task: ID (int), last tick
+ * (long).
+ */
+public final class StateSnapshot {
+
+	private static final Logger LOG = LogManager.getLogger(Logging.DEVICE_REGISTRY);
+
+	/** File of the snapshot (default conf/state.bin) */
+	public static final String PATH_PROPERTY = "mechrain.snapshot.path";
+	/** Interval in ms of writing the snapshot, 0 disables snapshots (default 60000) */
+	public static final String INTERVAL_PROPERTY = "mechrain.snapshot.intervalMs";
+
+	private static final int MAGIC = 0x4D525353;
+	private static final int VERSION = 1;
+
+	/** Thread writing the snapshot, a snapshot requested while one is pending is skipped */
+	private static final ThreadPoolExecutor SNAPSHOT_EXECUTOR = ThreadSupport.newBoundedExecutor("Snapshot", 1, 1);
+
+	private final DeviceRegistry registry;
+	private final Path path;
+	private final Path tempPath;
+	private final long intervalMillis;
+	private Timeout timer;
+
+	public StateSnapshot(final DeviceRegistry registry) {
+		this.registry = registry;
+		this.path = Paths.get(System.getProperty(PATH_PROPERTY, "conf/state.bin"));
+		this.tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+		this.intervalMillis = Long.getLong(INTERVAL_PROPERTY, 60000);
+	}
+
+	/**
+	 * Restores the snapshot, must be called before the devices connect. A missing or unreadable snapshot is logged and
+	 * ignored.
+	 */
+	public void load() {
+		if (intervalMillis <= 0 || ! Files.exists(path)) {
+			return;
+		}
+		try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				LOG.warn(() -> "Ignoring snapshot " + path + " of unknown format");
+				return;
+			}
+			final long written = in.readLong();
+			final int devices = in.readInt();
+			int values = 0;
+			int tasks = 0;
+			for (int d = 0; d < devices; d++) {
+				final Optional<Device> device = registry.getDevice(in.readInt());
+				final int series = in.readInt();
+				for (int s = 0; s < series; s++) {
+					final MRP mrp = MRP.fromByte(in.readByte());
+					final int channel = in.readShort();
+					final long timestamp = in.readLong();
+					final double value = in.readDouble();
+					if (device.isPresent() && mrp != MRP.UNKNOWN) {
+						device.get().getLatestValues().update(mrp, channel, timestamp, value);
+						values++;
+					}
+				}
+				final int taskCount = in.readInt();
+				for (int t = 0; t < taskCount; t++) {
+					final int taskId = in.readInt();
+					final long lastFired = in.readLong();
+					if (device.isPresent() && restoreTask(device.get().getTasks(), taskId, lastFired)) {
+						tasks++;
+					}
+				}
+			}
+			final int restoredValues = values;
+			final int restoredTasks = tasks;
+			LOG.info(() -> "Restored " + restoredValues + " values and " + restoredTasks + " task phases from snapshot of "
+					+ (System.currentTimeMillis() - written) / 1000 + "s ago");
+		} catch (final IOException e) {
+			LOG.error(() -> "Could not read snapshot " + path, e);
+		}
+	}
+
+	private static boolean restoreTask(final List<MeasurementTask> tasks, final int taskId, final long lastFired) {
+		for (final MeasurementTask task : tasks) {
+			if (task.getId() == taskId) {
+				task.setLastFired(lastFired);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Starts writing the snapshot periodically.
+	 */
+	public synchronized void start() {
+		if (intervalMillis <= 0 || timer != null) {
+			return;
+		}
+		timer = HashedWheelTimer.shared().scheduleAtFixedRate(this::requestWrite, intervalMillis, intervalMillis,
+				TimeUnit.MILLISECONDS);
+		LOG.info(() -> "Writing snapshot to " + path + " every " + intervalMillis + "ms");
+	}
+
+	private void requestWrite() {
+		try {
+			SNAPSHOT_EXECUTOR.execute(() -> {
+				try {
+					write();
+				} catch (final IOException e) {
+					LOG.error(() -> "Could not write snapshot " + path, e);
+				}
+			});
+		} catch (final RejectedExecutionException e) {
+			LOG.debug(() -> "Snapshot still pending");
+		}
+	}
+
+	/**
+	 * Writes the snapshot now, replacing the previous one.
+	 *
+	 * @throws IOException if the snapshot cannot be written
+	 */
+	public synchronized void write() throws IOException {
+		final long start = System.nanoTime();
+		final List<Device> devices = registry.getDevices();
+		final long[] timestamps = new long[1];
+		final double[] values = new double[1];
+		final long size;
+		if (path.getParent() != null) {
+			Files.createDirectories(path.getParent());
+		}
+		try (final FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(System.currentTimeMillis());
+			synchronized (devices) {
+				out.writeInt(devices.size());
+				for (final Device device : devices) {
+					out.writeInt(device.getId());
+					final LatestValueCache cache = device.getLatestValues();
+					final int series = cache.size();
+					int written = 0;
+					for (int slot = 0; slot < series; slot++) {
+						if (cache.read(slot, timestamps, values) > 0) {
+							written++;
+						}
+					}
+					out.writeInt(written);
+					for (int slot = 0; slot < series && written > 0; slot++) {
+						if (cache.read(slot, timestamps, values) > 0) {
+							out.writeByte(cache.getMrp(slot).byteVal);
+							out.writeShort(cache.getChannel(slot));
+							out.writeLong(timestamps[0]);
+							out.writeDouble(values[0]);
+							written--;
+						}
+					}
+					final List<MeasurementTask> tasks = device.getTasks();
+					out.writeInt(tasks.size());
+					for (final MeasurementTask task : tasks) {
+						out.writeInt(task.getId());
+						out.writeLong(task.getLastFired());
+					}
+				}
+			}
+			out.flush();
+			channel.force(false);
+			size = channel.size();
+		}
+		try {
+			Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (final AtomicMoveNotSupportedException e) {
+			Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+		LOG.debug(() -> "Wrote snapshot of " + size + " bytes in " + (System.nanoTime() - start) / 1000 + "us");
+	}
+}
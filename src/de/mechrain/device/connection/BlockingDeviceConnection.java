@@ -0,0 +1,298 @@
+package de.mechrain.device.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.mechrain.device.Device;
+import de.mechrain.device.DeviceRequestQueue;
+import de.mechrain.log.Logging;
+import de.mechrain.protocol.AbstractMechRainDataUnit;
+import de.mechrain.protocol.DataUnitFactory;
+import de.mechrain.protocol.DataUnitValidationException;
+import de.mechrain.protocol.MeasurementRecord;
+import de.mechrain.util.ThreadSupport;
+import de.mechrain.util.Util;
+
+/**
+ * Device connection using blocking socket I/O with a dedicated read and request thread.
+ */
+public class BlockingDeviceConnection implements IDeviceConnection {
+
+	private static final Logger LOG_DATA = LogManager.getLogger(Logging.DATA);
+	private static final Logger LOG = LogManager.getLogger(Logging.DEVICE);
+
+	/** Time in ms the request thread waits for further requests after the first one before writing (default 2) */
+	public static final String WRITE_LINGER_PROPERTY = "mechrain.write.lingerMs";
+
+	private final Socket socket;
+	private final InputStream is;
+	private final OutputStream os;
+
+	private ReadThread readThread;
+	private RequestThread requestThread;
+
+	public BlockingDeviceConnection(final Socket socket, final InputStream is, final OutputStream os) {
+		this.socket = socket;
+		this.is = is;
+		this.os = os;
+	}
+
+	@Override
+	public void open(final Device device) throws IOException {
+		/*
+		 * Enable TCP keepalive (OS-level) and set a reasonable SO_TIMEOUT so read() can
+		 * detect network failures
+		 */
+		socket.setKeepAlive(true);
+		socket.setSoTimeout(device.getTimeout());
+		socket.setTcpNoDelay(Boolean.parseBoolean(System.getProperty(TCP_NO_DELAY_PROPERTY, "true")));
+		this.readThread = new ReadThread(is, device);
+		readThread.start("ReadThread(" + device.getId() + ")");
+		this.requestThread = new RequestThread(os, device, device.getRequests());
+		requestThread.start("RequestThread(" + device.getId() + ")");
+	}
+
+	@Override
+	public void requestsQueued() {
+		/* request thread is blocked on the request queue */
+	}
+
+	@Override
+	public void collectStatistics(final Map<String, Number> statistics) {
+		final RequestThread current = requestThread;
+		if (current != null) {
+			final long frames = current.frames.sum();
+			final long writes = current.writes.sum();
+			statistics.put("write.frames", frames);
+			statistics.put("write.calls", writes);
+			statistics.put("write.framesPerSyscall", writes > 0 ? (double) frames / writes : 0.0);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			socket.close();
+		} catch (final IOException e) {
+			LOG.error("I/O Error closing socket", e);
+		}
+		stop(readThread);
+		stop(requestThread);
+	}
+
+	private static void stop(final LoopThread loop) {
+		if (loop == null) {
+			return;
+		}
+		loop.end();
+		final Thread thread = loop.thread;
+		if (thread == Thread.currentThread()) {
+			/* disconnect triggered by the loop itself, it ends once the call returns */
+			return;
+		}
+		if (thread.isAlive() && ! thread.isInterrupted()) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (final InterruptedException e) {
+				LOG.debug(() -> "Interrupted while waiting for " + thread.getName(), e);
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Connection loop running on a platform or virtual thread, see {@link ThreadSupport}.
+	 */
+	private abstract static class LoopThread implements Runnable {
+
+		protected final Device device;
+		protected volatile boolean run = true;
+		private Thread thread;
+
+		private LoopThread(final Device device) {
+			this.device = device;
+		}
+
+		public void start(final String name) {
+			this.thread = ThreadSupport.start(name, this);
+		}
+
+		public void end() {
+			this.run = false;
+		}
+	}
+
+	private static class RequestThread extends LoopThread {
+
+		private final OutputStream os;
+		private final DeviceRequestQueue requests;
+		private final long lingerMillis = Long.getLong(WRITE_LINGER_PROPERTY, 2);
+		private final List<AbstractMechRainDataUnit> batch = new ArrayList<>();
+		private final LongAdder frames = new LongAdder();
+		private final LongAdder writes = new LongAdder();
+		private ByteBuffer buffer = ByteBuffer.allocate(512);
+
+		private RequestThread(final OutputStream os, final Device device,
+				final DeviceRequestQueue requests) {
+			super(device);
+			this.os = os;
+			this.requests = requests;
+		}
+
+		@Override
+		public void run() {
+			while (run) {
+				try {
+					final AbstractMechRainDataUnit first = requests.poll(60, TimeUnit.SECONDS);
+					if (first != null) {
+						batch.add(first);
+						if (lingerMillis > 0) {
+							/* give requests of the same tick the chance to go out in the same segment */
+							Thread.sleep(lingerMillis);
+						}
+						requests.drainTo(batch);
+						write();
+					}
+				} catch (final InterruptedException e) {
+					LOG.debug(() -> "Interrupted (Device " + device.getId() + ")", e);
+					run = false;
+					Thread.currentThread().interrupt();
+				} catch (final IOException e) {
+					LOG.error(() -> "Error sending data unit (Device " + device.getId() + ")", e);
+					run = false;
+				} finally {
+					batch.clear();
+				}
+			}
+			LOG.info("Request thread ended (Device " + device.getId() + ")");
+			requests.clear();
+			device.disconnect();
+		}
+
+		/**
+		 * Encodes all requests of the current batch into the reusable buffer and writes them with a single call.
+		 */
+		private void write() throws IOException {
+			buffer.clear();
+			for (final AbstractMechRainDataUnit request : batch) {
+				LOG_DATA.debug(() -> "Sending data unit (Device " + device.getId() + ") " + request);
+				LOG_DATA.trace(() -> "Data: " + Util.BYTES2HEX(request.toBytes()));
+				if (buffer.remaining() < request.getEncodedLength()) {
+					final ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.position() + request.getEncodedLength(), buffer.capacity() * 2));
+					buffer.flip();
+					buffer = larger.put(buffer);
+				}
+				request.encodeTo(buffer);
+			}
+			os.write(buffer.array(), 0, buffer.position());
+			os.flush();
+			for (final AbstractMechRainDataUnit request : batch) {
+				device.requestSent(request);
+			}
+			frames.add(batch.size());
+			writes.increment();
+		}
+	}
+
+	private static class ReadThread extends LoopThread {
+
+		private final InputStream is;
+
+		private ReadThread(final InputStream is, final Device device) {
+			super(device);
+			this.is = is;
+		}
+
+		@Override
+		public void run() {
+			final byte[] header = new byte[3];
+			final DataUnitFactory duf = new DataUnitFactory();
+			final MeasurementRecord record = new MeasurementRecord();
+			int timeoutCounter = 0;
+			final int maxTimeouts = 3; // after 3 consecutive timeouts treat as disconnected
+			try {
+				while (run) {
+					int readSoFar = 0;
+					try {
+						while (readSoFar < header.length) {
+							final int bytesRead = is.read(header, readSoFar, header.length - readSoFar);
+							if (bytesRead == -1) {
+								// EOF - remote closed connection
+								LOG.info("Input stream no longer available");
+								run = false;
+								break;
+							}
+							readSoFar += bytesRead;
+						}
+						/* if we got here with full header, reset timeout counter */
+						if (readSoFar == header.length) {
+							timeoutCounter = 0;
+						}
+					} catch (final SocketTimeoutException ste) {
+						/* read timed out - increment counter and possibly treat as disconnected */
+						++timeoutCounter;
+						LOG.debug("Socket read timed out (Device " + device.getId() + ") - count " + timeoutCounter, ste);
+						if (timeoutCounter < maxTimeouts) {
+							/* try again */
+							continue;
+						} else {
+							LOG.warn("Connection appears dead after " + timeoutCounter + " read timeouts (Device "
+									+ device.getId() + ")");
+							run = false;
+							break;
+						}
+					}
+					if (!run) {
+						break;
+					}
+					if (readSoFar != header.length) {
+						/* we already logged EOF above; but safeguard */
+						LOG_DATA.error("Invalid number of header bytes " + readSoFar);
+						run = false;
+						break;
+					}
+					LOG_DATA.trace(() -> "Header: " + Util.BYTES2HEX(header, 3));
+
+					try {
+						final ByteBuffer frame = duf.readFrame(header, is);
+						if (frame == null) {
+							/* stream ended, the next read reports EOF */
+							continue;
+						}
+						if (duf.decodeMeasurement(frame, record)) {
+							device.handleMeasurement(record);
+						} else {
+							device.handleDataUnit(duf.decode(frame));
+						}
+					} catch (final DataUnitValidationException e) {
+						LOG_DATA.error(() -> "Error receiving data unit (Device " + device.getId() + ")", e);
+					}
+
+				}
+			} catch (final IOException e) {
+				LOG.error("I/O Error (Device " + device.getId() + ")", e);
+			} finally {
+				try {
+					is.close();
+				} catch (final IOException e) {
+					LOG.error("I/O Error in cleanup", e);
+				}
+			}
+			LOG.info("Read thread ended (Device " + device.getId() + ")");
+			device.disconnect();
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package de.mechrain.device.connection;
+
+import java.io.IOException;
+import java.util.Map;
+
+import de.mechrain.device.Device;
+
+/**
+ * Transport of a connected device. Implementations read data units from the device, hand them to
+ * {@link Device#handleDataUnit(de.mechrain.protocol.AbstractMechRainDataUnit)} and write the requests queued on the device.
+ */
+public interface IDeviceConnection {
+
+	/** Enables TCP_NODELAY on device sockets (default true), requests are batched by the connection itself */
+	String TCP_NO_DELAY_PROPERTY = "mechrain.tcp.noDelay";
+
+	/**
+	 * Starts reading from and writing to the device.
+	 *
+	 * @param device the device this connection belongs to
+	 * @throws IOException if the connection could not be set up
+	 */
+	void open(Device device) throws IOException;
+
+	/**
+	 * Signals that new requests have been queued on the device and should be written.
+	 */
+	void requestsQueued();
+
+	/**
+	 * Adds the counters of this connection to the given statistics.
+	 *
+	 * @param statistics counter names mapped to their values
+	 */
+	void collectStatistics(Map<String, Number> statistics);
+
+	/**
+	 * Closes the connection and releases all resources held by it.
+	 */
+	void close();
+}
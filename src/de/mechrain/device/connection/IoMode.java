@@ -0,0 +1,23 @@
+package de.mechrain.device.connection;
+
+/**
+ * Connection engine used for device sockets.
+ */
+public enum IoMode {
+
+	/** Two blocking threads (read and request) per connected device */
+	BLOCKING,
+	/** All device sockets are multiplexed over a small pool of selector threads */
+	NIO;
+
+	public static final String PROPERTY = "mechrain.io";
+
+	/**
+	 * Gets the I/O mode configured by the {@value #PROPERTY} system property, defaults to {@link #BLOCKING}.
+	 *
+	 * @return the configured I/O mode
+	 */
+	public static IoMode configured() {
+		return IoMode.valueOf(System.getProperty(PROPERTY, BLOCKING.name()).toUpperCase());
+	}
+}
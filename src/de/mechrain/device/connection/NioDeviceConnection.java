@@ -0,0 +1,246 @@
+package de.mechrain.device.connection;
+
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.mechrain.device.Device;
+import de.mechrain.device.DeviceRequestQueue;
+import de.mechrain.log.Logging;
+import de.mechrain.protocol.AbstractMechRainDataUnit;
+import de.mechrain.protocol.DataUnitFactory;
+import de.mechrain.protocol.DataUnitValidationException;
+import de.mechrain.protocol.MeasurementRecord;
+import de.mechrain.util.Util;
+
+/**
+ * Device connection driven by a {@link NioEventLoop}. Frames are assembled from non-blocking reads and queued requests
+ * are written from the loop thread whenever the channel is writable.
+ */
+public class NioDeviceConnection implements IDeviceConnection {
+
+	private static final Logger LOG_DATA = LogManager.getLogger(Logging.DATA);
+	private static final Logger LOG = LogManager.getLogger(Logging.DEVICE);
+
+	private static final int HEADER_LENGTH = AbstractMechRainDataUnit.HEADER_LENGTH;
+	/** Consecutive read timeouts after which a silent connection is treated as dead, same as the blocking read thread */
+	private static final int MAX_TIMEOUTS = 3;
+
+	private final SocketChannel channel;
+	private final NioEventLoop loop;
+	private final DataUnitFactory duf = new DataUnitFactory();
+	private final MeasurementRecord record = new MeasurementRecord();
+	private final AtomicBoolean writeScheduled = new AtomicBoolean();
+
+	private ByteBuffer readBuffer = ByteBuffer.allocate(512);
+	private ByteBuffer writeBuffer = ByteBuffer.allocate(512).flip();
+
+	private Device device;
+	private DeviceRequestQueue requests;
+	private SelectionKey key;
+	private volatile long lastReadMillis;
+	/* set by close, events of a closed connection must not disconnect the device from its next connection */
+	private volatile boolean closed;
+	/* only written by the loop thread */
+	private volatile long frames;
+	private volatile long writes;
+
+	public NioDeviceConnection(final SocketChannel channel, final NioEventLoopGroup group) {
+		this.channel = channel;
+		this.loop = group.next();
+	}
+
+	@Override
+	public void open(final Device device) throws IOException {
+		this.device = device;
+		this.requests = device.getRequests();
+		this.lastReadMillis = System.currentTimeMillis();
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, Boolean.parseBoolean(System.getProperty(TCP_NO_DELAY_PROPERTY, "true")));
+		loop.execute(() -> {
+			try {
+				key = channel.register(loop.getSelector(), SelectionKey.OP_READ, this);
+				flush();
+			} catch (final ClosedChannelException e) {
+				LOG.warn(() -> "Channel closed before registration (Device " + device.getId() + ")");
+				disconnectDevice();
+			}
+		});
+	}
+
+	@Override
+	public void requestsQueued() {
+		if (writeScheduled.compareAndSet(false, true)) {
+			loop.execute(() -> {
+				writeScheduled.set(false);
+				flush();
+			});
+		}
+	}
+
+	@Override
+	public void collectStatistics(final Map<String, Number> statistics) {
+		final long frames = this.frames;
+		final long writes = this.writes;
+		statistics.put("write.frames", frames);
+		statistics.put("write.calls", writes);
+		statistics.put("write.framesPerSyscall", writes > 0 ? (double) frames / writes : 0.0);
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			channel.close();
+		} catch (final IOException e) {
+			LOG.error("I/O Error closing channel", e);
+		}
+	}
+
+	void onReadable() {
+		final int bytesRead;
+		try {
+			bytesRead = channel.read(readBuffer);
+		} catch (final IOException e) {
+			LOG.error("I/O Error (Device " + device.getId() + ")", e);
+			disconnectDevice();
+			return;
+		}
+		if (bytesRead == -1) {
+			LOG.info("Input stream no longer available");
+			disconnectDevice();
+			return;
+		}
+		lastReadMillis = System.currentTimeMillis();
+		readBuffer.flip();
+		try {
+			while (DataUnitFactory.hasCompleteFrame(readBuffer)) {
+				LOG_DATA.trace(() -> "Header: " + Util.BYTES2HEX(header(readBuffer), HEADER_LENGTH));
+				final int start = readBuffer.position();
+				try {
+					if (duf.decodeMeasurement(readBuffer, record)) {
+						device.handleMeasurement(record);
+					} else {
+						device.handleDataUnit(duf.decode(readBuffer));
+					}
+				} catch (final DataUnitValidationException e) {
+					LOG_DATA.error(() -> "Error receiving data unit (Device " + device.getId() + ")", e);
+				} catch (final RuntimeException e) {
+					LOG_DATA.error(() -> "Error handling data unit (Device " + device.getId() + ")", e);
+					if (readBuffer.position() == start) {
+						/* skip the frame, it would fail again */
+						readBuffer.position(start + HEADER_LENGTH + DataUnitFactory.peekLength(readBuffer));
+					}
+				}
+			}
+		} finally {
+			/* the buffer must be in write mode again, also if the loop failed */
+			readBuffer.compact();
+		}
+		if (readBuffer.position() >= HEADER_LENGTH) {
+			/* make sure the pending frame fits */
+			final int required = HEADER_LENGTH + frameLength(readBuffer, 0);
+			if (required > readBuffer.capacity()) {
+				readBuffer = grow(readBuffer, required);
+			}
+		}
+	}
+
+	/**
+	 * Disconnects the device after this connection failed, unless the connection was closed or replaced already.
+	 */
+	private void disconnectDevice() {
+		if ( ! closed) {
+			device.disconnect(this);
+		}
+	}
+
+	void onWritable() {
+		flush();
+	}
+
+	void checkIdle(final long now) {
+		if (now - lastReadMillis > (long) device.getTimeout() * MAX_TIMEOUTS) {
+			LOG.warn("Connection appears dead after " + MAX_TIMEOUTS + " read timeouts (Device " + device.getId() + ")");
+			disconnectDevice();
+		}
+	}
+
+	private void flush() {
+		if (key == null || ! key.isValid()) {
+			return;
+		}
+		try {
+			while (true) {
+				if ( ! writeBuffer.hasRemaining()) {
+					writeBuffer.clear();
+					fillWriteBuffer();
+					writeBuffer.flip();
+					if ( ! writeBuffer.hasRemaining()) {
+						key.interestOps(SelectionKey.OP_READ);
+						return;
+					}
+				}
+				channel.write(writeBuffer);
+				writes++;
+				if (writeBuffer.hasRemaining()) {
+					/* socket buffer full, continue once the channel becomes writable again */
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+		} catch (final IOException e) {
+			LOG.error(() -> "Error sending data unit (Device " + device.getId() + ")", e);
+			disconnectDevice();
+		}
+	}
+
+	private void fillWriteBuffer() {
+		AbstractMechRainDataUnit request;
+		while ((request = requests.poll()) != null) {
+			final AbstractMechRainDataUnit poll = request;
+			LOG_DATA.debug(() -> "Sending data unit (Device " + device.getId() + ") " + poll);
+			LOG_DATA.trace(() -> "Data: " + Util.BYTES2HEX(poll.toBytes()));
+			if (writeBuffer.remaining() < poll.getEncodedLength()) {
+				writeBuffer = grow(writeBuffer, writeBuffer.position() + poll.getEncodedLength());
+			}
+			poll.encodeTo(writeBuffer);
+			frames++;
+			device.requestSent(poll);
+		}
+	}
+
+	private static byte[] header(final ByteBuffer buffer) {
+		final byte[] header = new byte[HEADER_LENGTH];
+		buffer.get(buffer.position(), header);
+		return header;
+	}
+
+	private static int frameLength(final ByteBuffer buffer, final int start) {
+		return (buffer.get(start + 1) & 0xFF) << 8 | buffer.get(start + 2) & 0xFF;
+	}
+
+	/**
+	 * Replaces the given buffer in write mode by a larger one keeping its content.
+	 */
+	private static ByteBuffer grow(final ByteBuffer buffer, final int required) {
+		final ByteBuffer larger = ByteBuffer.allocate(Math.max(required, buffer.capacity() * 2));
+		buffer.flip();
+		larger.put(buffer);
+		return larger;
+	}
+
+	@Override
+	public String toString() {
+		return "NioDeviceConnection (Device " + (device != null ? device.getId() : "?") + ")";
+	}
+}
@@ -0,0 +1,106 @@
+package de.mechrain.device.connection;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.mechrain.log.Logging;
+
+/**
+ * Single selector thread serving any number of {@link NioDeviceConnection}s.
+ * All channel operations of a connection are executed on the loop thread, other threads hand over work via {@link #execute(Runnable)}.
+ */
+public class NioEventLoop implements Runnable {
+
+	private static final Logger LOG = LogManager.getLogger(Logging.DEVICE);
+
+	/** Upper bound for a select call, also the resolution of the idle connection check */
+	private static final long SELECT_TIMEOUT_MS = 1_000;
+
+	private final Selector selector;
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	private final Thread thread;
+
+	NioEventLoop(final String name) throws IOException {
+		this.selector = Selector.open();
+		this.thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	Selector getSelector() {
+		return selector;
+	}
+
+	boolean inEventLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Executes the given task on the loop thread.
+	 *
+	 * @param task the task to execute
+	 */
+	void execute(final Runnable task) {
+		if (inEventLoop()) {
+			task.run();
+		} else {
+			tasks.add(task);
+			selector.wakeup();
+		}
+	}
+
+	@Override
+	public void run() {
+		long lastIdleCheck = System.currentTimeMillis();
+		while (true) {
+			try {
+				selector.select(SELECT_TIMEOUT_MS);
+				runTasks();
+				final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				while (iterator.hasNext()) {
+					final SelectionKey key = iterator.next();
+					iterator.remove();
+					final NioDeviceConnection connection = (NioDeviceConnection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							connection.onReadable();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.onWritable();
+						}
+					} catch (final CancelledKeyException e) {
+						LOG.trace(() -> "Key cancelled for " + connection);
+					}
+				}
+				final long now = System.currentTimeMillis();
+				if (now - lastIdleCheck >= SELECT_TIMEOUT_MS) {
+					lastIdleCheck = now;
+					for (final SelectionKey key : selector.keys()) {
+						if (key.isValid()) {
+							((NioDeviceConnection) key.attachment()).checkIdle(now);
+						}
+					}
+				}
+			} catch (final IOException e) {
+				LOG.error(() -> "I/O Error in " + thread.getName(), e);
+			} catch (final RuntimeException e) {
+				LOG.error(() -> "Unexpected error in " + thread.getName(), e);
+			}
+		}
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+}
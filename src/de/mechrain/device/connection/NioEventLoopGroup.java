@@ -0,0 +1,38 @@
+package de.mechrain.device.connection;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed set of {@link NioEventLoop}s, connections are assigned round-robin.
+ */
+public class NioEventLoopGroup {
+
+	private final NioEventLoop[] loops;
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Creates a group with one event loop per available processor.
+	 *
+	 * @throws IOException if a selector could not be opened
+	 */
+	public NioEventLoopGroup() throws IOException {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public NioEventLoopGroup(final int size) throws IOException {
+		this.loops = new NioEventLoop[size];
+		for (int i = 0; i < size; i++) {
+			loops[i] = new NioEventLoop("NioEventLoop-" + i);
+		}
+	}
+
+	/**
+	 * Gets the event loop the next connection should be registered with.
+	 *
+	 * @return the next event loop
+	 */
+	NioEventLoop next() {
+		return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+	}
+}
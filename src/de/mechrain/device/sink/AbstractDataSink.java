@@ -3,6 +3,10 @@ package de.mechrain.device.sink;
 public abstract class AbstractDataSink implements IDataSink {
 	
 	private int id;
+	private SinkDispatcher.Backpressure backpressure;
+	private Aggregation aggregation;
+	private Deadband deadband;
+	private transient CircuitBreaker circuitBreaker;
 	
 	@Override
 	public int getId() {
@@ -12,6 +16,55 @@ public abstract class AbstractDataSink implements IDataSink {
 	public void setId(final int id) {
 		this.id = id;
 	}
+	
+	@Override
+	public SinkDispatcher.Backpressure getBackpressure() {
+		return backpressure;
+	}
+	
+	public void setBackpressure(final SinkDispatcher.Backpressure backpressure) {
+		this.backpressure = backpressure;
+	}
+	
+	@Override
+	public Aggregation getAggregation() {
+		return aggregation;
+	}
+	
+	public void setAggregation(final Aggregation aggregation) {
+		this.aggregation = aggregation;
+	}
+	
+	@Override
+	public Deadband getDeadband() {
+		return deadband;
+	}
+	
+	public void setDeadband(final Deadband deadband) {
+		this.deadband = deadband;
+	}
+	
+	/**
+	 * Gets the circuit breaker guarding the connection of this sink, it is created on first use and probes with
+	 * {@link #probe()}.
+	 * 
+	 * @return the circuit breaker
+	 */
+	protected synchronized CircuitBreaker getCircuitBreaker() {
+		if (circuitBreaker == null) {
+			circuitBreaker = new CircuitBreaker(getClass().getSimpleName() + ' ' + id, this::probe);
+		}
+		return circuitBreaker;
+	}
+	
+	/**
+	 * Checks whether the connection is usable again while the circuit breaker is open. Called on a probe thread.
+	 * 
+	 * @return true if the sink can handle values again
+	 */
+	protected boolean probe() {
+		return false;
+	}
 
 	private static final long serialVersionUID = 884828949282878085L;
 
@@ -1,6 +1,9 @@
 package de.mechrain.device.sink;
 
-import java.util.List;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
 
 import de.mechrain.protocol.MRP;
 
@@ -11,9 +14,29 @@ public abstract class AbstractFilteredDataSink extends AbstractDataSink {
     
 	private static final long serialVersionUID = -5083665113119106450L;
 	
-	protected final List<MRP> filter;
+	/* a bit per MRP ordinal, null accepts all types */
+	protected final EnumSet<MRP> filter;
 	
-	protected AbstractFilteredDataSink(final List<MRP> filter) {
-		this.filter = filter;
+	protected AbstractFilteredDataSink(final Collection<MRP> filter) {
+		if (filter == null) {
+			this.filter = null;
+		} else {
+			this.filter = EnumSet.noneOf(MRP.class);
+			this.filter.addAll(filter);
+		}
+	}
+	
+	@Override
+	public boolean accepts(final MRP mrp) {
+		return filter == null || filter.contains(mrp);
+	}
+	
+	/**
+	 * Gets the types handled by this sink.
+	 * 
+	 * @return the accepted types or null if all types are accepted
+	 */
+	public Set<MRP> getFilter() {
+		return filter == null ? null : Collections.unmodifiableSet(filter);
 	}
 }
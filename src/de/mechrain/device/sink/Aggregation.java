@@ -0,0 +1,51 @@
+package de.mechrain.device.sink;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.StringJoiner;
+
+import de.mechrain.protocol.MeasurementRecord.Aggregate;
+
+/**
+ * Configures the downsampling of the measurements handed to a sink. Measurements are collected in tumbling windows
+ * aligned to the wall clock, e.g. full minutes, and only the selected statistics of each window are written.
+ */
+public class Aggregation implements Serializable {
+
+	private static final long serialVersionUID = -2470566190512738263L;
+
+	private final long windowMillis;
+	private final EnumSet<Aggregate> aggregates;
+
+	/**
+	 * @param windowMillis the length of the windows in milliseconds
+	 * @param aggregates   the statistics written per window, all if null or empty
+	 */
+	public Aggregation(final long windowMillis, final Collection<Aggregate> aggregates) {
+		if (windowMillis <= 0) {
+			throw new IllegalArgumentException("Window must be positive");
+		}
+		this.windowMillis = windowMillis;
+		this.aggregates = aggregates == null || aggregates.isEmpty() ? EnumSet.allOf(Aggregate.class) : EnumSet.copyOf(aggregates);
+	}
+
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	public Set<Aggregate> getAggregates() {
+		return Collections.unmodifiableSet(aggregates);
+	}
+
+	@Override
+	public String toString() {
+		final StringJoiner sj = new StringJoiner(",");
+		for (final Aggregate aggregate : aggregates) {
+			sj.add(aggregate.name());
+		}
+		return windowMillis + "ms <" + sj + '>';
+	}
+}
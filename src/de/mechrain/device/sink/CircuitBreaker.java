@@ -0,0 +1,242 @@
+package de.mechrain.device.sink;
+
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.mechrain.log.Logging;
+import de.mechrain.util.HashedWheelTimer;
+import de.mechrain.util.HashedWheelTimer.Timeout;
+import de.mechrain.util.ThreadSupport;
+
+/**
+ * Guards the connection of a sink. After repeated failures the breaker opens and the sink is reported unavailable,
+ * instead of every value attempting a connect, a single probe runs in the background after a backoff. The backoff
+ * doubles with each failed probe up to a maximum, randomized by a jitter so sinks of the same server do not probe in
+ * lockstep. A successful probe closes the breaker again.
+ */
+public class CircuitBreaker {
+
+	private static final Logger LOG = LogManager.getLogger(Logging.SINK);
+
+	/** Number of consecutive failures opening the breaker (default 3) */
+	public static final String FAILURES_PROPERTY = "mechrain.sink.breaker.failures";
+	/** Backoff in ms before the first probe (default 1000) */
+	public static final String INITIAL_BACKOFF_PROPERTY = "mechrain.sink.breaker.initialBackoffMs";
+	/** Maximum backoff in ms between probes (default 60000) */
+	public static final String MAX_BACKOFF_PROPERTY = "mechrain.sink.breaker.maxBackoffMs";
+
+	/** Fraction of the backoff added or subtracted at random */
+	private static final double JITTER = 0.2;
+
+	/** Threads running the probes of all sinks, probes may block on network timeouts */
+	private static final ThreadPoolExecutor PROBE_EXECUTOR = ThreadSupport.newBoundedExecutor("Sink-Probe", 2, 64);
+
+	public enum State {
+		/** Connected, values are handled */
+		CLOSED,
+		/** Failed, waiting for the next probe */
+		OPEN,
+		/** Probe running */
+		HALF_OPEN
+	}
+
+	private final String name;
+	private final BooleanSupplier probe;
+	private final int failureThreshold;
+	private final long initialBackoffMillis;
+	private final long maxBackoffMillis;
+
+	/* guarded by this */
+	private State state = State.CLOSED;
+	private int failures;
+	private long backoffMillis;
+	private long nextProbeMillis;
+	private Timeout probeTimer;
+	/* incremented by stop, probes of an older generation are ignored */
+	private int generation;
+
+	private volatile boolean closed = true;
+	private long opens;
+	private long probes;
+
+	/**
+	 * Creates a closed breaker configured by the {@value #FAILURES_PROPERTY}, {@value #INITIAL_BACKOFF_PROPERTY} and
+	 * {@value #MAX_BACKOFF_PROPERTY} system properties.
+	 *
+	 * @param name  the name used in log messages
+	 * @param probe checks the connection, returns true if it is usable again
+	 */
+	public CircuitBreaker(final String name, final BooleanSupplier probe) {
+		this.name = name;
+		this.probe = probe;
+		this.failureThreshold = Math.max(1, Integer.getInteger(FAILURES_PROPERTY, 3));
+		this.initialBackoffMillis = Math.max(1, Long.getLong(INITIAL_BACKOFF_PROPERTY, 1000));
+		this.maxBackoffMillis = Math.max(initialBackoffMillis, Long.getLong(MAX_BACKOFF_PROPERTY, 60_000));
+		this.backoffMillis = initialBackoffMillis;
+	}
+
+	/**
+	 * Checks if values may be handed to the sink.
+	 *
+	 * @return true if the breaker is closed
+	 */
+	public boolean allowRequest() {
+		return closed;
+	}
+
+	/**
+	 * Records a successful operation, closing the breaker.
+	 */
+	public synchronized void recordSuccess() {
+		failures = 0;
+		if (state != State.CLOSED) {
+			close();
+		}
+	}
+
+	/**
+	 * Records a failed operation, the breaker opens when the failure threshold is reached.
+	 */
+	public synchronized void recordFailure() {
+		failures++;
+		if (state == State.CLOSED && failures >= failureThreshold) {
+			open();
+		}
+	}
+
+	/**
+	 * Opens the breaker immediately, e.g. when connecting failed.
+	 */
+	public synchronized void trip() {
+		failures++;
+		if (state == State.CLOSED) {
+			open();
+		}
+	}
+
+	/**
+	 * Stops probing and resets the breaker to closed with the initial backoff, e.g. when the sink is disconnected.
+	 */
+	public synchronized void stop() {
+		generation++;
+		cancelProbe();
+		state = State.CLOSED;
+		closed = true;
+		failures = 0;
+		backoffMillis = initialBackoffMillis;
+	}
+
+	private void open() {
+		state = State.OPEN;
+		closed = false;
+		opens++;
+		final long delay = jitter(backoffMillis);
+		LOG.warn(() -> "Circuit breaker of " + name + " opened after " + failures + " failures, probing in " + delay + "ms");
+		scheduleProbe(delay);
+	}
+
+	private void close() {
+		cancelProbe();
+		state = State.CLOSED;
+		closed = true;
+		backoffMillis = initialBackoffMillis;
+		LOG.info(() -> "Circuit breaker of " + name + " closed");
+	}
+
+	private void scheduleProbe(final long delay) {
+		cancelProbe();
+		final int probeGeneration = generation;
+		nextProbeMillis = System.currentTimeMillis() + delay;
+		probeTimer = HashedWheelTimer.shared().schedule(() -> startProbe(probeGeneration), delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void cancelProbe() {
+		if (probeTimer != null) {
+			probeTimer.cancel();
+			probeTimer = null;
+		}
+	}
+
+	private synchronized void startProbe(final int probeGeneration) {
+		if (probeGeneration != generation || state != State.OPEN) {
+			return;
+		}
+		state = State.HALF_OPEN;
+		try {
+			/* the probe may block, keep it off the timer thread */
+			PROBE_EXECUTOR.execute(() -> probe(probeGeneration));
+		} catch (final RejectedExecutionException e) {
+			state = State.OPEN;
+			scheduleProbe(jitter(backoffMillis));
+		}
+	}
+
+	private void probe(final int probeGeneration) {
+		boolean success;
+		try {
+			success = probe.getAsBoolean();
+		} catch (final RuntimeException e) {
+			LOG.debug(() -> "Probe of " + name + " failed", e);
+			success = false;
+		}
+		synchronized (this) {
+			probes++;
+			if (probeGeneration != generation || state != State.HALF_OPEN) {
+				return;
+			}
+			if (success) {
+				failures = 0;
+				close();
+			} else {
+				failures++;
+				backoffMillis = Math.min(maxBackoffMillis, backoffMillis * 2);
+				state = State.OPEN;
+				final long delay = jitter(backoffMillis);
+				LOG.debug(() -> "Probe of " + name + " failed, probing again in " + delay + "ms");
+				scheduleProbe(delay);
+			}
+		}
+	}
+
+	private static long jitter(final long backoff) {
+		final long range = (long) (backoff * JITTER);
+		return range > 0 ? backoff - range + ThreadLocalRandom.current().nextLong(2 * range + 1) : backoff;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * Adds the counters of this breaker to the given statistics.
+	 *
+	 * @param prefix     the prefix of the counter names
+	 * @param statistics counter names mapped to their values
+	 */
+	public synchronized void collectStatistics(final String prefix, final Map<String, Number> statistics) {
+		statistics.put(prefix + ".breaker.open", state == State.CLOSED ? 0 : 1);
+		statistics.put(prefix + ".breaker.failures", failures);
+		statistics.put(prefix + ".breaker.opens", opens);
+		statistics.put(prefix + ".breaker.probes", probes);
+		statistics.put(prefix + ".breaker.backoffMs", backoffMillis);
+	}
+
+	/**
+	 * Describes the state, e.g. <code>OPEN (next probe in 4s)</code>.
+	 */
+	@Override
+	public synchronized String toString() {
+		if (state == State.OPEN) {
+			final long seconds = Math.max(0, nextProbeMillis - System.currentTimeMillis()) / 1000;
+			return state + " (next probe in " + seconds + "s)";
+		}
+		return state.name();
+	}
+}
@@ -0,0 +1,61 @@
+package de.mechrain.device.sink;
+
+import java.io.Serializable;
+
+/**
+ * Configures the change-only filtering of the measurements handed to a sink. A measurement is forwarded if it differs
+ * from the last forwarded value of its series by more than a threshold, or if the series was silent for too long.
+ */
+public class Deadband implements Serializable {
+
+	private static final long serialVersionUID = 4480235108327017954L;
+
+	private final double absolute;
+	private final double relative;
+	private final long maxSilenceMillis;
+
+	/**
+	 * @param absolute         the change forwarded regardless of the value, 0 to disable
+	 * @param relative         the change as fraction of the last forwarded value, e.g. 0.02 for 2%, 0 to disable
+	 * @param maxSilenceMillis forwards a measurement if the last one of the series was forwarded at least this long ago,
+	 *                         0 to disable
+	 */
+	public Deadband(final double absolute, final double relative, final long maxSilenceMillis) {
+		if (absolute < 0 || relative < 0 || maxSilenceMillis < 0) {
+			throw new IllegalArgumentException("Deadband settings must not be negative");
+		}
+		this.absolute = absolute;
+		this.relative = relative;
+		this.maxSilenceMillis = maxSilenceMillis;
+	}
+
+	public double getAbsolute() {
+		return absolute;
+	}
+
+	public double getRelative() {
+		return relative;
+	}
+
+	public long getMaxSilenceMillis() {
+		return maxSilenceMillis;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		if (absolute > 0) {
+			sb.append('>').append(absolute);
+		}
+		if (relative > 0) {
+			sb.append(sb.length() > 0 ? "|>" : ">").append(relative * 100).append('%');
+		}
+		if (sb.length() == 0) {
+			sb.append("changes");
+		}
+		if (maxSilenceMillis > 0) {
+			sb.append(" max silence ").append(maxSilenceMillis).append("ms");
+		}
+		return sb.toString();
+	}
+}
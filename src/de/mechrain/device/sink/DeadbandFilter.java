@@ -0,0 +1,85 @@
+package de.mechrain.device.sink;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import de.mechrain.protocol.MeasurementRecord;
+
+/**
+ * Suppresses measurements that did not move out of the {@link Deadband} around the last forwarded value of their
+ * series. Without thresholds any change is forwarded. The state of each series is kept in primitive arrays indexed by
+ * the slots of a {@link SeriesIndex}. Not thread safe, used by the worker of a {@link SinkDispatcher} only.
+ */
+class DeadbandFilter {
+
+	private static final int INITIAL_CAPACITY = 8;
+
+	private final double absolute;
+	private final double relative;
+	private final long maxSilenceMillis;
+
+	private final SeriesIndex series = new SeriesIndex();
+	private double[] lastValues = new double[INITIAL_CAPACITY];
+	private long[] lastTimestamps = new long[INITIAL_CAPACITY];
+
+	/* written by the worker only */
+	private volatile long forwarded;
+	private volatile long suppressed;
+
+	DeadbandFilter(final Deadband deadband) {
+		this.absolute = deadband.getAbsolute();
+		this.relative = deadband.getRelative();
+		this.maxSilenceMillis = deadband.getMaxSilenceMillis();
+	}
+
+	/**
+	 * Checks if a measurement is forwarded and remembers it as the last forwarded value of its series if so.
+	 *
+	 * @param measurement the measurement
+	 * @return true to forward the measurement, false to suppress it
+	 */
+	boolean accept(final MeasurementRecord measurement) {
+		final double value = measurement.isFloatingPoint() ? measurement.getDoubleValue() : measurement.getLongValue();
+		final long timestamp = measurement.getTimestamp();
+		final int size = series.size();
+		final int slot = series.slot(measurement);
+		if (slot == size) {
+			/* first value of the series */
+			if (slot == lastValues.length) {
+				lastValues = Arrays.copyOf(lastValues, slot * 2);
+				lastTimestamps = Arrays.copyOf(lastTimestamps, slot * 2);
+			}
+		} else if ( ! exceeds(value, lastValues[slot])
+				&& (maxSilenceMillis == 0 || timestamp - lastTimestamps[slot] < maxSilenceMillis)) {
+			suppressed++;
+			return false;
+		}
+		lastValues[slot] = value;
+		lastTimestamps[slot] = timestamp;
+		forwarded++;
+		return true;
+	}
+
+	private boolean exceeds(final double value, final double last) {
+		final double change = Math.abs(value - last);
+		if (absolute == 0 && relative == 0) {
+			return change > 0;
+		}
+		return (absolute > 0 && change > absolute) || (relative > 0 && change > relative * Math.abs(last));
+	}
+
+	/**
+	 * Adds the counters of this filter to the given statistics.
+	 *
+	 * @param prefix     the prefix of the counter names
+	 * @param statistics counter names mapped to their values
+	 */
+	void collectStatistics(final String prefix, final Map<String, Number> statistics) {
+		final long forwardedCount = forwarded;
+		final long suppressedCount = suppressed;
+		statistics.put(prefix + ".forwarded", forwardedCount);
+		statistics.put(prefix + ".suppressed", suppressedCount);
+		final long total = forwardedCount + suppressedCount;
+		statistics.put(prefix + ".suppressedPercent", total == 0 ? 0 : 100.0 * suppressedCount / total);
+	}
+}
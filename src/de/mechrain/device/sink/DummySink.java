@@ -5,6 +5,7 @@ import org.apache.logging.log4j.Logger;
 
 import de.mechrain.log.Logging;
 import de.mechrain.protocol.AbstractMechRainDataUnit;
+import de.mechrain.protocol.MeasurementRecord;
 
 /**
  * A dummy data sink that logs received data units.
@@ -30,6 +31,11 @@ public class DummySink extends AbstractDataSink {
 		LOG.info(() -> "Received data unit - " + mdu);
 	}
 
+	@Override
+	public void handleMeasurement(final MeasurementRecord record) {
+		LOG.info(() -> "Received measurement - " + record);
+	}
+
 	@Override
 	public void disconnect() {
 	}
@@ -1,9 +1,13 @@
 package de.mechrain.device.sink;
 
 import java.io.Serializable;
+import java.util.Map;
 
 import de.mechrain.device.IIdProvider;
 import de.mechrain.protocol.AbstractMechRainDataUnit;
+import de.mechrain.protocol.DataUnitValidationException;
+import de.mechrain.protocol.MRP;
+import de.mechrain.protocol.MeasurementRecord;
 
 /**
  * Interface for data sinks that can receive and process MechRain data units.
@@ -36,10 +40,73 @@ public interface IDataSink extends Serializable, IIdProvider {
 	 */
 	boolean isAvailable();
 	
+	/**
+	 * Checks if the data sink handles values of the given type. The device routes only accepted types to the sink.
+	 * The result must not change while the sink is added to a device.
+	 * 
+	 * @param mrp The type of the value.
+	 * @return true if the sink handles the type, the default accepts all types.
+	 */
+	default boolean accepts(final MRP mrp) {
+		return true;
+	}
+	
 	/**
 	 * Handles the given MechRain data unit.
 	 * 
 	 * @param mdu The data unit to handle.
 	 */
 	void handleDataUnit(final AbstractMechRainDataUnit mdu);
+	
+	/**
+	 * Handles a numeric measurement without allocating a data unit. The record is reused for the next measurement and
+	 * must not be kept after returning. The default implementation passes the equivalent data unit to
+	 * {@link #handleDataUnit(AbstractMechRainDataUnit)}.
+	 * 
+	 * @param record The measurement to handle.
+	 */
+	default void handleMeasurement(final MeasurementRecord record) {
+		try {
+			handleDataUnit(record.toDataUnit());
+		} catch (final DataUnitValidationException e) {
+			throw new IllegalStateException("Invalid measurement " + record, e);
+		}
+	}
+	
+	/**
+	 * Gets the behavior when values arrive faster than the sink handles them.
+	 * 
+	 * @return the backpressure policy or null for the default of {@link SinkDispatcher}
+	 */
+	default SinkDispatcher.Backpressure getBackpressure() {
+		return null;
+	}
+	
+	/**
+	 * Gets the downsampling applied before measurements are handed to the sink.
+	 * 
+	 * @return the aggregation or null to hand over every measurement
+	 */
+	default Aggregation getAggregation() {
+		return null;
+	}
+	
+	/**
+	 * Gets the change-only filtering applied before measurements are handed to the sink and before aggregation.
+	 * 
+	 * @return the deadband or null to hand over every measurement
+	 */
+	default Deadband getDeadband() {
+		return null;
+	}
+	
+	/**
+	 * Adds the counters of this sink to the given statistics. Sinks without counters add nothing.
+	 * 
+	 * @param prefix The prefix of the counter names.
+	 * @param statistics Counter names mapped to their values.
+	 */
+	default void collectStatistics(final String prefix, final Map<String, Number> statistics) {
+		/* no counters */
+	}
 }
@@ -0,0 +1,18 @@
+package de.mechrain.device.sink;
+
+import de.mechrain.protocol.MeasurementRecord;
+
+/**
+ * A data sink that can be defined once in the device registry and be used by several devices through a
+ * {@link SharedSink}. The values of the devices are told apart by tags.
+ */
+interface ISharedDataSink extends IDataSink {
+
+	/**
+	 * Handles a numeric measurement of one of the devices sharing this sink.
+	 * 
+	 * @param record The measurement to handle, it must not be kept after returning.
+	 * @param tags The escaped line protocol tag set of the device starting with a comma, or null for no tags.
+	 */
+	void handleMeasurement(final MeasurementRecord record, final String tags);
+}
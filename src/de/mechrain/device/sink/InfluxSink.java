@@ -1,35 +1,87 @@
 package de.mechrain.device.sink;
 
 import java.util.List;
+import java.util.Map;
 import java.util.StringJoiner;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.influxdb.InfluxDB;
+import org.influxdb.InfluxDBException;
 import org.influxdb.InfluxDBFactory;
-import org.influxdb.dto.Point;
+import org.influxdb.InfluxDBIOException;
 import org.influxdb.dto.Pong;
 
 import de.mechrain.log.Logging;
 import de.mechrain.protocol.AbstractMechRainDataUnit;
 import de.mechrain.protocol.MRP;
+import de.mechrain.protocol.MeasurementRecord;
+import de.mechrain.protocol.MeasurementRecord.Aggregate;
 import de.mechrain.protocol.datatypes.FloatDataUnit;
 import de.mechrain.protocol.datatypes.UInt1DataUnit;
 import de.mechrain.protocol.datatypes.UInt2DataUnit;
+import de.mechrain.util.HashedWheelTimer;
+import de.mechrain.util.HashedWheelTimer.Timeout;
+import de.mechrain.util.LatencyHistogram;
+import de.mechrain.util.ThreadSupport;
 
 /**
  * A data sink that writes MechRain data units to an InfluxDB database.
  * The sink instance is serialized but the InfluxDB connection is transient and must be re-established after deserialization.
+ * <p>
+ * Values are not written on the receiving thread. They are buffered and written in batches of line protocol by a
+ * shared flush pool once the batch size is reached or the flush interval elapsed. A batch that could not be written
+ * stays buffered and is written again once the circuit breaker closes. Points the database rejects, e.g. for a field
+ * type conflict, are dropped and counted instead. Values arriving while the buffer is full are dropped and counted.
  */
-public class InfluxSink extends AbstractFilteredDataSink {
+public class InfluxSink extends AbstractFilteredDataSink implements ISharedDataSink {
     
     private static final long serialVersionUID = -5866434237318835300L;
 
     private static final Logger LOG = LogManager.getLogger(Logging.SINK);
     
-    private transient InfluxDB db; 
-    private transient boolean connected;
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_FLUSH_INTERVAL_MS = 1000;
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    
+    /** Threads writing the batches of all influx sinks */
+    private static final ThreadPoolExecutor FLUSH_EXECUTOR = ThreadSupport.newBoundedExecutor("Influx-Flush", 2, 256);
+    
+    private transient volatile InfluxDB db;
+    private transient volatile boolean connected;
+    
+    /* ring buffer of pending values, guarded by bufferLock */
+    private transient ReentrantLock bufferLock;
+    private transient MRP[] pendingMrps;
+    private transient boolean[] pendingFloatingPoint;
+    private transient long[] pendingValues;
+    private transient long[] pendingTimestamps;
+    private transient String[] pendingTags;
+    private transient Aggregate[] pendingAggregates;
+    private transient int head;
+    private transient int size;
+    
+    /* serializes the writes, guarded by flushLock */
+    private transient ReentrantLock flushLock;
+    private transient StringBuilder lines;
+    
+    private transient AtomicBoolean flushScheduled;
+    private transient Timeout flushTimer;
+    
+    private transient LongAdder dropped;
+    private transient LongAdder written;
+    private transient LongAdder failed;
+    private transient LongAdder rejected;
+    private transient LongAdder batches;
+    private transient LongAdder flushErrors;
+    private transient volatile int lastBatchSize;
+    private transient LatencyHistogram flushLatency;
     
     private final String host;
     private final int port;
@@ -37,83 +89,485 @@ public class InfluxSink extends AbstractFilteredDataSink {
     private final String password;
     private final String dbName;
     private final String measurementName;
+    private final int batchSize;
+    private final int flushIntervalMs;
+    private final int queueCapacity;
     
     private InfluxSink(final Builder builder) {
     	super(builder.filter);
     	super.setId(builder.id);
+    	super.setBackpressure(builder.backpressure);
         this.host = builder.host;
         this.port = builder.port;
         this.user = builder.user;
         this.password = builder.password;
         this.dbName = builder.dbName;
         this.measurementName = builder.measurementName;
+        this.batchSize = builder.batchSize;
+        this.flushIntervalMs = builder.flushIntervalMs;
+        this.queueCapacity = builder.queueCapacity;
     }
     
+    /**
+     * Connects to the database. If it cannot be reached the circuit breaker opens and reconnects in the background.
+     */
     @Override
     public boolean connect() {
+        init();
+        connected = true;
+        synchronized (this) {
+            if (flushTimer == null) {
+                flushTimer = HashedWheelTimer.shared().scheduleAtFixedRate(this::requestFlush, flushIntervalMs, flushIntervalMs,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+        if (ping()) {
+            getCircuitBreaker().recordSuccess();
+            return true;
+        }
+        getCircuitBreaker().trip();
+        return false;
+    }
+    
+    @Override
+    protected boolean probe() {
+        return ping();
+    }
+    
+    /**
+     * Creates the client if necessary and pings the database.
+     *
+     * @return true if the database answered
+     */
+    private synchronized boolean ping() {
+        if ( ! connected) {
+            return false;
+        }
         try {
-            /* http://127.0.0.1:8086 */
-            db = InfluxDBFactory.connect("http://" + host + ':' + port, user, password);
-            db.setDatabase(dbName);
+            if (db == null) {
+                /* http://127.0.0.1:8086 */
+                final InfluxDB client = InfluxDBFactory.connect("http://" + host + ':' + port, user, password);
+                client.setDatabase(dbName);
+                db = client;
+            }
             final Pong ping = db.ping();
-            connected = ping.isGood();
-            return connected;
+            return ping.isGood();
         } catch (final Exception e) {
-            LOG.error(() -> "Could not connect", e);
+            LOG.error(() -> "Could not connect to influx " + dbName + '@' + host + ':' + port, e);
         }
         return false;
     }
     
+    /**
+     * Creates the transient state, the sink may have been deserialized.
+     */
+    private synchronized void init() {
+        if (bufferLock != null) {
+            return;
+        }
+        pendingMrps = new MRP[queueCapacity];
+        pendingFloatingPoint = new boolean[queueCapacity];
+        pendingValues = new long[queueCapacity];
+        pendingTimestamps = new long[queueCapacity];
+        pendingTags = new String[queueCapacity];
+        pendingAggregates = new Aggregate[queueCapacity];
+        flushLock = new ReentrantLock();
+        lines = new StringBuilder(batchSize * 48);
+        flushScheduled = new AtomicBoolean();
+        dropped = new LongAdder();
+        written = new LongAdder();
+        failed = new LongAdder();
+        rejected = new LongAdder();
+        batches = new LongAdder();
+        flushErrors = new LongAdder();
+        flushLatency = new LatencyHistogram();
+        bufferLock = new ReentrantLock();
+    }
+    
+    /**
+     * Writes the remaining points unless the database is unreachable and closes the client. Blocks until that is done,
+     * so it must not be called on a thread that cannot wait for the database.
+     */
     public void disconnect() {
-        if (db != null) {
-            db.close();
+        /* stop resets the breaker, whether the database is reachable has to be read before */
+        final boolean reachable = getCircuitBreaker().allowRequest();
+        getCircuitBreaker().stop();
+        final InfluxDB current;
+        synchronized (this) {
+            connected = false;
+            if (flushTimer != null) {
+                flushTimer.cancel();
+                flushTimer = null;
+            }
+            current = db;
+            db = null;
+        }
+        if (current == null) {
+            return;
+        }
+        /*
+         * write what is left unless the database is unreachable, then close the connection. Done before returning, so
+         * points buffered after a reconnect are neither discarded nor written with the closed client.
+         */
+        flushLock.lock();
+        try {
+            while (reachable && writeBatch(current) > 0) {
+                /* drain until empty or the first failed write */
+            }
+            final int left = discardPending();
+            if (left > 0) {
+                LOG.warn(() -> "Discarded " + left + " points not written to influx " + dbName + '@' + host);
+            }
+        } finally {
+            flushLock.unlock();
+            current.close();
         }
-        connected = false;
     }
 
     @Override
     public boolean isAvailable() {
-        return connected;
+        return connected && getCircuitBreaker().allowRequest();
     }
 
     @Override
     public void handleDataUnit(final AbstractMechRainDataUnit mdu) {
-        // If a filter is set and it does not contain this id, skip the unit
-        if (filter != null && !filter.contains(mdu.getId())) {
+        // The device routes only accepted types, skip anything else handed in directly
+        if (!accepts(mdu.getId())) {
             LOG.trace(() -> "Skip handling of " + mdu.getId() + " not in filter");
             return;
         }
         LOG.debug(() -> "Handling data unit " + mdu.getId());
-        final Point point;
+        if (fieldName(mdu.getId()) == null) {
+            LOG.error(() -> "Data unit " + mdu.getClass().getSimpleName() + " not supported");
+            return;
+        }
+        final long now = System.currentTimeMillis();
         switch (mdu.getId()) {
         case HUMIDITY:
-            point = Point.measurement(measurementName).time(System.currentTimeMillis(), TimeUnit.MILLISECONDS).addField("humidity", ((FloatDataUnit)mdu).getValue()).build();
-            break;
         case TEMPERATURE:
-            point = Point.measurement(measurementName).time(System.currentTimeMillis(), TimeUnit.MILLISECONDS).addField("temperature", ((FloatDataUnit)mdu).getValue()).build();
+            enqueue(mdu.getId(), true, Double.doubleToRawLongBits(((FloatDataUnit)mdu).getValue()), now, null, null);
             break;
-        case SOIL_MOISTURE_ABS:
-            point = Point.measurement(measurementName).time(System.currentTimeMillis(), TimeUnit.MILLISECONDS).addField("MoistAbs", ((UInt2DataUnit)mdu).getValue()).build();
+        case SOIL_MOISTURE_PERCENT:
+            enqueue(mdu.getId(), false, ((UInt1DataUnit)mdu).getValue(), now, null, null);
             break;
-        case CO2_PPM:
-            point = Point.measurement(measurementName).time(System.currentTimeMillis(), TimeUnit.MILLISECONDS).addField("pwm", ((UInt2DataUnit)mdu).getValue()).build();
+        default:
+            enqueue(mdu.getId(), false, ((UInt2DataUnit)mdu).getValue(), now, null, null);
             break;
+        }
+    }
+
+    @Override
+    public void handleMeasurement(final MeasurementRecord record) {
+        handleMeasurement(record, null);
+    }
+
+    @Override
+    public void handleMeasurement(final MeasurementRecord record, final String tags) {
+        if (!accepts(record.getMrp())) {
+            LOG.trace(() -> "Skip handling of " + record.getMrp() + " not in filter");
+            return;
+        }
+        if (fieldName(record.getMrp()) == null) {
+            LOG.error(() -> "Measurement " + record.getMrp() + " not supported");
+            return;
+        }
+        if (record.isFloatingPoint()) {
+            enqueue(record.getMrp(), true, Double.doubleToRawLongBits(record.getDoubleValue()), record.getTimestamp(), tags,
+                    record.getAggregate());
+        } else {
+            enqueue(record.getMrp(), false, record.getLongValue(), record.getTimestamp(), tags, record.getAggregate());
+        }
+    }
+
+    /**
+     * Buffers a value and triggers a flush once a full batch is pending.
+     *
+     * @param value the value or the raw bits of a floating point value
+     * @param tags      the escaped tag set starting with a comma or null
+     * @param aggregate the statistic the value is or null for a single measurement
+     */
+    private void enqueue(final MRP mrp, final boolean floatingPoint, final long value, final long timestamp, final String tags,
+            final Aggregate aggregate) {
+        init();
+        final int pending;
+        bufferLock.lock();
+        try {
+            if (size == queueCapacity) {
+                dropped.increment();
+                LOG.debug(() -> "Buffer full, dropped " + mrp);
+                return;
+            }
+            final int tail = (head + size) % queueCapacity;
+            pendingMrps[tail] = mrp;
+            pendingFloatingPoint[tail] = floatingPoint;
+            pendingValues[tail] = value;
+            pendingTimestamps[tail] = timestamp;
+            pendingTags[tail] = tags;
+            pendingAggregates[tail] = aggregate;
+            pending = ++size;
+        } finally {
+            bufferLock.unlock();
+        }
+        if (pending >= batchSize) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * Submits a flush to the flush pool unless one is already scheduled.
+     */
+    private void requestFlush() {
+        if ( ! flushScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            FLUSH_EXECUTOR.execute(this::flush);
+        } catch (final RejectedExecutionException e) {
+            /* pool busy, the next timer tick tries again */
+            flushScheduled.set(false);
+        }
+    }
+
+    private void flush() {
+        final InfluxDB current = db;
+        try {
+            if (current == null || ! getCircuitBreaker().allowRequest()) {
+                /* points stay buffered until the breaker closes again */
+                return;
+            }
+            flushLock.lock();
+            try {
+                if (current != db) {
+                    /* disconnected while waiting for the lock, the client is closed */
+                    return;
+                }
+                while (writeBatch(current) == batchSize) {
+                    /* more full batches pending */
+                }
+            } finally {
+                flushLock.unlock();
+            }
+        } finally {
+            flushScheduled.set(false);
+        }
+        if (pendingCount() >= batchSize) {
+            requestFlush();
+        }
+    }
+
+    private int pendingCount() {
+        bufferLock.lock();
+        try {
+            return size;
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    /**
+     * Writes up to one batch of values from the head of the buffer as line protocol. The values are removed from the
+     * buffer only if the write succeeded, a failed batch stays at the head and is written again by the next flush. Must
+     * hold the flush lock, which makes the flush the only consumer of the buffer.
+     *
+     * @param target the database to write to
+     * @return the number of values taken from the buffer, written or rejected by the database, 0 if the buffer was
+     *         empty or the write failed
+     */
+    private int writeBatch(final InfluxDB target) {
+        final StringBuilder sb = lines;
+        sb.setLength(0);
+        final String measurement = escape(measurementName);
+        int count = 0;
+        bufferLock.lock();
+        try {
+            for (int index = head; count < batchSize && count < size; index = (index + 1) % queueCapacity) {
+                if (count > 0) {
+                    sb.append('\n');
+                }
+                sb.append(measurement);
+                if (pendingTags[index] != null) {
+                    sb.append(pendingTags[index]);
+                }
+                sb.append(' ').append(fieldName(pendingMrps[index]));
+                if (pendingAggregates[index] != null) {
+                    sb.append(pendingAggregates[index].suffix);
+                }
+                sb.append('=');
+                if (pendingFloatingPoint[index]) {
+                    sb.append(Double.longBitsToDouble(pendingValues[index]));
+                } else {
+                    sb.append(pendingValues[index]).append('i');
+                }
+                /* default precision of the line protocol is ns */
+                sb.append(' ').append(pendingTimestamps[index] * 1_000_000L);
+                count++;
+            }
+        } finally {
+            bufferLock.unlock();
+        }
+        if (count == 0) {
+            return 0;
+        }
+        final long start = System.nanoTime();
+        final int points = count;
+        final int rejectedPoints;
+        try {
+            rejectedPoints = writeLines(target, sb.toString(), 0, sb.length(), count);
+        } catch (final Exception e) {
+            if (connected) {
+                getCircuitBreaker().recordFailure();
+            }
+            flushErrors.increment();
+            failed.add(count);
+            LOG.error(() -> "Could not write " + points + " points to influx " + dbName + '@' + host + ", kept buffered", e);
+            return 0;
+        } finally {
+            flushLatency.record(System.nanoTime() - start);
+            batches.increment();
+            lastBatchSize = count;
+        }
+        removePending(count);
+        written.add(count - rejectedPoints);
+        if (connected) {
+            /* the database answered, also if it rejected some points */
+            getCircuitBreaker().recordSuccess();
+        }
+        LOG.debug(() -> "Wrote " + (points - rejectedPoints) + " points to influx");
+        return count;
+    }
+
+    /**
+     * Writes a range of lines. If the database rejects the content of the lines they are split in halves and written
+     * again, so only the offending lines are dropped.
+     *
+     * @param target the database to write to
+     * @param batch  the lines of the batch
+     * @param from   the index of the first character of the range
+     * @param to     the index after the last character of the range
+     * @param count  the number of lines in the range
+     * @return the number of lines rejected by the database
+     * @throws InfluxDBException if the write failed for a reason worth retrying, e.g. an I/O error or a server error
+     */
+    private int writeLines(final InfluxDB target, final String batch, final int from, final int to, final int count) {
+        try {
+            target.write(batch.substring(from, to));
+            return 0;
+        } catch (final InfluxDBException e) {
+            if (e instanceof InfluxDBIOException || e.isRetryWorth()) {
+                throw e;
+            }
+            if (count == 1 || ! isLineError(e)) {
+                /* rejected for good, retrying would block the buffer behind it */
+                rejected.add(count);
+                if (count == 1) {
+                    LOG.error(() -> "Influx " + dbName + '@' + host + " rejected point " + batch.substring(from, to), e);
+                } else {
+                    LOG.error(() -> "Influx " + dbName + '@' + host + " rejected " + count + " points", e);
+                }
+                return count;
+            }
+            final int half = count / 2;
+            int middle = from;
+            for (int i = 0; i < half; i++) {
+                middle = batch.indexOf('\n', middle) + 1;
+            }
+            return writeLines(target, batch, from, middle - 1, half) + writeLines(target, batch, middle, to, count - half);
+        }
+    }
+
+    /**
+     * Checks if the database rejected the content of a line rather than the request, e.g. the credentials.
+     */
+    private static boolean isLineError(final InfluxDBException e) {
+        return e instanceof InfluxDBException.UnableToParseException
+                || e instanceof InfluxDBException.FieldTypeConflictException
+                || e instanceof InfluxDBException.PointsBeyondRetentionPolicyException;
+    }
+
+    /**
+     * Removes values from the head of the buffer.
+     *
+     * @param count the number of values to remove
+     */
+    private void removePending(final int count) {
+        bufferLock.lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                pendingMrps[head] = null;
+                pendingTags[head] = null;
+                pendingAggregates[head] = null;
+                head = (head + 1) % queueCapacity;
+            }
+            size -= count;
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    /**
+     * Removes all values from the buffer, counting them as dropped.
+     *
+     * @return the number of values removed
+     */
+    private int discardPending() {
+        final int count = pendingCount();
+        removePending(count);
+        dropped.add(count);
+        return count;
+    }
+
+    /**
+     * Escapes a measurement name for the line protocol.
+     */
+    private static String escape(final String name) {
+        return name.replace(",", "\\,").replace(" ", "\\ ");
+    }
+
+    @Override
+    public void collectStatistics(final String prefix, final Map<String, Number> statistics) {
+        if (bufferLock == null) {
+            return;
+        }
+        statistics.put(prefix + ".queue.depth", pendingCount());
+        statistics.put(prefix + ".queue.capacity", queueCapacity);
+        statistics.put(prefix + ".queue.dropped", dropped.sum());
+        statistics.put(prefix + ".points.written", written.sum());
+        statistics.put(prefix + ".points.failed", failed.sum());
+        statistics.put(prefix + ".points.rejected", rejected.sum());
+        final long batchCount = batches.sum();
+        statistics.put(prefix + ".batches", batchCount);
+        statistics.put(prefix + ".batch.lastSize", lastBatchSize);
+        statistics.put(prefix + ".batch.meanSize",
+                batchCount == 0 ? 0 : (double) (written.sum() + failed.sum() + rejected.sum()) / batchCount);
+        statistics.put(prefix + ".flush.errors", flushErrors.sum());
+        flushLatency.collectStatistics(prefix + ".flush", statistics);
+        getCircuitBreaker().collectStatistics(prefix, statistics);
+    }
+
+    /**
+     * Gets the name of the influx field a measurement is stored in.
+     *
+     * @param mrp the measurement
+     * @return the field name or null if the measurement is not supported
+     */
+    private static String fieldName(final MRP mrp) {
+        switch (mrp) {
+        case HUMIDITY:
+            return "humidity";
+        case TEMPERATURE:
+            return "temperature";
+        case SOIL_MOISTURE_ABS:
+            return "MoistAbs";
+        case CO2_PPM:
+            return "pwm";
         case SOIL_MOISTURE_PERCENT:
-            point = Point.measurement(measurementName).time(System.currentTimeMillis(), TimeUnit.MILLISECONDS).addField("MoisPercent", ((UInt1DataUnit)mdu).getValue()).build();
-            break;
+            return "MoisPercent";
         case LIGHT:
         case DISTANCE_ABS:
         case DISTANCE_MM:
         default:
-            LOG.error(() -> "Data unit " + mdu.getClass().getSimpleName() + " not supported");
-            return;
+            return null;
         }
-        LOG.debug(() -> "Writing point " + point + " to influx");
-        db.write(point);
-    }
-
-    public List<MRP> getFilter() {
-        return filter;
     }
 
     public String getHost() {
@@ -139,11 +593,31 @@ public class InfluxSink extends AbstractFilteredDataSink {
     public String getMeasurementName() {
         return measurementName;
     }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public int getFlushIntervalMs() {
+        return flushIntervalMs;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
     
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder();
-        sb.append("InfluxSink db:").append(dbName).append('@').append(host).append(" measurement:").append(measurementName);
+        sb.append("InfluxSink db:").append(dbName).append('@').append(host).append(" measurement:").append(measurementName)
+        .append(" batch:").append(batchSize).append('/').append(flushIntervalMs).append("ms")
+        .append(" state:").append(connected ? getCircuitBreaker() : "DISCONNECTED");
+        if (getDeadband() != null) {
+            sb.append(" deadband:").append(getDeadband());
+        }
+        if (getAggregation() != null) {
+            sb.append(" aggregation:").append(getAggregation());
+        }
         
         final StringJoiner sj = new StringJoiner(",");
         if (filter != null) {
@@ -168,6 +642,10 @@ public class InfluxSink extends AbstractFilteredDataSink {
         private String password;
         private String dbName;
         private String measurementName;
+        private int batchSize = DEFAULT_BATCH_SIZE;
+        private int flushIntervalMs = DEFAULT_FLUSH_INTERVAL_MS;
+        private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+        private SinkDispatcher.Backpressure backpressure;
         
         public Builder id(final int id) {
             this.id = id;
@@ -209,6 +687,38 @@ public class InfluxSink extends AbstractFilteredDataSink {
             return this;
         }
         
+        /**
+         * Sets the number of points written with one request, a full batch is written immediately.
+         */
+        public Builder batchSize(final int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+        
+        /**
+         * Sets the maximum time in ms a point waits in the buffer before it is written.
+         */
+        public Builder flushIntervalMs(final int flushIntervalMs) {
+            this.flushIntervalMs = flushIntervalMs;
+            return this;
+        }
+        
+        /**
+         * Sets the maximum number of buffered points, further points are dropped while the buffer is full.
+         */
+        public Builder queueCapacity(final int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+        
+        /**
+         * Sets the behavior when values arrive faster than the sink handles them, null for the default.
+         */
+        public Builder backpressure(final SinkDispatcher.Backpressure backpressure) {
+            this.backpressure = backpressure;
+            return this;
+        }
+        
         private void validate() {
             if (host == null || host.isEmpty()) {
                 throw new IllegalStateException("InfluxSink: host must be provided");
@@ -225,6 +735,15 @@ public class InfluxSink extends AbstractFilteredDataSink {
             if (filter == null || filter.isEmpty()) {
                 throw new IllegalStateException("InfluxSink: filter must contain at least one MRP");
             }
+            if (batchSize <= 0) {
+                throw new IllegalStateException("InfluxSink: batchSize must be positive");
+            }
+            if (flushIntervalMs <= 0) {
+                throw new IllegalStateException("InfluxSink: flushIntervalMs must be positive");
+            }
+            if (queueCapacity < batchSize) {
+                throw new IllegalStateException("InfluxSink: queueCapacity must be at least batchSize");
+            }
         }
         
         public InfluxSink build() {
@@ -0,0 +1,215 @@
+package de.mechrain.device.sink;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.mechrain.log.Logging;
+import de.mechrain.protocol.AbstractMechRainDataUnit;
+import de.mechrain.protocol.MRP;
+import de.mechrain.protocol.MeasurementRecord;
+import de.mechrain.storage.TimeSeriesStore;
+
+/**
+ * A data sink that writes numeric measurements to a compressed {@link TimeSeriesStore} on local disk, for when no
+ * database server is reachable. All sinks using the same directory share one store, series are told apart by device,
+ * type, channel and aggregate. Data units carry no device ID and are not stored.
+ */
+public class LocalSink extends AbstractFilteredDataSink implements ISharedDataSink {
+
+	private static final long serialVersionUID = 5529018843519307447L;
+	private static final Logger LOG = LogManager.getLogger(Logging.SINK);
+
+	private static final long HOUR_MILLIS = 3600000L;
+	private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+	private String directory;
+	private int partitionHours;
+	private int retentionDays;
+	private transient volatile TimeSeriesStore store;
+
+	protected LocalSink(final Builder builder) {
+		super(builder.filter);
+		super.setId(builder.id);
+		super.setBackpressure(builder.backpressure);
+		this.directory = builder.directory;
+		this.partitionHours = builder.partitionHours;
+		this.retentionDays = builder.retentionDays;
+	}
+
+	@Override
+	public synchronized boolean connect() {
+		if (store == null) {
+			try {
+				store = acquireStore();
+			} catch (final IOException e) {
+				LOG.error(() -> "Could not open local store in " + directory, e);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void disconnect() {
+		final TimeSeriesStore current;
+		synchronized (this) {
+			current = store;
+			store = null;
+		}
+		if (current != null) {
+			current.release();
+		}
+	}
+
+	@Override
+	public boolean isAvailable() {
+		return store != null;
+	}
+
+	/**
+	 * Opens the store of this sink, also while the sink is disconnected, e.g. to query it. Each call must be paired with
+	 * {@link TimeSeriesStore#release()}.
+	 *
+	 * @return the store
+	 * @throws IOException if the store cannot be opened
+	 */
+	public TimeSeriesStore acquireStore() throws IOException {
+		return TimeSeriesStore.acquire(Paths.get(directory), partitionHours * HOUR_MILLIS, retentionDays * DAY_MILLIS);
+	}
+
+	public String getDirectory() {
+		return directory;
+	}
+
+	public int getPartitionHours() {
+		return partitionHours;
+	}
+
+	public int getRetentionDays() {
+		return retentionDays;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("LocalSink directory: ").append(directory)
+			.append(" partition: ").append(partitionHours).append('h')
+			.append(" retention: ").append(retentionDays).append('d')
+			.append(" state: ").append(store != null ? "OPEN" : "CLOSED");
+		if (getDeadband() != null) {
+			sb.append(" deadband: ").append(getDeadband());
+		}
+		if (getAggregation() != null) {
+			sb.append(" aggregation: ").append(getAggregation());
+		}
+		final StringJoiner sj = new StringJoiner(",");
+		if (filter != null) {
+			for (final MRP mrp : filter) {
+				sj.add(mrp.name());
+			}
+		}
+		sb.append(" filter:<").append(sj.toString()).append('>')
+		.append(" id:").append(getId());
+		return sb.toString();
+	}
+
+	@Override
+	public void handleDataUnit(final AbstractMechRainDataUnit mdu) {
+		LOG.trace(() -> "Skip handling of data unit " + mdu.getId() + " without device");
+	}
+
+	@Override
+	public void handleMeasurement(final MeasurementRecord record) {
+		handleMeasurement(record, null);
+	}
+
+	/**
+	 * Stores a measurement, the tags are not needed since the record carries the device ID.
+	 */
+	@Override
+	public void handleMeasurement(final MeasurementRecord record, final String tags) {
+		if ( ! accepts(record.getMrp())) {
+			LOG.trace(() -> "Skip handling of " + record.getMrp() + " not in filter");
+			return;
+		}
+		final TimeSeriesStore current = store;
+		if (current == null) {
+			return;
+		}
+		final double value = record.isFloatingPoint() ? record.getDoubleValue() : record.getLongValue();
+		current.append(TimeSeriesStore.seriesKey(record.getDeviceId(), record.getChannel(), record.getMrp(),
+				record.getAggregate()), record.getTimestamp(), value);
+	}
+
+	@Override
+	public void collectStatistics(final String prefix, final Map<String, Number> statistics) {
+		final TimeSeriesStore current = store;
+		if (current != null) {
+			/* the counters cover all sinks sharing the store */
+			current.collectStatistics(prefix + ".store", statistics);
+		}
+	}
+
+	public static class Builder {
+
+		private int id;
+		private List<MRP> filter;
+		private String directory = "data";
+		private int partitionHours = 24;
+		private int retentionDays = 30;
+		private SinkDispatcher.Backpressure backpressure;
+
+		public Builder id(final int id) {
+			this.id = id;
+			return this;
+		}
+
+		public Builder filter(final List<MRP> filter) {
+			this.filter = filter;
+			return this;
+		}
+
+		public Builder directory(final String directory) {
+			this.directory = directory;
+			return this;
+		}
+
+		public Builder partitionHours(final int partitionHours) {
+			this.partitionHours = partitionHours;
+			return this;
+		}
+
+		public Builder retentionDays(final int retentionDays) {
+			this.retentionDays = retentionDays;
+			return this;
+		}
+
+		public Builder backpressure(final SinkDispatcher.Backpressure backpressure) {
+			this.backpressure = backpressure;
+			return this;
+		}
+
+		public void validate() {
+			if (directory == null || directory.isEmpty()) {
+				throw new IllegalStateException("Directory is not set");
+			}
+			if (partitionHours <= 0) {
+				throw new IllegalStateException("Partition hours must be positive");
+			}
+			if (retentionDays <= 0) {
+				throw new IllegalStateException("Retention days must be positive");
+			}
+		}
+
+		public LocalSink build() {
+			validate();
+			return new LocalSink(this);
+		}
+	}
+}
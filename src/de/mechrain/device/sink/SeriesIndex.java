@@ -0,0 +1,92 @@
+package de.mechrain.device.sink;
+
+import java.util.Arrays;
+
+import de.mechrain.protocol.MRP;
+import de.mechrain.protocol.MeasurementRecord;
+
+/**
+ * Assigns dense slot numbers to the series of measurements, a series being the values of one device, type and
+ * channel. Users keep the state of each series in primitive arrays indexed by slot. The keys are stored in an open
+ * addressing table, so looking up a series does not allocate. Not thread safe.
+ */
+class SeriesIndex {
+
+	private static final MRP[] MRPS = MRP.values();
+	private static final int INITIAL_CAPACITY = 16;
+
+	/* key + 1 of each table entry, 0 marks a free entry */
+	private long[] table = new long[INITIAL_CAPACITY];
+	private int[] tableSlots = new int[INITIAL_CAPACITY];
+	/* keys by slot */
+	private long[] keys = new long[INITIAL_CAPACITY / 2];
+	private int size;
+
+	/**
+	 * Gets the slot of the series of a measurement, a new series gets the next unused slot.
+	 *
+	 * @param measurement the measurement
+	 * @return the slot, the first series gets 0
+	 */
+	int slot(final MeasurementRecord measurement) {
+		final long key = (measurement.getDeviceId() & 0xFFFFFFFFL) << 24 | (measurement.getChannel() & 0xFFFFL) << 8
+				| measurement.getMrp().ordinal();
+		final int mask = table.length - 1;
+		int entry = hash(key) & mask;
+		while (table[entry] != 0) {
+			if (table[entry] == key + 1) {
+				return tableSlots[entry];
+			}
+			entry = (entry + 1) & mask;
+		}
+		if ((size + 1) * 2 > table.length) {
+			grow();
+			return slot(measurement);
+		}
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+		}
+		table[entry] = key + 1;
+		tableSlots[entry] = size;
+		keys[size] = key;
+		return size++;
+	}
+
+	private static int hash(final long key) {
+		final long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private void grow() {
+		table = new long[table.length * 2];
+		tableSlots = new int[table.length];
+		final int mask = table.length - 1;
+		for (int slot = 0; slot < size; slot++) {
+			int entry = hash(keys[slot]) & mask;
+			while (table[entry] != 0) {
+				entry = (entry + 1) & mask;
+			}
+			table[entry] = keys[slot] + 1;
+			tableSlots[entry] = slot;
+		}
+	}
+
+	/**
+	 * Gets the number of series, the slots range from 0 to size - 1.
+	 */
+	int size() {
+		return size;
+	}
+
+	MRP getMrp(final int slot) {
+		return MRPS[(int) (keys[slot] & 0xFF)];
+	}
+
+	int getChannel(final int slot) {
+		return (short) (keys[slot] >>> 8);
+	}
+
+	int getDeviceId(final int slot) {
+		return (int) (keys[slot] >>> 24);
+	}
+}
@@ -0,0 +1,173 @@
+package de.mechrain.device.sink;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.mechrain.log.Logging;
+import de.mechrain.protocol.AbstractMechRainDataUnit;
+import de.mechrain.protocol.MRP;
+import de.mechrain.protocol.MeasurementRecord;
+import de.mechrain.protocol.datatypes.FloatDataUnit;
+import de.mechrain.protocol.datatypes.UInt1DataUnit;
+import de.mechrain.protocol.datatypes.UInt2DataUnit;
+
+/**
+ * A data sink of a device that refers to a sink defined once in the device registry. All devices referring to the
+ * same definition write through one connection and batching pipeline, the values are tagged with the ID and name of
+ * the device. The shared sink is connected when the first device connects and disconnected with the last one.
+ */
+public class SharedSink extends AbstractDataSink {
+
+	private static final long serialVersionUID = 3817024411279519305L;
+	private static final Logger LOG = LogManager.getLogger(Logging.SINK);
+
+	/* number of connected devices per shared sink, changed while holding the lock of the shared sink */
+	private static final Map<ISharedDataSink, Integer> USERS = new ConcurrentHashMap<>();
+
+	private final int sharedId;
+
+	private transient volatile ISharedDataSink target;
+	/* replaced when the device is bound again, read by the dispatcher of this sink */
+	private transient volatile String tags;
+	private transient boolean connected;
+	/* converts the numeric data units, only used by the dispatcher of this sink */
+	private transient MeasurementRecord record;
+
+	/**
+	 * Creates a reference to a shared sink, it must be bound before connecting.
+	 *
+	 * @param sharedId the ID of the shared sink in the device registry
+	 */
+	public SharedSink(final int sharedId) {
+		this.sharedId = sharedId;
+	}
+
+	public int getSharedId() {
+		return sharedId;
+	}
+
+	/**
+	 * Binds this reference to the shared sink definition. Called by the device registry whenever the device is added
+	 * to it, the tags are derived from the current ID and name of the device.
+	 *
+	 * @param shared     the shared sink or null if it is not defined
+	 * @param deviceId   the ID of the device
+	 * @param deviceName the name of the device, may be null
+	 */
+	public void bind(final IDataSink shared, final int deviceId, final String deviceName) {
+		if (shared != null && ! (shared instanceof ISharedDataSink)) {
+			throw new IllegalArgumentException(shared.getClass().getSimpleName() + " cannot be shared");
+		}
+		final StringBuilder sb = new StringBuilder(",deviceId=").append(deviceId);
+		if (deviceName != null && ! deviceName.isEmpty()) {
+			sb.append(",device=").append(escapeTag(deviceName));
+		}
+		this.tags = sb.toString();
+		this.target = (ISharedDataSink) shared;
+	}
+
+	/**
+	 * Escapes a tag value for the line protocol.
+	 */
+	private static String escapeTag(final String value) {
+		return value.replace("\\", "\\\\").replace(",", "\\,").replace("=", "\\=").replace(" ", "\\ ");
+	}
+
+	@Override
+	public synchronized boolean connect() {
+		final ISharedDataSink shared = target;
+		if (shared == null) {
+			LOG.error(() -> "Shared sink " + sharedId + " is not defined");
+			return false;
+		}
+		if (connected) {
+			return shared.isAvailable();
+		}
+		connected = true;
+		synchronized (shared) {
+			if (USERS.merge(shared, 1, Integer::sum) == 1) {
+				return shared.connect();
+			}
+		}
+		return shared.isAvailable();
+	}
+
+	@Override
+	public synchronized void disconnect() {
+		final ISharedDataSink shared = target;
+		if ( ! connected || shared == null) {
+			return;
+		}
+		connected = false;
+		synchronized (shared) {
+			if (USERS.merge(shared, -1, Integer::sum) == 0) {
+				USERS.remove(shared);
+				shared.disconnect();
+			}
+		}
+	}
+
+	@Override
+	public boolean isAvailable() {
+		final ISharedDataSink shared = target;
+		return shared != null && shared.isAvailable();
+	}
+
+	@Override
+	public boolean accepts(final MRP mrp) {
+		final ISharedDataSink shared = target;
+		return shared != null && shared.accepts(mrp);
+	}
+
+	@Override
+	public void handleMeasurement(final MeasurementRecord record) {
+		final ISharedDataSink shared = target;
+		if (shared != null) {
+			shared.handleMeasurement(record, tags);
+		}
+	}
+
+	@Override
+	public void handleDataUnit(final AbstractMechRainDataUnit mdu) {
+		final ISharedDataSink shared = target;
+		if (shared == null) {
+			return;
+		}
+		if (record == null) {
+			record = new MeasurementRecord();
+		}
+		if (mdu instanceof FloatDataUnit floatDataUnit) {
+			record.set(mdu.getId(), floatDataUnit.getValue());
+		} else if (mdu instanceof UInt1DataUnit uint1DataUnit) {
+			record.set(mdu.getId(), uint1DataUnit.getValue());
+		} else if (mdu instanceof UInt2DataUnit uint2DataUnit) {
+			record.set(mdu.getId(), uint2DataUnit.getValue());
+		} else {
+			/* not numeric, there is nothing to tag */
+			shared.handleDataUnit(mdu);
+			return;
+		}
+		record.setTimestamp(System.currentTimeMillis());
+		shared.handleMeasurement(record, tags);
+	}
+
+	@Override
+	public void collectStatistics(final String prefix, final Map<String, Number> statistics) {
+		final ISharedDataSink shared = target;
+		if (shared != null) {
+			/* the counters cover all devices sharing the sink */
+			shared.collectStatistics(prefix + ".shared", statistics);
+		}
+	}
+
+	@Override
+	public String toString() {
+		final ISharedDataSink shared = target;
+		return "SharedSink shared:" + sharedId + " <" + (shared != null ? shared : "undefined") + ">"
+				+ (getDeadband() != null ? " deadband:" + getDeadband() : "")
+				+ (getAggregation() != null ? " aggregation:" + getAggregation() : "") + " id:" + getId();
+	}
+}
@@ -0,0 +1,208 @@
+package de.mechrain.device.sink;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import de.mechrain.protocol.MRP;
+import de.mechrain.protocol.MeasurementRecord;
+import de.mechrain.protocol.MeasurementRecord.Aggregate;
+
+/**
+ * Collects measurements in tumbling windows aligned to the wall clock and emits the configured statistics of each
+ * window. The state of each series is updated in constant time and kept in primitive arrays indexed by the slots of a
+ * {@link SeriesIndex}, so aggregating does not allocate.
+ * <p>
+ * A window is emitted once a later measurement of the same series arrives or {@link #closeExpired(long)} finds it
+ * ended. Measurements of a window that was already emitted, e.g. replayed from the spool, are dropped and counted as
+ * late, since a second point of the same series and timestamp would replace the statistics of the whole window in the
+ * database. Not thread safe, used by the worker of a {@link SinkDispatcher} only.
+ */
+class SinkAggregator {
+
+	private static final int INITIAL_CAPACITY = 8;
+
+	private final long windowMillis;
+	private final Aggregate[] aggregates;
+	private final Consumer<MeasurementRecord> downstream;
+	private final MeasurementRecord output = new MeasurementRecord();
+
+	private final SeriesIndex series = new SeriesIndex();
+	private long[] windowStarts = new long[INITIAL_CAPACITY];
+	private long[] counts = new long[INITIAL_CAPACITY];
+	private double[] mins = new double[INITIAL_CAPACITY];
+	private double[] maxs = new double[INITIAL_CAPACITY];
+	private double[] sums = new double[INITIAL_CAPACITY];
+	private double[] lasts = new double[INITIAL_CAPACITY];
+	private boolean[] floatingPoints = new boolean[INITIAL_CAPACITY];
+	/* start of the last emitted window of each series */
+	private long[] emittedStarts = newEmittedStarts(INITIAL_CAPACITY, 0);
+	/* end of the earliest open window, read by the tick of the dispatcher */
+	private volatile long nextDeadline = Long.MAX_VALUE;
+
+	/* written by the worker only */
+	private volatile long samples;
+	private volatile long windows;
+	private volatile long late;
+
+	/**
+	 * @param aggregation the window length and statistics
+	 * @param downstream  receives the statistics, the record is reused after returning
+	 */
+	SinkAggregator(final Aggregation aggregation, final Consumer<MeasurementRecord> downstream) {
+		this.windowMillis = aggregation.getWindowMillis();
+		this.aggregates = aggregation.getAggregates().toArray(new Aggregate[0]);
+		this.downstream = downstream;
+	}
+
+	/**
+	 * Adds a measurement to the window of its timestamp, emitting the previous window of the same series if it ended.
+	 *
+	 * @param measurement the measurement
+	 */
+	void add(final MeasurementRecord measurement) {
+		final long start = Math.floorDiv(measurement.getTimestamp(), windowMillis) * windowMillis;
+		final double value = measurement.isFloatingPoint() ? measurement.getDoubleValue() : measurement.getLongValue();
+		final int slot = series.slot(measurement);
+		if (slot == counts.length) {
+			grow();
+		}
+		samples++;
+		if (start <= emittedStarts[slot] || counts[slot] > 0 && start < windowStarts[slot]) {
+			late++;
+			return;
+		}
+		if (counts[slot] > 0 && windowStarts[slot] != start) {
+			emit(slot);
+		}
+		if (counts[slot] == 0) {
+			windowStarts[slot] = start;
+			counts[slot] = 1;
+			mins[slot] = value;
+			maxs[slot] = value;
+			sums[slot] = value;
+			lasts[slot] = value;
+			floatingPoints[slot] = measurement.isFloatingPoint();
+			nextDeadline = Math.min(nextDeadline, start + windowMillis);
+		} else {
+			counts[slot]++;
+			mins[slot] = Math.min(mins[slot], value);
+			maxs[slot] = Math.max(maxs[slot], value);
+			sums[slot] += value;
+			lasts[slot] = value;
+			floatingPoints[slot] |= measurement.isFloatingPoint();
+		}
+	}
+
+	/**
+	 * Emits all windows ended at the given time. Returns immediately while no window ended yet.
+	 *
+	 * @param now the current time in milliseconds since the epoch
+	 */
+	void closeExpired(final long now) {
+		if (now < nextDeadline) {
+			return;
+		}
+		long next = Long.MAX_VALUE;
+		for (int slot = 0; slot < series.size(); slot++) {
+			if (counts[slot] > 0) {
+				final long end = windowStarts[slot] + windowMillis;
+				if (end <= now) {
+					emit(slot);
+				} else {
+					next = Math.min(next, end);
+				}
+			}
+		}
+		nextDeadline = next;
+	}
+
+	/**
+	 * Gets the time {@link #closeExpired(long)} has windows to emit at. May be called by any thread.
+	 *
+	 * @return the end of the earliest open window or {@link Long#MAX_VALUE} if no window is open
+	 */
+	long getNextDeadline() {
+		return nextDeadline;
+	}
+
+	private void grow() {
+		final int capacity = counts.length * 2;
+		windowStarts = Arrays.copyOf(windowStarts, capacity);
+		counts = Arrays.copyOf(counts, capacity);
+		mins = Arrays.copyOf(mins, capacity);
+		maxs = Arrays.copyOf(maxs, capacity);
+		sums = Arrays.copyOf(sums, capacity);
+		lasts = Arrays.copyOf(lasts, capacity);
+		floatingPoints = Arrays.copyOf(floatingPoints, capacity);
+		final long[] grownEmittedStarts = newEmittedStarts(capacity, emittedStarts.length);
+		System.arraycopy(emittedStarts, 0, grownEmittedStarts, 0, emittedStarts.length);
+		emittedStarts = grownEmittedStarts;
+	}
+
+	private static long[] newEmittedStarts(final int capacity, final int from) {
+		final long[] starts = new long[capacity];
+		Arrays.fill(starts, from, capacity, Long.MIN_VALUE);
+		return starts;
+	}
+
+	private void emit(final int slot) {
+		final long start = windowStarts[slot];
+		final long count = counts[slot];
+		final boolean floatingPoint = floatingPoints[slot];
+		final MRP mrp = series.getMrp(slot);
+		for (final Aggregate aggregate : aggregates) {
+			switch (aggregate) {
+			case MIN:
+				set(mrp, mins[slot], floatingPoint);
+				break;
+			case MAX:
+				set(mrp, maxs[slot], floatingPoint);
+				break;
+			case MEAN:
+				output.set(mrp, sums[slot] / count);
+				break;
+			case LAST:
+				set(mrp, lasts[slot], floatingPoint);
+				break;
+			case COUNT:
+			default:
+				output.set(mrp, count);
+				break;
+			}
+			output.setChannel(series.getChannel(slot));
+			output.setDeviceId(series.getDeviceId(slot));
+			output.setTimestamp(start);
+			output.setAggregate(aggregate);
+			downstream.accept(output);
+		}
+		counts[slot] = 0;
+		emittedStarts[slot] = start;
+		windows++;
+	}
+
+	private void set(final MRP mrp, final double value, final boolean floatingPoint) {
+		if (floatingPoint) {
+			output.set(mrp, value);
+		} else {
+			output.set(mrp, (long) value);
+		}
+	}
+
+	/**
+	 * Adds the counters of this aggregator to the given statistics.
+	 *
+	 * @param prefix     the prefix of the counter names
+	 * @param statistics counter names mapped to their values
+	 */
+	void collectStatistics(final String prefix, final Map<String, Number> statistics) {
+		statistics.put(prefix + ".samples", samples);
+		statistics.put(prefix + ".windows", windows);
+		statistics.put(prefix + ".late", late);
+	}
+
+	@Override
+	public String toString() {
+		return "SinkAggregator " + windowMillis + "ms " + Arrays.toString(aggregates);
+	}
+}
@@ -0,0 +1,655 @@
+package de.mechrain.device.sink;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.mechrain.device.connection.IoMode;
+import de.mechrain.log.Logging;
+import de.mechrain.protocol.AbstractMechRainDataUnit;
+import de.mechrain.protocol.MRP;
+import de.mechrain.protocol.MeasurementRecord;
+import de.mechrain.util.HashedWheelTimer;
+import de.mechrain.util.LatencyHistogram;
+import de.mechrain.util.ThreadSupport;
+
+/**
+ * Hands received values to a sink on a shared worker pool, so a slow sink does not stall reading from the device.
+ * <p>
+ * Readers publish into a bounded lock-free {@link Ring} of preallocated slots, measurements are copied field by field so
+ * publishing does not allocate. Publishing schedules the dispatcher on the pool unless it is scheduled already, the
+ * worker running it delivers the slots in order, so a dispatcher runs on one worker at a time. Time driven work, i.e.
+ * emitting ended aggregation windows, replaying the spool and flushing it, is scheduled by a shared tick that only
+ * checks each dispatcher, idle dispatchers do not occupy a thread. When the ring is full the {@link Backpressure} of
+ * the sink applies. If the sink defines a {@link Deadband} or an {@link Aggregation} the worker filters and downsamples
+ * the measurements before delivering or spooling them.
+ */
+public class SinkDispatcher {
+
+	private static final Logger LOG = LogManager.getLogger(Logging.SINK);
+
+	/** Number of slots of the ring of each sink, rounded up to a power of two (default 1024) */
+	public static final String CAPACITY_PROPERTY = "mechrain.dispatch.capacity";
+	/** {@link Backpressure} of sinks that do not define their own (default DROP) */
+	public static final String BACKPRESSURE_PROPERTY = "mechrain.dispatch.backpressure";
+	/** Maximum number of spooled measurements replayed per second once the sink is available again (default 1000) */
+	public static final String REPLAY_RATE_PROPERTY = "mechrain.spool.replayRate";
+	/** Number of threads running the dispatchers of all sinks (default number of processors, at least 2) */
+	public static final String THREADS_PROPERTY = "mechrain.dispatch.threads";
+
+	/**
+	 * Behavior when a value is published to a full ring.
+	 */
+	public enum Backpressure {
+		/**
+		 * Wait until the sink caught up, this stalls the publishing reader. With {@link IoMode#NIO} the reader is shared
+		 * by many devices, SPILL is used instead.
+		 */
+		BLOCK,
+		/** Drop the new value */
+		DROP,
+		/**
+		 * Spool the measurement to disk, it is replayed later. The measurement is handed to the worker through an overflow
+		 * ring of the same capacity, it is dropped if that is full too.
+		 */
+		SPILL
+	}
+
+	private static final long TICK_MILLIS = 100;
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+	private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+	/* slots delivered per run before the worker moves on to other dispatchers */
+	private static final int DRAIN_BATCH = 256;
+	private static final int REPLAY_BATCH = 64;
+	private static final long STOP_TIMEOUT_MILLIS = 5000;
+
+	/** Threads running the dispatchers of all sinks, each dispatcher is queued at most once */
+	private static final ThreadPoolExecutor EXECUTOR = ThreadSupport.newBoundedExecutor("Sink-Dispatch",
+			Math.max(1, Integer.getInteger(THREADS_PROPERTY, Math.max(2, Runtime.getRuntime().availableProcessors()))), 4096);
+	/* dispatchers checked by the tick */
+	private static final Set<SinkDispatcher> ACTIVE = ConcurrentHashMap.newKeySet();
+
+	static {
+		HashedWheelTimer.shared().scheduleAtFixedRate(SinkDispatcher::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	private final IDataSink sink;
+	private final Backpressure backpressure;
+	private final String name;
+
+	private final Ring ring;
+	/* measurements spilled from the full ring, written to the spool by the worker */
+	private final Ring overflow;
+
+	private final SinkSpool spool;
+	private final int replayRate;
+	private final MeasurementRecord replayRecord = new MeasurementRecord();
+	/* written by the worker, read by the tick */
+	private volatile long nextReplayNanos;
+	private volatile long lastFlushNanos;
+	private volatile boolean spoolDirty;
+	/* spooled measurements may be waiting, read by the tick instead of locking the spool */
+	private volatile boolean spoolPending;
+
+	private final DeadbandFilter deadband;
+	private final SinkAggregator aggregator;
+
+	private final MeasurementRecord record = new MeasurementRecord();
+	/* set while the dispatcher is queued or running on the pool */
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final CountDownLatch terminated = new CountDownLatch(1);
+	private volatile boolean running = true;
+
+	private final LongAdder published = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder spilled = new LongAdder();
+	private final LongAdder blocked = new LongAdder();
+	private final LongAdder unavailable = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder replayed = new LongAdder();
+	private final LatencyHistogram lag = new LatencyHistogram();
+
+	/**
+	 * Creates a dispatcher configured by the {@value #CAPACITY_PROPERTY}, {@value #BACKPRESSURE_PROPERTY} and
+	 * {@value #REPLAY_RATE_PROPERTY} system properties and starts it. Measurements are spooled to the
+	 * {@link SinkSpool} of the same name while the sink is unavailable.
+	 *
+	 * @param sink the sink to deliver to
+	 * @param name the name of the dispatcher and the spool
+	 */
+	public SinkDispatcher(final IDataSink sink, final String name) {
+		this(sink, name, Integer.getInteger(CAPACITY_PROPERTY, 1024), configuredBackpressure(sink), new SinkSpool(name));
+	}
+
+	private static Backpressure configuredBackpressure(final IDataSink sink) {
+		final Backpressure backpressure = sink.getBackpressure() != null ? sink.getBackpressure()
+				: Backpressure.valueOf(System.getProperty(BACKPRESSURE_PROPERTY, Backpressure.DROP.name()).toUpperCase());
+		if (backpressure == Backpressure.BLOCK && IoMode.configured() == IoMode.NIO) {
+			/* blocking would stall the selector thread and with it all devices of its loop */
+			LOG.warn(() -> "Backpressure BLOCK of " + sink + " is not supported with NIO connections, using SPILL");
+			return Backpressure.SPILL;
+		}
+		return backpressure;
+	}
+
+	/**
+	 * Creates a dispatcher and starts it.
+	 *
+	 * @param sink         the sink to deliver to
+	 * @param name         the name of the dispatcher
+	 * @param capacity     the number of slots of the ring, rounded up to a power of two
+	 * @param backpressure the behavior when the ring is full
+	 * @param spool        the spool of measurements the sink could not take or null to drop them
+	 */
+	public SinkDispatcher(final IDataSink sink, final String name, final int capacity, final Backpressure backpressure,
+			final SinkSpool spool) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		this.sink = sink;
+		this.name = name;
+		this.backpressure = backpressure;
+		this.ring = new Ring(capacity);
+		this.overflow = backpressure == Backpressure.SPILL && spool != null ? new Ring(capacity) : null;
+		this.spool = spool;
+		this.replayRate = Math.max(1, Integer.getInteger(REPLAY_RATE_PROPERTY, 1000));
+		this.deadband = sink.getDeadband() != null ? new DeadbandFilter(sink.getDeadband()) : null;
+		final Aggregation aggregation = sink.getAggregation();
+		this.aggregator = aggregation != null ? new SinkAggregator(aggregation, m -> deliver(m, null)) : null;
+		/* the worker checks for measurements left from the last run */
+		this.spoolPending = spool != null;
+		ACTIVE.add(this);
+		LOG.debug(() -> "Started dispatcher " + name);
+	}
+
+	public IDataSink getSink() {
+		return sink;
+	}
+
+	/**
+	 * Publishes a measurement, the record is copied and may be reused after returning.
+	 *
+	 * @param measurement the measurement
+	 */
+	public void publish(final MeasurementRecord measurement) {
+		publish(measurement, null);
+	}
+
+	/**
+	 * Publishes a data unit.
+	 *
+	 * @param dataUnit the data unit
+	 */
+	public void publish(final AbstractMechRainDataUnit dataUnit) {
+		publish(null, dataUnit);
+	}
+
+	private void publish(final MeasurementRecord measurement, final AbstractMechRainDataUnit dataUnit) {
+		published.increment();
+		while ( ! offer(measurement, dataUnit)) {
+			switch (backpressure) {
+			case BLOCK:
+				if ( ! running) {
+					dropped.increment();
+					return;
+				}
+				blocked.increment();
+				LockSupport.parkNanos(BLOCK_PARK_NANOS);
+				break;
+			case SPILL:
+				/* the worker writes the spool, a slow disk must not stall the publishing reader */
+				if (measurement != null && overflow != null && overflow.offer(measurement, null)) {
+					schedule();
+				} else {
+					dropped.increment();
+				}
+				return;
+			case DROP:
+			default:
+				dropped.increment();
+				LOG.trace(() -> "Ring of " + name + " full, dropped value");
+				return;
+			}
+		}
+	}
+
+	private boolean offer(final MeasurementRecord measurement, final AbstractMechRainDataUnit dataUnit) {
+		if ( ! ring.offer(measurement, dataUnit)) {
+			return false;
+		}
+		schedule();
+		return true;
+	}
+
+	/**
+	 * Queues the dispatcher on the pool unless it is queued or running already.
+	 */
+	private void schedule() {
+		if ( ! scheduled.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			EXECUTOR.execute(this::run);
+		} catch (final RejectedExecutionException e) {
+			/* pool saturated, the next tick tries again */
+			scheduled.set(false);
+		}
+	}
+
+	/**
+	 * Checks the time driven work of all dispatchers, called by the timer.
+	 */
+	private static void tick() {
+		final long now = System.currentTimeMillis();
+		final long nanos = System.nanoTime();
+		for (final SinkDispatcher dispatcher : ACTIVE) {
+			if (dispatcher.isDue(now, nanos)) {
+				dispatcher.schedule();
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the dispatcher has work without running it.
+	 */
+	private boolean isDue(final long now, final long nanos) {
+		if ( ! isEmpty() || ! running) {
+			/* also covers a run that could not be queued */
+			return true;
+		}
+		if (aggregator != null && now >= aggregator.getNextDeadline()) {
+			return true;
+		}
+		if (spoolDirty && nanos - lastFlushNanos >= TICK_NANOS) {
+			return true;
+		}
+		return isReplayDue(nanos);
+	}
+
+	private boolean isReplayDue(final long nanos) {
+		return spoolPending && nanos >= nextReplayNanos && sink.isAvailable();
+	}
+
+	/**
+	 * Runs on a worker of the pool, delivers up to one batch of slots and replays spooled measurements.
+	 */
+	private void run() {
+		try {
+			if (running) {
+				drain();
+			}
+			if ( ! running && terminated.getCount() > 0) {
+				/* spilled measurements are kept for the next run */
+				spillOverflow(Integer.MAX_VALUE);
+				if (aggregator != null) {
+					/* deliver or spool the open windows instead of losing them */
+					aggregator.closeExpired(Long.MAX_VALUE);
+				}
+				LOG.debug(() -> "Stopped dispatcher " + name);
+				terminated.countDown();
+				return;
+			}
+		} catch (final RuntimeException e) {
+			LOG.error(() -> "Dispatcher " + name + " failed", e);
+		} finally {
+			scheduled.set(false);
+		}
+		/* re-check after releasing, a publisher may have seen the dispatcher still scheduled */
+		if ( ! isEmpty() || isReplayDue(System.nanoTime()) || ! running && terminated.getCount() > 0) {
+			schedule();
+		}
+	}
+
+	private void drain() {
+		if (aggregator != null) {
+			aggregator.closeExpired(System.currentTimeMillis());
+		}
+		int count = spillOverflow(DRAIN_BATCH);
+		while (count < DRAIN_BATCH && poll()) {
+			count++;
+		}
+		while (count < DRAIN_BATCH && replay()) {
+			count += REPLAY_BATCH;
+		}
+		if (spoolDirty && isEmpty() && System.nanoTime() - lastFlushNanos >= TICK_NANOS) {
+			/* idle, make spooled measurements durable */
+			spoolDirty = false;
+			spool.flush();
+			lastFlushNanos = System.nanoTime();
+		}
+	}
+
+	private boolean isEmpty() {
+		return ring.isEmpty() && (overflow == null || overflow.isEmpty());
+	}
+
+	/**
+	 * Writes measurements spilled from the full ring to the spool.
+	 *
+	 * @param max the maximum number of measurements to write
+	 * @return the number of measurements taken from the overflow
+	 */
+	private int spillOverflow(final int max) {
+		if (overflow == null) {
+			return 0;
+		}
+		int count = 0;
+		while (count < max && ! overflow.isEmpty()) {
+			overflow.take(record);
+			if (spool.append(record)) {
+				spoolDirty = true;
+				spoolPending = true;
+				spilled.increment();
+			} else {
+				dropped.increment();
+			}
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Delivers the oldest slot of the ring.
+	 *
+	 * @return false if the ring is empty
+	 */
+	private boolean poll() {
+		if (ring.isEmpty()) {
+			return false;
+		}
+		final AbstractMechRainDataUnit dataUnit = ring.take(record);
+		lag.record(System.nanoTime() - ring.takenPublishNanos);
+		if (dataUnit != null) {
+			deliver(null, dataUnit);
+		} else {
+			process(record);
+		}
+		return true;
+	}
+
+	/**
+	 * Delivers the next spooled measurements once the sink is available again, limited to the configured replay rate.
+	 * Measurements spooled after the deadband and aggregation are delivered as is. Measurements spilled from the full
+	 * ring skip the deadband and are aggregated, windows emitted meanwhile drop them as late.
+	 *
+	 * @return true if measurements were replayed
+	 */
+	private boolean replay() {
+		if (spool == null || System.nanoTime() < nextReplayNanos || ! sink.isAvailable()) {
+			return false;
+		}
+		int count = 0;
+		while (count < REPLAY_BATCH && sink.isAvailable()) {
+			if ( ! spool.poll(replayRecord)) {
+				/* re-check after clearing, a publisher may have spilled meanwhile */
+				spoolPending = false;
+				if ( ! spool.isEmpty()) {
+					spoolPending = true;
+				}
+				break;
+			}
+			spoolDirty = true;
+			if (spool.isPolledProcessed() || replayRecord.getAggregate() != null) {
+				deliver(replayRecord, null);
+			} else if (aggregator != null) {
+				/* spilled from a full ring, the deadband reference is newer by now and is not moved back */
+				aggregator.add(replayRecord);
+			} else {
+				deliver(replayRecord, null);
+			}
+			count++;
+		}
+		if (count == 0) {
+			return false;
+		}
+		replayed.add(count);
+		/* the rate is kept on average across the ticks, a pause does not add up to a burst of more than one tick */
+		nextReplayNanos = Math.max(nextReplayNanos, System.nanoTime() - TICK_NANOS)
+				+ count * TimeUnit.SECONDS.toNanos(1) / replayRate;
+		return true;
+	}
+
+	/**
+	 * Passes a measurement through the deadband to the aggregator, measurements without aggregation are delivered.
+	 */
+	private void process(final MeasurementRecord measurement) {
+		if (deadband != null && ! deadband.accept(measurement)) {
+			/* suppressed */
+		} else if (aggregator != null) {
+			aggregator.add(measurement);
+		} else {
+			deliver(measurement, null);
+		}
+	}
+
+	private void deliver(final MeasurementRecord measurement, final AbstractMechRainDataUnit dataUnit) {
+		if ( ! sink.isAvailable()) {
+			/* replayed as is, the measurement already passed the deadband and aggregation */
+			if (measurement != null && spool != null && spool.append(measurement, true)) {
+				spoolDirty = true;
+				spoolPending = true;
+				spilled.increment();
+			} else {
+				unavailable.increment();
+				LOG.debug(() -> "Sink " + sink + " unavailable");
+			}
+			return;
+		}
+		try {
+			if (measurement != null) {
+				sink.handleMeasurement(measurement);
+			} else {
+				sink.handleDataUnit(dataUnit);
+			}
+		} catch (final RuntimeException e) {
+			failed.increment();
+			LOG.error(() -> "Sink " + sink + " failed to handle value", e);
+		}
+	}
+
+	/**
+	 * Gets the number of values published but not yet delivered.
+	 *
+	 * @return the number of pending values
+	 */
+	public long getLag() {
+		final long pending = ring.size() + (overflow != null ? overflow.size() : 0);
+		return spool != null ? pending + spool.getRecords() : pending;
+	}
+
+	/**
+	 * Stops the dispatcher and waits until its worker emitted the open aggregation windows. Values in the ring are
+	 * discarded, spooled measurements are kept for the next run.
+	 *
+	 * @param deleteSpool true to delete the spooled measurements, e.g. when the sink was removed
+	 */
+	public void stop(final boolean deleteSpool) {
+		running = false;
+		ACTIVE.remove(this);
+		schedule();
+		try {
+			if ( ! terminated.await(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+				LOG.warn(() -> "Dispatcher " + name + " did not stop within " + STOP_TIMEOUT_MILLIS + "ms");
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (spool != null) {
+			if (deleteSpool) {
+				spool.delete();
+			} else {
+				spool.close();
+			}
+		}
+	}
+
+	/**
+	 * Adds the counters of this dispatcher to the given statistics.
+	 *
+	 * @param prefix     the prefix of the counter names
+	 * @param statistics counter names mapped to their values
+	 */
+	public void collectStatistics(final String prefix, final Map<String, Number> statistics) {
+		statistics.put(prefix + ".dispatch.lag", getLag());
+		statistics.put(prefix + ".dispatch.published", published.sum());
+		statistics.put(prefix + ".dispatch.dropped", dropped.sum());
+		statistics.put(prefix + ".dispatch.spilled", spilled.sum());
+		statistics.put(prefix + ".dispatch.blocked", blocked.sum());
+		statistics.put(prefix + ".dispatch.unavailable", unavailable.sum());
+		statistics.put(prefix + ".dispatch.failed", failed.sum());
+		if (spool != null) {
+			statistics.put(prefix + ".spool.records", spool.getRecords());
+			statistics.put(prefix + ".spool.bytes", spool.getBytes());
+			statistics.put(prefix + ".spool.evicted", spool.getEvicted());
+			statistics.put(prefix + ".spool.replayed", replayed.sum());
+		}
+		lag.collectStatistics(prefix + ".dispatch.delay", statistics);
+		if (deadband != null) {
+			deadband.collectStatistics(prefix + ".deadband", statistics);
+		}
+		if (aggregator != null) {
+			aggregator.collectStatistics(prefix + ".aggregate", statistics);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SinkDispatcher " + name + ' ' + backpressure + " capacity:" + ring.capacity();
+	}
+
+	/**
+	 * Bounded lock-free ring of preallocated slots for any number of publishers and a single consumer, see Vyukov's
+	 * bounded MPMC queue. Measurements are copied field by field, so publishing does not allocate.
+	 */
+	private static final class Ring {
+
+		private final int mask;
+		/* slot sequence numbers */
+		private final AtomicLongArray sequences;
+		private final AtomicLong tail = new AtomicLong();
+		/* written by the consumer only */
+		private volatile long head;
+
+		private final MRP[] mrps;
+		private final AbstractMechRainDataUnit[] dataUnits;
+		private final int[] deviceIds;
+		private final int[] channels;
+		private final boolean[] floatingPoints;
+		private final long[] values;
+		private final long[] timestamps;
+		private final long[] publishNanos;
+		/* publish time of the slot taken last, read by the consumer only */
+		private long takenPublishNanos;
+
+		/**
+		 * @param capacity the number of slots, rounded up to a power of two
+		 */
+		private Ring(final int capacity) {
+			final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+			this.mask = size - 1;
+			this.sequences = new AtomicLongArray(size);
+			for (int i = 0; i < size; i++) {
+				sequences.set(i, i);
+			}
+			this.mrps = new MRP[size];
+			this.dataUnits = new AbstractMechRainDataUnit[size];
+			this.deviceIds = new int[size];
+			this.channels = new int[size];
+			this.floatingPoints = new boolean[size];
+			this.values = new long[size];
+			this.timestamps = new long[size];
+			this.publishNanos = new long[size];
+		}
+
+		/**
+		 * Publishes a measurement or a data unit.
+		 *
+		 * @return false if the ring is full
+		 */
+		private boolean offer(final MeasurementRecord measurement, final AbstractMechRainDataUnit dataUnit) {
+			long position;
+			int index;
+			while (true) {
+				position = tail.get();
+				index = (int) position & mask;
+				final long difference = sequences.get(index) - position;
+				if (difference == 0) {
+					if (tail.compareAndSet(position, position + 1)) {
+						break;
+					}
+				} else if (difference < 0) {
+					/* full */
+					return false;
+				}
+			}
+			if (measurement != null) {
+				mrps[index] = measurement.getMrp();
+				deviceIds[index] = measurement.getDeviceId();
+				channels[index] = measurement.getChannel();
+				floatingPoints[index] = measurement.isFloatingPoint();
+				values[index] = measurement.isFloatingPoint() ? Double.doubleToRawLongBits(measurement.getDoubleValue())
+						: measurement.getLongValue();
+				timestamps[index] = measurement.getTimestamp();
+			} else {
+				dataUnits[index] = dataUnit;
+			}
+			publishNanos[index] = System.nanoTime();
+			/* publishes the slot to the consumer */
+			sequences.set(index, position + 1);
+			return true;
+		}
+
+		private boolean isEmpty() {
+			return sequences.get((int) head & mask) != head + 1;
+		}
+
+		/**
+		 * Takes the oldest slot, the ring must not be empty.
+		 *
+		 * @param target receives the measurement of the slot
+		 * @return the data unit of the slot or null if it holds a measurement
+		 */
+		private AbstractMechRainDataUnit take(final MeasurementRecord target) {
+			final long position = head;
+			final int index = (int) position & mask;
+			final AbstractMechRainDataUnit dataUnit = dataUnits[index];
+			if (dataUnit != null) {
+				dataUnits[index] = null;
+			} else {
+				if (floatingPoints[index]) {
+					target.set(mrps[index], Double.longBitsToDouble(values[index]));
+				} else {
+					target.set(mrps[index], values[index]);
+				}
+				target.setDeviceId(deviceIds[index]);
+				target.setChannel(channels[index]);
+				target.setTimestamp(timestamps[index]);
+			}
+			takenPublishNanos = publishNanos[index];
+			/* frees the slot for publishers */
+			sequences.set(index, position + mask + 1);
+			head = position + 1;
+			return dataUnit;
+		}
+
+		private long size() {
+			return Math.max(0, tail.get() - head);
+		}
+
+		private int capacity() {
+			return mask + 1;
+		}
+	}
+}
@@ -0,0 +1,505 @@
+package de.mechrain.device.sink;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.mechrain.log.Logging;
+import de.mechrain.protocol.MRP;
+import de.mechrain.protocol.MeasurementRecord;
+import de.mechrain.protocol.MeasurementRecord.Aggregate;
+
+/**
+ * Durable first in, first out store of measurements a sink could not take, replayed once the sink is available again.
+ * <p>
+ * Records are appended to segment files of fixed size records in a directory per sink. When the spool exceeds its
+ * size limit the oldest segment is deleted. The replay position is kept in a cursor file, so the spool survives server
+ * restarts. Appends are buffered and written to the file channel when the buffer is full or {@link #flush()} is called,
+ * data is not forced to the disk. All methods are synchronized since the spool is written by readers and the
+ * dispatcher worker.
+ */
+public class SinkSpool {
+
+	private static final Logger LOG = LogManager.getLogger(Logging.SINK);
+
+	/** Directory holding the spools of all sinks (default spool) */
+	public static final String DIR_PROPERTY = "mechrain.spool.dir";
+	/** Size of a segment file in bytes (default 4 MiB) */
+	public static final String SEGMENT_BYTES_PROPERTY = "mechrain.spool.segmentBytes";
+	/** Maximum size of the spool of a sink in bytes, oldest segments are evicted beyond (default 64 MiB) */
+	public static final String MAX_BYTES_PROPERTY = "mechrain.spool.maxBytes";
+
+	/*
+	 * Record layout, big endian:
+	 * MRP (1) | flags (1) | channel (2) | device ID (4) | value (8) | timestamp (8)
+	 * flags: bit 0 floating point, bits 1-3 aggregate ordinal + 1 or 0 for a single measurement, bit 4 processed
+	 */
+	static final int RECORD_LENGTH = 24;
+	private static final int FLAG_FLOATING_POINT = 1;
+	private static final int AGGREGATE_SHIFT = 1;
+	private static final int AGGREGATE_MASK = 0x7;
+	private static final int FLAG_PROCESSED = 1 << 4;
+	private static final int BUFFERED_RECORDS = 512;
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String CURSOR_FILE = "cursor";
+
+	private static final MRP[] MRPS = MRP.values();
+	private static final Aggregate[] AGGREGATES = Aggregate.values();
+
+	private final Path dir;
+	private final long segmentBytes;
+	private final long maxBytes;
+
+	/* sequence numbers of all segments, oldest first, the last one is written */
+	private final ArrayDeque<Long> segments = new ArrayDeque<>();
+	private FileChannel writeChannel;
+	private long writeSegment = -1;
+	private long writeSize;
+	private final ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFERED_RECORDS * RECORD_LENGTH);
+
+	private FileChannel readChannel;
+	private long readSegment = -1;
+	private long readPosition;
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(BUFFERED_RECORDS * RECORD_LENGTH);
+
+	private FileChannel cursorChannel;
+	private final ByteBuffer cursorBuffer = ByteBuffer.allocate(16);
+
+	private long totalBytes;
+	private long records;
+	private long evicted;
+	private boolean polledProcessed;
+	private boolean opened;
+	private boolean closed;
+
+	/**
+	 * Creates the spool for the given sink configured by the {@value #DIR_PROPERTY}, {@value #SEGMENT_BYTES_PROPERTY}
+	 * and {@value #MAX_BYTES_PROPERTY} system properties. Files are opened on first use.
+	 *
+	 * @param name the name of the spool directory
+	 */
+	public SinkSpool(final String name) {
+		this(Path.of(System.getProperty(DIR_PROPERTY, "spool"), name), Long.getLong(SEGMENT_BYTES_PROPERTY, 4L << 20),
+				Long.getLong(MAX_BYTES_PROPERTY, 64L << 20));
+	}
+
+	public SinkSpool(final Path dir, final long segmentBytes, final long maxBytes) {
+		if (segmentBytes < RECORD_LENGTH || maxBytes < 2 * segmentBytes) {
+			throw new IllegalArgumentException("Spool must hold at least two segments of at least one record");
+		}
+		this.dir = dir;
+		/* segments hold whole records */
+		this.segmentBytes = segmentBytes - segmentBytes % RECORD_LENGTH;
+		this.maxBytes = maxBytes;
+		readBuffer.limit(0);
+	}
+
+	/**
+	 * Opens the segments left by a previous run, if any.
+	 */
+	private void open() throws IOException {
+		if (opened) {
+			return;
+		}
+		opened = true;
+		if ( ! Files.isDirectory(dir)) {
+			return;
+		}
+		final List<Long> found = new ArrayList<>();
+		try (final DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SEGMENT_SUFFIX)) {
+			for (final Path path : stream) {
+				final String file = path.getFileName().toString();
+				try {
+					found.add(Long.parseLong(file.substring(0, file.length() - SEGMENT_SUFFIX.length())));
+				} catch (final NumberFormatException e) {
+					LOG.warn(() -> "Ignoring unexpected spool file " + path);
+				}
+			}
+		}
+		Collections.sort(found);
+		long cursorSegment = -1;
+		long cursorPosition = 0;
+		final Path cursor = dir.resolve(CURSOR_FILE);
+		if (Files.exists(cursor)) {
+			final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(cursor));
+			if (buffer.remaining() >= 16) {
+				cursorSegment = buffer.getLong();
+				cursorPosition = buffer.getLong();
+			}
+		}
+		for (final long segment : found) {
+			final Path path = segmentPath(segment);
+			if (segment < cursorSegment) {
+				/* replayed before the restart */
+				Files.deleteIfExists(path);
+				continue;
+			}
+			long size = Files.size(path);
+			if (size % RECORD_LENGTH != 0) {
+				/* torn write of the last record */
+				size -= size % RECORD_LENGTH;
+				try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+					channel.truncate(size);
+				}
+			}
+			segments.add(segment);
+			totalBytes += size;
+			records += size / RECORD_LENGTH;
+		}
+		if ( ! segments.isEmpty()) {
+			if (segments.peekFirst() == cursorSegment) {
+				readPosition = Math.min(cursorPosition, Files.size(segmentPath(cursorSegment)));
+				records -= readPosition / RECORD_LENGTH;
+			}
+			readSegment = segments.peekFirst();
+			final long last = segments.peekLast();
+			writeSegment = last;
+			writeChannel = FileChannel.open(segmentPath(last), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			writeSize = writeChannel.size();
+			LOG.info(() -> "Recovered " + records + " spooled records in " + segments.size() + " segments from " + dir);
+		}
+	}
+
+	private Path segmentPath(final long segment) {
+		return dir.resolve(String.format("%016d", segment) + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * Appends a measurement that was not processed by the deadband and aggregation of the sink yet, evicting the oldest
+	 * segment if the spool is full.
+	 *
+	 * @param measurement the measurement
+	 * @return false if the spool is closed or could not be written
+	 */
+	public boolean append(final MeasurementRecord measurement) {
+		return append(measurement, false);
+	}
+
+	/**
+	 * Appends a measurement, evicting the oldest segment if the spool is full.
+	 *
+	 * @param measurement the measurement
+	 * @param processed   true if the measurement passed the deadband and aggregation of the sink and is to be delivered
+	 *                    as is
+	 * @return false if the spool is closed or could not be written
+	 */
+	public synchronized boolean append(final MeasurementRecord measurement, final boolean processed) {
+		if (closed) {
+			return false;
+		}
+		try {
+			open();
+			if (writeChannel == null || writeSize + writeBuffer.position() >= segmentBytes) {
+				roll();
+			}
+			writeBuffer.put((byte) measurement.getMrp().ordinal())
+				.put(flags(measurement, processed))
+				.putShort((short) measurement.getChannel())
+				.putInt(measurement.getDeviceId())
+				.putLong(measurement.isFloatingPoint() ? Double.doubleToRawLongBits(measurement.getDoubleValue())
+						: measurement.getLongValue())
+				.putLong(measurement.getTimestamp());
+			totalBytes += RECORD_LENGTH;
+			records++;
+			if ( ! writeBuffer.hasRemaining()) {
+				writeBuffered();
+			}
+			return true;
+		} catch (final IOException e) {
+			LOG.error(() -> "Could not append to spool " + dir, e);
+			return false;
+		}
+	}
+
+	private static byte flags(final MeasurementRecord measurement, final boolean processed) {
+		int flags = measurement.isFloatingPoint() ? FLAG_FLOATING_POINT : 0;
+		if (processed) {
+			flags |= FLAG_PROCESSED;
+		}
+		if (measurement.getAggregate() != null) {
+			flags |= (measurement.getAggregate().ordinal() + 1) << AGGREGATE_SHIFT;
+		}
+		return (byte) flags;
+	}
+
+	/**
+	 * Starts a new segment, evicting the oldest segments while the spool is too large.
+	 */
+	private void roll() throws IOException {
+		writeBuffered();
+		if (writeChannel != null) {
+			writeChannel.close();
+		}
+		while (totalBytes + segmentBytes > maxBytes && ! segments.isEmpty()) {
+			evictOldest();
+		}
+		Files.createDirectories(dir);
+		writeSegment++;
+		if (writeSegment <= 0) {
+			writeSegment = System.currentTimeMillis();
+		}
+		writeChannel = FileChannel.open(segmentPath(writeSegment), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		writeSize = 0;
+		segments.add(writeSegment);
+		if (readSegment < 0) {
+			readSegment = writeSegment;
+			readPosition = 0;
+		}
+	}
+
+	private void evictOldest() throws IOException {
+		final long oldest = segments.pollFirst();
+		final Path path = segmentPath(oldest);
+		final long size = Files.size(path);
+		final long lost = (oldest == readSegment ? size - readPosition + readBuffer.remaining() : size) / RECORD_LENGTH;
+		if (oldest == readSegment) {
+			closeRead();
+			readSegment = segments.isEmpty() ? -1 : segments.peekFirst();
+			readPosition = 0;
+		}
+		Files.deleteIfExists(path);
+		totalBytes -= size;
+		records -= lost;
+		evicted += lost;
+		LOG.warn(() -> "Spool " + dir + " full, evicted " + lost + " records");
+	}
+
+	private void writeBuffered() throws IOException {
+		if (writeBuffer.position() == 0) {
+			return;
+		}
+		writeBuffer.flip();
+		while (writeBuffer.hasRemaining()) {
+			writeSize += writeChannel.write(writeBuffer);
+		}
+		writeBuffer.clear();
+	}
+
+	/**
+	 * Reads the oldest spooled measurement.
+	 *
+	 * @param target the record to read into
+	 * @return false if the spool is empty
+	 */
+	public synchronized boolean poll(final MeasurementRecord target) {
+		if (closed || records == 0) {
+			return false;
+		}
+		try {
+			open();
+			while ( ! readBuffer.hasRemaining()) {
+				if ( ! fillReadBuffer()) {
+					return false;
+				}
+			}
+			final MRP mrp = MRPS[readBuffer.get() & 0xFF];
+			final int flags = readBuffer.get();
+			final boolean floatingPoint = (flags & FLAG_FLOATING_POINT) != 0;
+			final int aggregate = (flags >> AGGREGATE_SHIFT) & AGGREGATE_MASK;
+			final int channel = readBuffer.getShort();
+			final int deviceId = readBuffer.getInt();
+			final long value = readBuffer.getLong();
+			if (floatingPoint) {
+				target.set(mrp, Double.longBitsToDouble(value));
+			} else {
+				target.set(mrp, value);
+			}
+			target.setChannel(channel);
+			target.setDeviceId(deviceId);
+			target.setTimestamp(readBuffer.getLong());
+			target.setAggregate(aggregate == 0 ? null : AGGREGATES[aggregate - 1]);
+			polledProcessed = (flags & FLAG_PROCESSED) != 0;
+			records--;
+			return true;
+		} catch (final IOException e) {
+			LOG.error(() -> "Could not read spool " + dir, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Checks whether the measurement read by the last {@link #poll(MeasurementRecord)} was appended as processed.
+	 *
+	 * @return true if the measurement is to be delivered as is
+	 */
+	public synchronized boolean isPolledProcessed() {
+		return polledProcessed;
+	}
+
+	/**
+	 * Reads the next records of the read segment into the read buffer, moving on to the next segment at its end.
+	 *
+	 * @return false if all records were read
+	 */
+	private boolean fillReadBuffer() throws IOException {
+		if (readSegment == writeSegment) {
+			/* make appended records visible */
+			writeBuffered();
+		}
+		if (readChannel == null) {
+			readChannel = FileChannel.open(segmentPath(readSegment), StandardOpenOption.READ);
+		}
+		readBuffer.clear();
+		while (readBuffer.hasRemaining()) {
+			if (readChannel.read(readBuffer, readPosition + readBuffer.position()) <= 0) {
+				break;
+			}
+		}
+		/* only whole records */
+		readBuffer.limit(readBuffer.position() - readBuffer.position() % RECORD_LENGTH);
+		readBuffer.flip();
+		readPosition += readBuffer.remaining();
+		if (readBuffer.hasRemaining()) {
+			return true;
+		}
+		if (readSegment == writeSegment) {
+			return false;
+		}
+		/* segment completely replayed */
+		closeRead();
+		final long finished = segments.pollFirst();
+		totalBytes -= Files.size(segmentPath(finished));
+		Files.deleteIfExists(segmentPath(finished));
+		readSegment = segments.peekFirst();
+		readPosition = 0;
+		return true;
+	}
+
+	private void closeRead() throws IOException {
+		if (readChannel != null) {
+			readChannel.close();
+			readChannel = null;
+		}
+		readBuffer.clear().limit(0);
+	}
+
+	/**
+	 * Writes buffered appends and persists the replay position, so replayed records are not replayed again after a
+	 * restart.
+	 */
+	public synchronized void flush() {
+		if (closed || ! opened || writeChannel == null) {
+			return;
+		}
+		try {
+			writeBuffered();
+			if (cursorChannel == null) {
+				cursorChannel = FileChannel.open(dir.resolve(CURSOR_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			}
+			cursorBuffer.clear();
+			cursorBuffer.putLong(readSegment).putLong(readPosition - readBuffer.remaining()).flip();
+			cursorChannel.write(cursorBuffer, 0);
+		} catch (final IOException e) {
+			LOG.error(() -> "Could not flush spool " + dir, e);
+		}
+	}
+
+	/**
+	 * Checks whether spooled measurements are waiting for replay.
+	 *
+	 * @return true if the spool is empty
+	 */
+	public synchronized boolean isEmpty() {
+		return getRecords() == 0;
+	}
+
+	/**
+	 * Gets the number of spooled measurements waiting for replay.
+	 *
+	 * @return the number of measurements
+	 */
+	public synchronized long getRecords() {
+		openQuietly();
+		return records;
+	}
+
+	public synchronized long getBytes() {
+		openQuietly();
+		return totalBytes;
+	}
+
+	private void openQuietly() {
+		if ( ! opened && ! closed) {
+			try {
+				open();
+			} catch (final IOException e) {
+				LOG.error(() -> "Could not open spool " + dir, e);
+			}
+		}
+	}
+
+	public synchronized long getEvicted() {
+		return evicted;
+	}
+
+	/**
+	 * Flushes and closes the spool, further appends are rejected.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		flush();
+		closed = true;
+		try {
+			closeRead();
+			if (writeChannel != null) {
+				writeChannel.close();
+			}
+			if (cursorChannel != null) {
+				cursorChannel.close();
+			}
+		} catch (final IOException e) {
+			LOG.error(() -> "Could not close spool " + dir, e);
+		}
+	}
+
+	/**
+	 * Closes the spool and deletes its files, e.g. when the sink was removed.
+	 */
+	public synchronized void delete() {
+		close();
+		delete(dir);
+	}
+
+	/**
+	 * Deletes the spool files of the given sink.
+	 *
+	 * @param name the name of the spool directory
+	 */
+	public static void delete(final String name) {
+		delete(Path.of(System.getProperty(DIR_PROPERTY, "spool"), name));
+	}
+
+	private static void delete(final Path dir) {
+		if ( ! Files.isDirectory(dir)) {
+			return;
+		}
+		try (final DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (final Path path : stream) {
+				Files.deleteIfExists(path);
+			}
+			Files.deleteIfExists(dir);
+		} catch (final IOException e) {
+			LOG.error(() -> "Could not delete spool " + dir, e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SinkSpool " + dir;
+	}
+}
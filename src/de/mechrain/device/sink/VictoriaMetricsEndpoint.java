@@ -0,0 +1,432 @@
+package de.mechrain.device.sink;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.mechrain.log.Logging;
+import de.mechrain.util.HashedWheelTimer;
+import de.mechrain.util.HashedWheelTimer.Timeout;
+import de.mechrain.util.LatencyHistogram;
+import de.mechrain.util.ThreadSupport;
+
+/**
+ * Connection to one VictoriaMetrics server shared by all sinks writing to it.
+ * <p>
+ * Holds a single {@link HttpClient}, so requests reuse keep-alive connections. Lines of all sinks are collected in one
+ * bounded buffer and posted in batches to the influx line protocol endpoint {@code /write} once the batch size is
+ * reached or the flush interval elapsed. A batch that could not be posted stays buffered and is posted again once a
+ * circuit breaker closes, a batch the server rejects with a client error is dropped and counted. Lines arriving while
+ * the buffer is full are dropped and counted.
+ */
+final class VictoriaMetricsEndpoint {
+
+	private static final Logger LOG = LogManager.getLogger(Logging.SINK);
+
+	/** Number of lines posted with one request (default 1000) */
+	public static final String BATCH_SIZE_PROPERTY = "mechrain.vm.batchSize";
+	/** Maximum time in ms a line waits before it is posted (default 1000) */
+	public static final String FLUSH_INTERVAL_PROPERTY = "mechrain.vm.flushIntervalMs";
+	/** Maximum number of buffered lines per endpoint (default 10000) */
+	public static final String QUEUE_CAPACITY_PROPERTY = "mechrain.vm.queueCapacity";
+	/** Compresses the request bodies with gzip (default false) */
+	public static final String GZIP_PROPERTY = "mechrain.vm.gzip";
+
+	/** Threads posting the batches of all endpoints */
+	private static final ThreadPoolExecutor FLUSH_EXECUTOR = ThreadSupport.newBoundedExecutor("VM-Flush", 2, 256);
+
+	/* guarded by itself */
+	private static final Map<String, VictoriaMetricsEndpoint> ENDPOINTS = new HashMap<>();
+
+	private final String key;
+	private final URI writeUri;
+	private final URI statusUri;
+	private final int batchSize;
+	private final int queueCapacity;
+	private final boolean gzip;
+	private final HttpClient client;
+
+	/* guarded by bufferLock, the pending lines start at pendingStart */
+	private final ReentrantLock bufferLock = new ReentrantLock();
+	private final StringBuilder pending = new StringBuilder();
+	private int pendingStart;
+	private int pendingLines;
+
+	/* guarded by flushLock */
+	private final ReentrantLock flushLock = new ReentrantLock();
+	private final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final Timeout flushTimer;
+	/* guarded by ENDPOINTS */
+	private int references;
+	private final List<CircuitBreaker> breakers = new CopyOnWriteArrayList<>();
+
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder written = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder flushErrors = new LongAdder();
+	private final LatencyHistogram flushLatency = new LatencyHistogram();
+
+	private VictoriaMetricsEndpoint(final String host, final int port) {
+		this.key = host + ':' + port;
+		this.writeUri = URI.create("http://" + key + "/write");
+		this.statusUri = URI.create("http://" + key + "/prometheus/api/v1/status/tsdb");
+		this.batchSize = Integer.getInteger(BATCH_SIZE_PROPERTY, 1000);
+		this.queueCapacity = Math.max(batchSize, Integer.getInteger(QUEUE_CAPACITY_PROPERTY, 10000));
+		this.gzip = Boolean.parseBoolean(System.getProperty(GZIP_PROPERTY, "false"));
+		this.client = HttpClient.newBuilder()
+				.connectTimeout(Duration.ofSeconds(2))
+				.build();
+		final long flushInterval = Long.getLong(FLUSH_INTERVAL_PROPERTY, 1000);
+		this.flushTimer = HashedWheelTimer.shared().scheduleAtFixedRate(this::requestFlush, flushInterval, flushInterval,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Gets the endpoint for the given server, creating it for the first sink. Each call must be paired with
+	 * {@link #release(CircuitBreaker)}.
+	 *
+	 * @param host    the host of the server
+	 * @param port    the port of the server
+	 * @param breaker the circuit breaker of the sink, told about the outcome of each write
+	 * @return the shared endpoint
+	 */
+	static VictoriaMetricsEndpoint acquire(final String host, final int port, final CircuitBreaker breaker) {
+		synchronized (ENDPOINTS) {
+			final VictoriaMetricsEndpoint endpoint = ENDPOINTS.computeIfAbsent(host + ':' + port,
+					k -> new VictoriaMetricsEndpoint(host, port));
+			endpoint.references++;
+			endpoint.breakers.add(breaker);
+			return endpoint;
+		}
+	}
+
+	/**
+	 * Releases the endpoint, the last sink posts the remaining lines and stops the endpoint.
+	 *
+	 * @param breaker the circuit breaker passed to {@link #acquire(String, int, CircuitBreaker)}
+	 */
+	void release(final CircuitBreaker breaker) {
+		final boolean reachable = breaker.allowRequest();
+		breakers.remove(breaker);
+		synchronized (ENDPOINTS) {
+			if (--references > 0) {
+				return;
+			}
+			ENDPOINTS.remove(key);
+		}
+		flushTimer.cancel();
+		/* post what is left unless the server is unreachable */
+		final Runnable drain = () -> {
+			flushLock.lock();
+			try {
+				while (reachable && post() > 0) {
+					/* drain until empty or the first failed post */
+				}
+				final int left = discardPending();
+				if (left > 0) {
+					LOG.warn(() -> "Discarded " + left + " lines not posted to VictoriaMetrics at " + key);
+				}
+			} finally {
+				flushLock.unlock();
+			}
+		};
+		try {
+			FLUSH_EXECUTOR.execute(drain);
+		} catch (final RejectedExecutionException e) {
+			drain.run();
+		}
+	}
+
+	/**
+	 * Checks if the server answers status requests.
+	 *
+	 * @return true if the server is reachable
+	 */
+	boolean ping() {
+		try {
+			final HttpRequest request = HttpRequest.newBuilder(statusUri)
+					.timeout(Duration.ofSeconds(2))
+					.GET()
+					.build();
+			final int rc = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+			if (rc < 200 || rc >= 400) {
+				LOG.warn(() -> "VictoriaMetrics returned HTTP " + rc + " for " + statusUri);
+				return false;
+			}
+			return true;
+		} catch (final IOException e) {
+			LOG.error(() -> "Unable to reach VictoriaMetrics at " + key, e);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	/**
+	 * Buffers one line protocol line and triggers a flush once a full batch is pending.
+	 *
+	 * @param measurement the measurement including the metric prefix
+	 * @param tags        the escaped tag set starting with a comma or null
+	 * @param field       the field name
+	 * @param value       the value
+	 * @param timestamp   the time of the value in milliseconds since the epoch
+	 */
+	void write(final String measurement, final String tags, final String field, final double value, final long timestamp) {
+		final int lines;
+		bufferLock.lock();
+		try {
+			if (pendingLines == queueCapacity) {
+				dropped.increment();
+				return;
+			}
+			final StringBuilder sb = pending;
+			sb.append(measurement);
+			if (tags != null) {
+				sb.append(tags);
+			}
+			sb.append(' ').append(field).append('=').append(value)
+				/* default precision of the line protocol is ns */
+				.append(' ').append(timestamp * 1_000_000L).append('\n');
+			lines = ++pendingLines;
+		} finally {
+			bufferLock.unlock();
+		}
+		if (lines >= batchSize) {
+			requestFlush();
+		}
+	}
+
+	private void requestFlush() {
+		if ( ! flushScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			FLUSH_EXECUTOR.execute(this::flush);
+		} catch (final RejectedExecutionException e) {
+			/* pool busy, the next timer tick tries again */
+			flushScheduled.set(false);
+		}
+	}
+
+	private void flush() {
+		try {
+			if ( ! isAnyBreakerClosed()) {
+				/* all sinks wait for a probe to succeed, lines stay buffered */
+				return;
+			}
+			flushLock.lock();
+			try {
+				while (post() >= batchSize) {
+					/* more full batches pending */
+				}
+			} finally {
+				flushLock.unlock();
+			}
+		} finally {
+			flushScheduled.set(false);
+		}
+	}
+
+	/**
+	 * Posts up to one batch of lines from the start of the buffer. The lines are removed from the buffer if the post
+	 * succeeded or the server rejected them with a client error. After an I/O error, a server error or HTTP 429 the batch
+	 * stays at the start and is posted again by the next flush. Must hold the flush lock, which makes the flush the only
+	 * consumer of the buffer.
+	 *
+	 * @return the number of lines taken from the buffer, 0 if the buffer was empty or the post failed
+	 */
+	private int post() {
+		byte[] body;
+		final int lines;
+		final int end;
+		bufferLock.lock();
+		try {
+			lines = Math.min(pendingLines, batchSize);
+			if (lines == 0) {
+				return 0;
+			}
+			int cut = pendingStart;
+			for (int i = 0; i < lines; i++) {
+				cut = pending.indexOf("\n", cut) + 1;
+			}
+			end = cut;
+			body = pending.substring(pendingStart, end).getBytes(StandardCharsets.UTF_8);
+		} finally {
+			bufferLock.unlock();
+		}
+		final long start = System.nanoTime();
+		boolean success = false;
+		try {
+			final HttpRequest.Builder request = HttpRequest.newBuilder(writeUri)
+					.timeout(Duration.ofSeconds(10))
+					.header("Content-Type", "text/plain; charset=UTF-8");
+			if (gzip) {
+				compressed.reset();
+				try (final GZIPOutputStream gos = new GZIPOutputStream(compressed)) {
+					gos.write(body);
+				}
+				body = compressed.toByteArray();
+				request.header("Content-Encoding", "gzip");
+			}
+			final HttpResponse<String> response = client.send(request.POST(HttpRequest.BodyPublishers.ofByteArray(body)).build(),
+					HttpResponse.BodyHandlers.ofString());
+			final int rc = response.statusCode();
+			if (rc >= 400 && rc < 500 && rc != 429) {
+				/* rejected for good, e.g. a malformed line, retrying would block the buffer and the other sinks */
+				success = true;
+				rejected.add(lines);
+				recordResult(true);
+				LOG.error(() -> "VictoriaMetrics rejected " + lines + " lines with HTTP " + rc + ", dropped, message: "
+						+ response.body());
+			} else if (rc < 200 || rc >= 300) {
+				flushErrors.increment();
+				failed.add(lines);
+				recordResult(false);
+				LOG.error(() -> "VictoriaMetrics write of " + lines + " lines failed with HTTP " + rc + ", kept buffered, message: "
+						+ response.body());
+			} else {
+				success = true;
+				written.add(lines);
+				recordResult(true);
+				bytesSent.add(body.length);
+				LOG.debug(() -> "VictoriaMetrics write of " + lines + " lines succeeded (HTTP " + rc + ")");
+			}
+		} catch (final IOException e) {
+			flushErrors.increment();
+			failed.add(lines);
+			recordResult(false);
+			LOG.error(() -> "Error sending " + lines + " lines to VictoriaMetrics at " + key + ", kept buffered", e);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flushLatency.record(System.nanoTime() - start);
+		batches.increment();
+		if ( ! success) {
+			return 0;
+		}
+		removePending(lines, end);
+		return lines;
+	}
+
+	/**
+	 * Removes lines from the start of the buffer.
+	 *
+	 * @param lines the number of lines to remove
+	 * @param end   the index in the buffer after the last line to remove
+	 */
+	private void removePending(final int lines, final int end) {
+		bufferLock.lock();
+		try {
+			pendingLines -= lines;
+			pendingStart = end;
+			if (pendingLines == 0) {
+				pending.setLength(0);
+				pendingStart = 0;
+			} else if (pendingStart > pending.length() / 2) {
+				/* compact once the posted lines are the larger part, writers append in between */
+				pending.delete(0, pendingStart);
+				pendingStart = 0;
+			}
+		} finally {
+			bufferLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes all lines from the buffer, counting them as dropped.
+	 *
+	 * @return the number of lines removed
+	 */
+	private int discardPending() {
+		bufferLock.lock();
+		try {
+			final int lines = pendingLines;
+			pending.setLength(0);
+			pendingStart = 0;
+			pendingLines = 0;
+			dropped.add(lines);
+			return lines;
+		} finally {
+			bufferLock.unlock();
+		}
+	}
+
+	private boolean isAnyBreakerClosed() {
+		for (final CircuitBreaker breaker : breakers) {
+			if (breaker.allowRequest()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void recordResult(final boolean success) {
+		for (final CircuitBreaker breaker : breakers) {
+			if (success) {
+				breaker.recordSuccess();
+			} else {
+				breaker.recordFailure();
+			}
+		}
+	}
+
+	private int pendingCount() {
+		bufferLock.lock();
+		try {
+			return pendingLines;
+		} finally {
+			bufferLock.unlock();
+		}
+	}
+
+	/**
+	 * Adds the counters of this endpoint to the given statistics.
+	 *
+	 * @param prefix     the prefix of the counter names
+	 * @param statistics counter names mapped to their values
+	 */
+	void collectStatistics(final String prefix, final Map<String, Number> statistics) {
+		statistics.put(prefix + ".queue.depth", pendingCount());
+		statistics.put(prefix + ".queue.capacity", queueCapacity);
+		statistics.put(prefix + ".queue.dropped", dropped.sum());
+		statistics.put(prefix + ".points.written", written.sum());
+		statistics.put(prefix + ".points.failed", failed.sum());
+		statistics.put(prefix + ".points.rejected", rejected.sum());
+		final long batchCount = batches.sum();
+		statistics.put(prefix + ".batches", batchCount);
+		statistics.put(prefix + ".batch.meanSize",
+				batchCount == 0 ? 0 : (double) (written.sum() + failed.sum() + rejected.sum()) / batchCount);
+		statistics.put(prefix + ".bytesSent", bytesSent.sum());
+		statistics.put(prefix + ".flush.errors", flushErrors.sum());
+		flushLatency.collectStatistics(prefix + ".flush", statistics);
+	}
+
+	@Override
+	public String toString() {
+		return "VictoriaMetricsEndpoint " + key + (gzip ? " gzip" : "");
+	}
+}
@@ -1,14 +1,7 @@
 package de.mechrain.device.sink;
 
-import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.URL;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Map;
 import java.util.StringJoiner;
 
 import org.apache.logging.log4j.LogManager;
@@ -17,67 +10,97 @@ import org.apache.logging.log4j.Logger;
 import de.mechrain.log.Logging;
 import de.mechrain.protocol.AbstractMechRainDataUnit;
 import de.mechrain.protocol.MRP;
+import de.mechrain.protocol.MeasurementRecord;
+import de.mechrain.protocol.MeasurementRecord.Aggregate;
 import de.mechrain.protocol.datatypes.FloatDataUnit;
 import de.mechrain.protocol.datatypes.UInt1DataUnit;
 import de.mechrain.protocol.datatypes.UInt2DataUnit;
 
-public class VictoriaMetricsSink extends AbstractFilteredDataSink {
+/**
+ * A data sink that writes MechRain data units to VictoriaMetrics using the influx line protocol.
+ * All sinks writing to the same server share one {@link VictoriaMetricsEndpoint}, which posts the lines in batches.
+ */
+public class VictoriaMetricsSink extends AbstractFilteredDataSink implements ISharedDataSink {
 	
 	private static final long serialVersionUID = -9045802626420394242L;
 	private static final Logger LOG = LogManager.getLogger(Logging.SINK);
 	
 	private static final String MECHRAIN_METRIC_PREFIX = "mechrain_";
+	private static final String[] FIELD_NAMES = new String[MRP.values().length];
+	/* field names of the aggregates indexed by aggregate and MRP ordinal */
+	private static final String[][] AGGREGATE_FIELD_NAMES = new String[Aggregate.values().length][MRP.values().length];
+	
+	static {
+		for (final MRP mrp : MRP.values()) {
+			FIELD_NAMES[mrp.ordinal()] = mrp.name().toLowerCase();
+			for (final Aggregate aggregate : Aggregate.values()) {
+				AGGREGATE_FIELD_NAMES[aggregate.ordinal()][mrp.ordinal()] = FIELD_NAMES[mrp.ordinal()] + aggregate.suffix;
+			}
+		}
+	}
 	
 	private String host;
 	private int port;
 	private String measurementName;
-	private transient boolean connected;
+	private transient volatile VictoriaMetricsEndpoint endpoint;
+	/* measurement of the written lines including the prefix */
+	private transient String metric;
 
 	protected VictoriaMetricsSink(final Builder builder) {
 		super(builder.filter);
 		super.setId(builder.id);
+		super.setBackpressure(builder.backpressure);
 		this.host = builder.host;
 		this.port = builder.port;
 		this.measurementName = builder.measurementName;
 	}
 
+	/**
+	 * Connects to the shared endpoint of the server. If it cannot be reached the circuit breaker opens and reconnects in
+	 * the background.
+	 */
 	@Override
 	public boolean connect() {
-		final String url = "http://" + host + ':' + port + "/prometheus/api/v1/status/tsdb"; // simple root check
-		try {
-			final HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
-			conn.setConnectTimeout(2000);
-			conn.setReadTimeout(2000);
-			conn.setRequestMethod("GET");
-			conn.connect();
-			final int rc = conn.getResponseCode();
-			connected = rc >= 200 && rc < 400;
-			conn.disconnect();
-			if (connected) {
-				LOG.info(() -> "Connected to VictoriaMetrics at " + host + ':' + port);
-			} else {
-				LOG.warn(() -> "VictoriaMetrics returned HTTP " + rc + " for " + url);
+		final VictoriaMetricsEndpoint current;
+		synchronized (this) {
+			if (endpoint == null) {
+				metric = MECHRAIN_METRIC_PREFIX + measurementName;
+				endpoint = VictoriaMetricsEndpoint.acquire(host, port, getCircuitBreaker());
 			}
-			return connected;
-		} catch (final IOException e) {
-			LOG.error(() -> "Unable to reach VictoriaMetrics at " + host + ':' + port, e);
-			connected = false;
-			return false;
+			current = endpoint;
+		}
+		if (current.ping()) {
+			LOG.info(() -> "Connected to VictoriaMetrics at " + host + ':' + port);
+			getCircuitBreaker().recordSuccess();
+			return true;
 		}
+		getCircuitBreaker().trip();
+		return false;
 	}
 
 	@Override
-	public void disconnect() {
-		connected = false;
+	protected boolean probe() {
+		final VictoriaMetricsEndpoint current = endpoint;
+		return current != null && current.ping();
 	}
 
 	@Override
-	public boolean isAvailable() {
-		return connected;
+	public void disconnect() {
+		final VictoriaMetricsEndpoint current;
+		synchronized (this) {
+			current = endpoint;
+			endpoint = null;
+		}
+		if (current != null) {
+			/* before stop resets the breaker, the endpoint drains only while it is closed */
+			current.release(getCircuitBreaker());
+		}
+		getCircuitBreaker().stop();
 	}
 
-	public List<MRP> getFilter() {
-		return filter;
+	@Override
+	public boolean isAvailable() {
+		return endpoint != null && getCircuitBreaker().allowRequest();
 	}
 
 	public String getHost() {
@@ -95,7 +118,14 @@ public class VictoriaMetricsSink extends AbstractFilteredDataSink {
 	public String toString() {
 		final StringBuilder sb = new StringBuilder();
 		sb.append("VictoriaMetricsSink host: ").append(host).append(':').append(port)
-			.append(" measurementName: ").append(measurementName);
+			.append(" measurementName: ").append(measurementName)
+			.append(" state: ").append(endpoint != null ? getCircuitBreaker() : "DISCONNECTED");
+		if (getDeadband() != null) {
+			sb.append(" deadband: ").append(getDeadband());
+		}
+		if (getAggregation() != null) {
+			sb.append(" aggregation: ").append(getAggregation());
+		}
 		final StringJoiner sj = new StringJoiner(",");
 		if (filter != null) {
 			for (final MRP mrp : filter) {
@@ -109,16 +139,8 @@ public class VictoriaMetricsSink extends AbstractFilteredDataSink {
 
 	@Override
 	public void handleDataUnit(final AbstractMechRainDataUnit mdu) {
-		/* Respect filter from AbstractFilteredDataSink */
-		if ( ! isAvailable()) {
-			/* attempt reconnect once */
-			if ( ! connect()) {
-				LOG.debug(() -> "VictoriaMetrics sink not available, skipping data unit " + mdu.getId());
-				return;
-			}
-		}
-		/* AbstractFilteredDataSink already filters by id; but double-check local filter if present */
-		if (filter != null && ! filter.contains(mdu.getId())) {
+		/* the device routes only accepted types, skip anything else handed in directly */
+		if ( ! accepts(mdu.getId())) {
 			LOG.trace(() -> "Skip handling of " + mdu.getId() + " not in filter");
 			return;
 		}
@@ -142,42 +164,53 @@ public class VictoriaMetricsSink extends AbstractFilteredDataSink {
 			LOG.error(() -> "Data unit " + mdu.getClass().getSimpleName() + " not supported by VictoriaMetricsSink");
 			return;
 		}
-		final String metricName = measurementName != null ? measurementName : mdu.getId().name().toLowerCase();
-		final StringBuilder sb = new StringBuilder(32);
-		sb.append(MECHRAIN_METRIC_PREFIX).append(metricName).append(' ').append(mdu.getId().name().toLowerCase()).append('=').append(value);
-		final byte[] payload = sb.toString().getBytes(StandardCharsets.UTF_8);
-//		final String writeUrl = "http://" + host + ':' + port + "/api/v1/write";
-		final String writeUrl = "http://" + host + ':' + port + "/write";
-		LOG.debug(() -> "Sending metric to VictoriaMetrics: " + sb.toString().trim());
-		try {
-			final HttpRequest postRequest = HttpRequest.newBuilder()
-					.uri(URI.create(writeUrl))
-					.POST(HttpRequest.BodyPublishers.ofByteArray(payload))
-					.header("Content-Type", "text/plain; charset=UTF-8")
-					.build();
-			
-			final HttpClient httpClient = HttpClient.newHttpClient();
-			final HttpResponse<String> response = httpClient.send(postRequest, HttpResponse.BodyHandlers.ofString());
-			final int rc = response.statusCode();
-			final String responseMessage = response.body();
-			if (rc < 200 || rc >= 300) {
-				LOG.error(() -> "VictoriaMetrics write failed with HTTP " + rc + " message: " + responseMessage);
-				connected = false;
-			} else {
-				LOG.debug(() -> "VictoriaMetrics write succeeded (HTTP " + rc + ")");
-			}
-		} catch (final IOException e) {
-			LOG.error(() -> "Error sending metrics to VictoriaMetrics", e);
-			connected = false;
-		} catch (InterruptedException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} finally {
-//			if (conn != null) {
-//				conn.disconnect();
-//			}
+		write(mdu.getId(), null, value, System.currentTimeMillis(), null);
+	}
+
+	@Override
+	public void handleMeasurement(final MeasurementRecord record) {
+		handleMeasurement(record, null);
+	}
+
+	@Override
+	public void handleMeasurement(final MeasurementRecord record, final String tags) {
+		if ( ! accepts(record.getMrp())) {
+			LOG.trace(() -> "Skip handling of " + record.getMrp() + " not in filter");
+			return;
+		}
+		switch (record.getMrp()) {
+		case HUMIDITY:
+		case TEMPERATURE:
+		case SOIL_MOISTURE_ABS:
+		case CO2_PPM:
+		case SOIL_MOISTURE_PERCENT:
+			write(record.getMrp(), record.getAggregate(), record.getDoubleValue(), record.getTimestamp(), tags);
+			break;
+		default:
+			LOG.error(() -> "Measurement " + record.getMrp() + " not supported by VictoriaMetricsSink");
+			break;
 		}
 	}
+
+	private void write(final MRP mrp, final Aggregate aggregate, final double value, final long timestamp, final String tags) {
+		final VictoriaMetricsEndpoint current = endpoint;
+		if (current == null) {
+			return;
+		}
+		final String field = aggregate == null ? FIELD_NAMES[mrp.ordinal()] : AGGREGATE_FIELD_NAMES[aggregate.ordinal()][mrp.ordinal()];
+		LOG.debug(() -> "Queueing metric for VictoriaMetrics: " + metric + ' ' + field + '=' + value);
+		current.write(metric, tags, field, value, timestamp);
+	}
+
+	@Override
+	public void collectStatistics(final String prefix, final Map<String, Number> statistics) {
+		final VictoriaMetricsEndpoint current = endpoint;
+		if (current != null) {
+			/* the counters cover all sinks sharing the endpoint */
+			current.collectStatistics(prefix + ".endpoint", statistics);
+		}
+		getCircuitBreaker().collectStatistics(prefix, statistics);
+	}
 	
 	public static class Builder {
 		
@@ -186,6 +219,7 @@ public class VictoriaMetricsSink extends AbstractFilteredDataSink {
 		private String host;
 		private int port;
 		private String measurementName;
+		private SinkDispatcher.Backpressure backpressure;
 		
 		public Builder id(final int id) {
 			this.id = id;
@@ -212,6 +246,11 @@ public class VictoriaMetricsSink extends AbstractFilteredDataSink {
 			return this;
 		}
 		
+		public Builder backpressure(final SinkDispatcher.Backpressure backpressure) {
+			this.backpressure = backpressure;
+			return this;
+		}
+		
 		public void validate() {
 			if (host == null || host.isEmpty()) {
 				throw new IllegalStateException("Host is not set");
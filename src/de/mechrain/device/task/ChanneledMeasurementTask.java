@@ -29,6 +29,7 @@ public class ChanneledMeasurementTask extends MeasurementTask {
 			.append(" interval:").append(interval).append(timeUnit)
 			.append(" channelId:").append(channelId)
 			.append(" id:").append(id);
+		appendPhase(sb);
 		return sb.toString();
 	}
 	
@@ -39,8 +40,10 @@ public class ChanneledMeasurementTask extends MeasurementTask {
 					.measurementId(measurement)
 					.channelId((byte) channelId)
 					.build();
-			requests.add(mreq);
-		} catch (final DataUnitValidationException | IllegalStateException e) {
+			if ( ! requests.offer(mreq)) {
+				LOG.warn(() -> "Could not queue channeled measurement request data unit for task: " + this);
+			}
+		} catch (final DataUnitValidationException e) {
 			LOG.error(() -> "Could not queue task " + e.getMessage(), e);
 		}
 	}
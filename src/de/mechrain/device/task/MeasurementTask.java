@@ -29,6 +29,12 @@ public class MeasurementTask implements ITask {
 	
 	protected int id;
 	
+	/** Offset of the task ticks within the interval in ms, -1 if not scheduled */
+	protected transient long phase = -1;
+	
+	/** Scheduled time of the last tick in ms since the epoch, -1 if the task did not fire yet */
+	protected transient volatile long lastFired = -1;
+	
 	/**
 	 * Default constructor for de-serialization purposes.
 	 */
@@ -85,14 +91,71 @@ public class MeasurementTask implements ITask {
 		this.id = id;
 	}
 	
+	/**
+	 * Gets the interval in milliseconds.
+	 *
+	 * @return the interval in milliseconds
+	 */
+	public long getIntervalMillis() {
+		return timeUnit.toMillis(interval);
+	}
+	
+	/**
+	 * Computes the deterministic phase of this task for the given device, i.e. the offset of the task ticks within
+	 * the interval. Tasks of different devices and tasks of the same device are spread evenly over the interval and
+	 * keep their phase across restarts.
+	 *
+	 * @param deviceId the ID of the device the task belongs to
+	 * @return the phase in milliseconds within [0, interval)
+	 */
+	public long computePhase(final int deviceId) {
+		long h = ((long) deviceId << 32) | (id & 0xFFFFFFFFL);
+		/* 64 bit finalizer of MurmurHash3 */
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return Math.floorMod(h, getIntervalMillis());
+	}
+	
+	public long getPhase() {
+		return phase;
+	}
+	
+	public void setPhase(final long phase) {
+		this.phase = phase;
+	}
+	
+	/**
+	 * Gets the scheduled time of the last tick, a multiple of the interval plus the phase. Restored after a restart so
+	 * the task keeps its phase.
+	 *
+	 * @return the time in milliseconds since the epoch or -1 if the task did not fire yet
+	 */
+	public long getLastFired() {
+		return lastFired;
+	}
+	
+	public void setLastFired(final long lastFired) {
+		this.lastFired = lastFired;
+	}
+	
 	@Override
 	public String toString() {
 		final StringBuilder sb = new StringBuilder();
 		sb.append("MeasurementTask for ").append(measurement)
 			.append(" interval:").append(interval).append(timeUnit)
 			.append(" id:").append(id);
+		appendPhase(sb);
 		return sb.toString();
 	}
+	
+	protected void appendPhase(final StringBuilder sb) {
+		if (phase >= 0) {
+			sb.append(" phase:").append(phase).append("ms");
+		}
+	}
 
 	@Override
 	public void queueTask(final Queue<AbstractMechRainDataUnit> requests) {
@@ -100,9 +163,9 @@ public class MeasurementTask implements ITask {
 		try {
 			final MeasurementRequestDataUnit mreq = new MeasurementRequestBuilder().measurementId(measurement).build();
 			if ( ! requests.offer(mreq)) {
-				LOG.error(() -> "Could not queue measurement request data unit for task: " + this);
+				LOG.warn(() -> "Could not queue measurement request data unit for task: " + this);
 			}
-		} catch (final DataUnitValidationException | IllegalStateException e) {
+		} catch (final DataUnitValidationException e) {
 			LOG.error(() -> "Could not queue task " + e.getMessage(), e);
 		}
 	}
@@ -14,6 +14,7 @@ public class Logging {
 	public static final String CONFIG = MECHRAIN + "config";
 	
 	public static final String SINK = DATA + ".sink";
+	public static final String STORAGE = DATA + ".storage";
 	
 	public static final String DEVICE = MECHRAIN + ".device";
 	public static final String DEVICE_TASK = MECHRAIN + ".task";
@@ -1,5 +1,7 @@
 package de.mechrain.protocol;
 
+import java.nio.ByteBuffer;
+
 /**
  * Abstract base class for MechRain data units.
  * A data unit consists of an ID and length (possibly 0) forming the header and data bytes.
@@ -14,20 +16,20 @@ public abstract class AbstractMechRainDataUnit {
 	
 	protected static final int UNSIGNED_SHORT_LENGTH = 65_536;
 	
+	/** Length of the ID and length header */
+	public static final int HEADER_LENGTH = 3;
+	
 	protected final MRP id;
 	protected final int length;
-	protected final byte[] lengthBytes;
 	
 	protected AbstractMechRainDataUnit(final MRP id, final int length) {
 		this.id = id;
 		this.length = length;
-		this.lengthBytes = new byte[] {(byte) (length >> 8), (byte) length};
 	}
 	
 	protected AbstractMechRainDataUnit(final Builder<?, ?> builder) {
 		this.id = builder.id;
 		this.length = builder.length;
-		this.lengthBytes = new byte[] {(byte) (length >> 8), (byte) length};
 	}
 	
 	@Override
@@ -35,7 +37,38 @@ public abstract class AbstractMechRainDataUnit {
 		return toStringInternal();
 	}
 	
-	public abstract byte[] toBytes();
+	/**
+	 * Gets the number of bytes written by {@link #encodeTo(ByteBuffer)}, including the header.
+	 *
+	 * @return the encoded length in bytes
+	 */
+	public abstract int getEncodedLength();
+	
+	/**
+	 * Writes this data unit at the current position of the buffer and advances the position by
+	 * {@link #getEncodedLength()} bytes.
+	 *
+	 * @param buffer the buffer to write to
+	 * @throws java.nio.BufferOverflowException if the buffer has not enough space remaining
+	 */
+	public abstract void encodeTo(ByteBuffer buffer);
+	
+	/**
+	 * Encodes this data unit into a new array.
+	 *
+	 * @return the encoded data unit
+	 */
+	public byte[] toBytes() {
+		final byte[] result = new byte[getEncodedLength()];
+		encodeTo(ByteBuffer.wrap(result));
+		return result;
+	}
+	
+	protected void encodeHeader(final ByteBuffer buffer) {
+		buffer.put(id.byteVal);
+		buffer.put((byte) (length >> 8));
+		buffer.put((byte) length);
+	}
 	
 	protected abstract String toStringInternal();
 	
@@ -1,5 +1,7 @@
 package de.mechrain.protocol;
 
+import java.nio.ByteBuffer;
+
 /**
  * Measurement request data unit including a channel ID.
  */
@@ -13,19 +15,26 @@ public class ChanneledMeasurementRequestDataUnit extends MeasurementRequestDataU
 	}
 
 	@Override
-	public byte[] toBytes() {
-		final byte[] result = new byte[10];
-		result[0] = id.byteVal;
-		result[1] = lengthBytes[0];
-		result[2] = lengthBytes[1];
-		result[3] = measurementId.byteVal;
-		result[4] = 0x00; /* reserved */
-		result[5] = 0x00; /* reserved */
-		result[6] = MRP.CHANNEL_ID.byteVal;
-		result[4] = 0x00; /* reserved */
-		result[5] = 0x00; /* reserved */
-		result[9] = channelId;
-		return result;
+	public int getEncodedLength() {
+		/* the header announces 8 bytes but devices expect the 7 bytes always sent */
+		return HEADER_LENGTH + 7;
+	}
+
+	@Override
+	public void encodeTo(final ByteBuffer buffer) {
+		encodeHeader(buffer);
+		buffer.put(measurementId.byteVal);
+		buffer.put((byte) 0x00); /* reserved */
+		buffer.put((byte) 0x00); /* reserved */
+		buffer.put(MRP.CHANNEL_ID.byteVal);
+		buffer.put((byte) 0x00); /* reserved */
+		buffer.put((byte) 0x00); /* reserved */
+		buffer.put(channelId);
+	}
+
+	@Override
+	public int getChannelId() {
+		return channelId & 0xFF;
 	}
 
 	@Override
@@ -2,6 +2,7 @@ package de.mechrain.protocol;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 import org.apache.logging.log4j.LogManager;
@@ -11,77 +12,211 @@ import de.mechrain.log.Logging;
 import de.mechrain.protocol.AckDataUnit.AckBuilder;
 import de.mechrain.protocol.DeviceSettingChangeDataUnit.DeviceSettingChangeBuilder;
 import de.mechrain.protocol.HeartbeatDataUnit.HeartbeatBuilder;
-import de.mechrain.protocol.datatypes.FloatDataUnit.FloatDataUnitBuilder;
 import de.mechrain.protocol.datatypes.TextDataUnit.TextDataUnitBuilder;
-import de.mechrain.protocol.datatypes.UInt1DataUnit.UInt1DataUnitBuilder;
-import de.mechrain.protocol.datatypes.UInt2DataUnit.UInt2DataUnitBuilder;
 import de.mechrain.util.Util;
 
 /**
- * Factory class for creating MechRain data units from byte streams.
+ * Factory class for creating MechRain data units from byte streams and buffers. Instances keep a reusable frame buffer
+ * and must not be shared between connections.
  */
 public class DataUnitFactory {
 	
 	private static final Logger LOG = LogManager.getLogger(Logging.DATA);
 
+	private static final int HEADER_LENGTH = AbstractMechRainDataUnit.HEADER_LENGTH;
+
+	/** Decoders indexed by MRP ordinal */
+	private static final IDataUnitDecoder[] DECODERS = new IDataUnitDecoder[MRP.values().length];
+	/** Decoders of the measurement types taking the {@link MeasurementRecord} path, indexed by MRP ordinal */
+	private static final IDataUnitDecoder[] MEASUREMENT_DECODERS = new IDataUnitDecoder[MRP.values().length];
+
+	static {
+		register(MRP.ACK, (mrp, buffer, payload, length) -> new AckBuilder().build());
+		register(MRP.HEARTBEAT, (mrp, buffer, payload, length) -> new HeartbeatBuilder().build());
+		register(MRP.DEVICE_SETTING_CHANGE, (mrp, buffer, payload, length) -> {
+			IDataUnitDecoder.requireLength(mrp, length, 1);
+			return new DeviceSettingChangeBuilder()
+				.settingId(MRP.fromByte(buffer.get(payload)))
+				.build();
+		});
+		final IDataUnitDecoder text = (mrp, buffer, payload, length) -> new TextDataUnitBuilder(mrp)
+				.message(new String(payloadBytes(buffer, payload, length), StandardCharsets.ISO_8859_1))
+				.build();
+		register(MRP.STATUS_MSG, text);
+		register(MRP.ERROR, text);
+		register(MRP.BUILD_ID, text);
+		/* settings are answers to setting requests, not measurements */
+		register(MRP.UDP_BROADCAST_DELAY, NumericDecoder.UINT2);
+		register(MRP.CONNECTION_DELAY, NumericDecoder.UINT2);
+		register(MRP.DISTANCE_ABS, NumericDecoder.UINT2);
+		registerMeasurement(MRP.SOIL_MOISTURE_ABS, NumericDecoder.UINT2);
+		registerMeasurement(MRP.CO2_PPM, NumericDecoder.UINT2);
+		registerMeasurement(MRP.DISTANCE_MM, NumericDecoder.UINT2);
+		registerMeasurement(MRP.SOIL_MOISTURE_PERCENT, NumericDecoder.UINT1);
+		registerMeasurement(MRP.TEMPERATURE, NumericDecoder.FLOAT);
+		registerMeasurement(MRP.HUMIDITY, NumericDecoder.FLOAT);
+	}
+
+	private ByteBuffer frame = ByteBuffer.allocate(512);
+
+	/**
+	 * Registers the decoder of a message type, replacing a previously registered one. Registration is meant to happen
+	 * at startup before devices connect.
+	 *
+	 * @param mrp     the message type
+	 * @param decoder the decoder
+	 */
+	public static void register(final MRP mrp, final IDataUnitDecoder decoder) {
+		DECODERS[mrp.ordinal()] = decoder;
+		MEASUREMENT_DECODERS[mrp.ordinal()] = null;
+	}
+
+	/**
+	 * Registers the decoder of a measurement type whose frames are decoded into a {@link MeasurementRecord} by
+	 * {@link #decodeMeasurement(ByteBuffer, MeasurementRecord)}.
+	 *
+	 * @param mrp     the measurement type
+	 * @param decoder the decoder, supporting {@link IDataUnitDecoder#decodeMeasurement}
+	 */
+	public static void registerMeasurement(final MRP mrp, final IDataUnitDecoder decoder) {
+		DECODERS[mrp.ordinal()] = decoder;
+		MEASUREMENT_DECODERS[mrp.ordinal()] = decoder;
+	}
+
+	/**
+	 * Gets the decoder registered for a measurement type.
+	 *
+	 * @param mrp the measurement type
+	 * @return the decoder or null if frames of the type are not decoded into records
+	 */
+	public static IDataUnitDecoder getMeasurementDecoder(final MRP mrp) {
+		return MEASUREMENT_DECODERS[mrp.ordinal()];
+	}
+
 	/**
 	 * Reads from the provided InputStream and constructs the appropriate MechRain data unit based on the header information.
 	 *
 	 * @param header the header bytes containing the message type and length
 	 * @param is     the InputStream to read the payload from
-	 * @return the constructed MechRain data unit
+	 * @return the constructed MechRain data unit or null if the type is unknown or the stream ended within the payload
 	 * @throws DataUnitValidationException if the data unit validation fails
 	 * @throws IOException                 if an I/O error occurs while reading from the InputStream
 	 */
 	public AbstractMechRainDataUnit getDataUnit(final byte[] header, final InputStream is) throws DataUnitValidationException, IOException {
-		final MRP mrp = MRP.fromByte(header[0]);
-		final int length = (header[1]& 0xFF) << 8 | header[2] & 0xFF;
-		
-		final byte[] payload;
-		payload = is.readNBytes(length);
+		final ByteBuffer complete = readFrame(header, is);
+		return complete != null ? decode(complete) : null;
+	}
+
+	/**
+	 * Reads the payload of the frame with the given header into the reusable frame buffer of this factory.
+	 *
+	 * @param header the header bytes containing the message type and length
+	 * @param is     the InputStream to read the payload from
+	 * @return the buffer holding the complete frame, valid until the next call, or null if the stream ended within the payload
+	 * @throws IOException if an I/O error occurs while reading from the InputStream
+	 */
+	public ByteBuffer readFrame(final byte[] header, final InputStream is) throws IOException {
+		final int length = frameLength(header[1], header[2]);
+		if (frame.capacity() < HEADER_LENGTH + length) {
+			frame = ByteBuffer.allocate(HEADER_LENGTH + length);
+		}
+		final byte[] bytes = frame.array();
+		System.arraycopy(header, 0, bytes, 0, HEADER_LENGTH);
+		final int read = is.readNBytes(bytes, HEADER_LENGTH, length);
+		frame.clear().limit(HEADER_LENGTH + read);
+		if (read < length) {
+			LOG.warn(() -> "Stream ended after " + read + " of " + length + " payload bytes");
+			return null;
+		}
+		return frame;
+	}
+
+	/**
+	 * Decodes the frame at the position of the buffer into the given record if it is a complete measurement frame of a
+	 * type supported by {@link MeasurementRecord}. Only the measurement type and value of the record are set.
+	 *
+	 * @param buffer the buffer in read mode
+	 * @param record the record to fill
+	 * @return true if the frame was consumed, false if the buffer was left untouched and the frame must be decoded by
+	 *         {@link #decode(ByteBuffer)}
+	 */
+	public boolean decodeMeasurement(final ByteBuffer buffer, final MeasurementRecord record) {
+		if ( ! hasCompleteFrame(buffer)) {
+			return false;
+		}
+		final int start = buffer.position();
+		final MRP mrp = MRP.fromByte(buffer.get(start));
+		final IDataUnitDecoder decoder = MEASUREMENT_DECODERS[mrp.ordinal()];
+		final int length = peekLength(buffer);
+		final int payload = start + HEADER_LENGTH;
+		if (decoder == null || ! decoder.decodeMeasurement(mrp, buffer, payload, length, record)) {
+			return false;
+		}
+		buffer.position(payload + length);
+		return true;
+	}
+
+	/**
+	 * Checks if the buffer contains a complete frame between its position and limit.
+	 *
+	 * @param buffer the buffer in read mode
+	 * @return true if {@link #decode(ByteBuffer)} can consume a frame
+	 */
+	public static boolean hasCompleteFrame(final ByteBuffer buffer) {
+		return buffer.remaining() >= HEADER_LENGTH && buffer.remaining() >= HEADER_LENGTH + peekLength(buffer);
+	}
+
+	/**
+	 * Gets the payload length announced by the header at the position of the buffer, which must hold a complete header.
+	 *
+	 * @param buffer the buffer in read mode
+	 * @return the payload length in bytes
+	 */
+	public static int peekLength(final ByteBuffer buffer) {
+		final int pos = buffer.position();
+		return frameLength(buffer.get(pos + 1), buffer.get(pos + 2));
+	}
+
+	/**
+	 * Decodes the frame at the position of the buffer without copying the payload. The buffer may be a heap or direct
+	 * buffer.
+	 * <p>
+	 * If the buffer does not contain a complete frame, nothing is consumed and null is returned, so non-blocking readers
+	 * can call again once more data arrived. Otherwise the position is advanced past the frame, also if the frame is of
+	 * unknown type or fails validation.
+	 *
+	 * @param buffer the buffer in read mode
+	 * @return the decoded data unit or null if the frame is incomplete or of unknown type
+	 * @throws DataUnitValidationException if the data unit validation fails
+	 */
+	public AbstractMechRainDataUnit decode(final ByteBuffer buffer) throws DataUnitValidationException {
+		if ( ! hasCompleteFrame(buffer)) {
+			return null;
+		}
+		final int start = buffer.position();
+		final MRP mrp = MRP.fromByte(buffer.get(start));
+		final int length = peekLength(buffer);
+		final int payload = start + HEADER_LENGTH;
+		/* consume the frame up front so a broken frame is skipped */
+		buffer.position(payload + length);
 		
-		LOG.trace(() -> "Payload length " + length + " bytes: " + Util.BYTES2HEX(payload));
+		LOG.trace(() -> "Payload length " + length + " bytes: " + Util.BYTES2HEX(payloadBytes(buffer, payload, length)));
 		
-		switch (mrp) {
-			case ACK:
-				return new AckBuilder().build();
-			case HEARTBEAT:
-				return new HeartbeatBuilder().build();
-			case DEVICE_SETTING_CHANGE:
-				return new DeviceSettingChangeBuilder()
-						.settingId(MRP.fromByte(payload[0]))
-						.build();
-			case STATUS_MSG:
-			case ERROR:
-			case BUILD_ID:
-				return new TextDataUnitBuilder(mrp)
-						.message(new String(payload, StandardCharsets.ISO_8859_1))
-						.build();
-			case UDP_BROADCAST_DELAY:
-			case CONNECTION_DELAY:
-			case SOIL_MOISTURE_ABS:
-			case CO2_PPM:
-			case DISTANCE_MM:
-			case DISTANCE_ABS:
-				return new UInt2DataUnitBuilder(mrp)
-						.soilMoistureAbs((payload[0] & 0xFF)  << 8 | payload[1] & 0xFF)
-						.build();
-			case SOIL_MOISTURE_PERCENT:
-				return new UInt1DataUnitBuilder(mrp)
-						.soilMoisturePercent(payload[0])
-						.build();
-			case TEMPERATURE:
-			case HUMIDITY:
-				final int floatBits = payload[3] << 24 
-				| (payload[2] & 0xFF) << 16 
-				| (payload[1] & 0xFF) << 8 
-				| (payload[0] & 0xFF);
-				return new FloatDataUnitBuilder(mrp)
-						.humidity(Float.intBitsToFloat(floatBits))
-						.build();
-			default:
-				LOG.warn("Unknown message type " + mrp.name());
-				return null;
+		final IDataUnitDecoder decoder = DECODERS[mrp.ordinal()];
+		if (decoder == null) {
+			LOG.warn("Unknown message type " + mrp.name());
+			return null;
 		}
+		return decoder.decode(mrp, buffer, payload, length);
+	}
+
+	private static int frameLength(final byte high, final byte low) {
+		return (high & 0xFF) << 8 | low & 0xFF;
+	}
+
+	private static byte[] payloadBytes(final ByteBuffer buffer, final int offset, final int length) {
+		final byte[] bytes = new byte[length];
+		buffer.get(offset, bytes);
+		return bytes;
 	}
 }
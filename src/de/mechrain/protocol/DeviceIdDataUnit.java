@@ -1,5 +1,7 @@
 package de.mechrain.protocol;
 
+import java.nio.ByteBuffer;
+
 /**
  * Data unit representing a device ID.
  */
@@ -18,14 +20,14 @@ public class DeviceIdDataUnit extends AbstractMechRainDataUnit {
 	}
 
 	@Override
-	public
-	byte[] toBytes() {
-		final byte[] result = new byte[4];
-		result[0] = id.byteVal;
-		result[1] = lengthBytes[0];
-		result[2] = lengthBytes[1];
-		result[3] = deviceId;
-		return result;
+	public int getEncodedLength() {
+		return HEADER_LENGTH + 1;
+	}
+
+	@Override
+	public void encodeTo(final ByteBuffer buffer) {
+		encodeHeader(buffer);
+		buffer.put(deviceId);
 	}
 	
 	@Override
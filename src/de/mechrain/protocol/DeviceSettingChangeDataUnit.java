@@ -1,5 +1,7 @@
 package de.mechrain.protocol;
 
+import java.nio.ByteBuffer;
+
 /**
  * Data unit representing a device setting change.
  */
@@ -15,15 +17,16 @@ public class DeviceSettingChangeDataUnit extends AbstractMechRainDataUnit {
 	}
 
 	@Override
-	public byte[] toBytes() {
-		final byte[] result = new byte[6];
-		result[0] = id.byteVal;
-		result[1] = lengthBytes[0];
-		result[2] = lengthBytes[1];
-		result[3] = settingId.byteVal;
-		result[4] = (byte) (value >> 8);
-		result[5] = (byte) value;
-		return result;
+	public int getEncodedLength() {
+		return HEADER_LENGTH + 3;
+	}
+
+	@Override
+	public void encodeTo(final ByteBuffer buffer) {
+		encodeHeader(buffer);
+		buffer.put(settingId.byteVal);
+		buffer.put((byte) (value >> 8));
+		buffer.put((byte) value);
 	}
 
 	@Override
@@ -1,5 +1,7 @@
 package de.mechrain.protocol;
 
+import java.nio.ByteBuffer;
+
 /**
  * Data unit representing a device setting request.
  */
@@ -13,15 +15,20 @@ public class DeviceSettingRequestDataUnit extends AbstractMechRainDataUnit {
 	}
 
 	@Override
-	public byte[] toBytes() {
-		final byte[] result = new byte[6];
-		result[0] = id.byteVal;
-		result[1] = lengthBytes[0];
-		result[2] = lengthBytes[1];
-		result[3] = settingId.byteVal;
-		result[4] = 0x00; /* reserved */
-		result[5] = 0x00; /* reserved */
-		return result;
+	public int getEncodedLength() {
+		return HEADER_LENGTH + 3;
+	}
+
+	@Override
+	public void encodeTo(final ByteBuffer buffer) {
+		encodeHeader(buffer);
+		buffer.put(settingId.byteVal);
+		buffer.put((byte) 0x00); /* reserved */
+		buffer.put((byte) 0x00); /* reserved */
+	}
+
+	public MRP getSettingId() {
+		return settingId;
 	}
 
 	@Override
@@ -1,5 +1,7 @@
 package de.mechrain.protocol;
 
+import java.nio.ByteBuffer;
+
 /**
  * Data unit representing a heartbeat in the MechRain protocol.
  */
@@ -10,13 +12,13 @@ public class HeartbeatDataUnit extends AbstractMechRainDataUnit {
 	}
 
 	@Override
-	public
-	byte[] toBytes() {
-		final byte[] result = new byte[3];
-		result[0] = id.byteVal;
-		result[1] = lengthBytes[0];
-		result[2] = lengthBytes[1];
-		return result;
+	public int getEncodedLength() {
+		return HEADER_LENGTH;
+	}
+
+	@Override
+	public void encodeTo(final ByteBuffer buffer) {
+		encodeHeader(buffer);
 	}
 	
 	@Override
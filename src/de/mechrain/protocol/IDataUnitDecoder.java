@@ -0,0 +1,64 @@
+package de.mechrain.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the payload of one message type, registered with {@link DataUnitFactory#register(MRP, IDataUnitDecoder)}.
+ * Decoders read the payload with absolute gets and must not change the position of the buffer. They must not read past
+ * the payload length, the bytes behind it belong to the next frame.
+ */
+public interface IDataUnitDecoder {
+
+	/**
+	 * Decodes the payload into a data unit.
+	 *
+	 * @param mrp     the message type
+	 * @param buffer  the buffer holding the frame
+	 * @param payload the index of the first payload byte
+	 * @param length  the payload length
+	 * @return the data unit
+	 * @throws DataUnitValidationException if the data unit validation fails
+	 */
+	AbstractMechRainDataUnit decode(MRP mrp, ByteBuffer buffer, int payload, int length) throws DataUnitValidationException;
+
+	/**
+	 * Decodes the payload into a measurement record without allocating, only supported by numeric message types.
+	 *
+	 * @param mrp     the message type
+	 * @param buffer  the buffer holding the frame
+	 * @param payload the index of the first payload byte
+	 * @param length  the payload length
+	 * @param record  the record to set the type and value of
+	 * @return true if the record was set, false if the payload must be decoded by
+	 *         {@link #decode(MRP, ByteBuffer, int, int)}
+	 */
+	default boolean decodeMeasurement(final MRP mrp, final ByteBuffer buffer, final int payload, final int length,
+			final MeasurementRecord record) {
+		return false;
+	}
+
+	/**
+	 * Creates the data unit carrying the value of a record filled by this decoder.
+	 *
+	 * @param record the record
+	 * @return the data unit
+	 * @throws DataUnitValidationException if the record is not supported by this decoder
+	 */
+	default AbstractMechRainDataUnit toDataUnit(final MeasurementRecord record) throws DataUnitValidationException {
+		throw new DataUnitValidationException("No data unit for measurement " + record.getMrp());
+	}
+
+	/**
+	 * Checks that the payload holds the bytes a decoder reads.
+	 *
+	 * @param mrp      the message type
+	 * @param length   the payload length
+	 * @param required the number of bytes read
+	 * @throws DataUnitValidationException if the payload is too short
+	 */
+	static void requireLength(final MRP mrp, final int length, final int required) throws DataUnitValidationException {
+		if (length < required) {
+			throw new DataUnitValidationException(mrp + " payload of " + length + " bytes, expected " + required);
+		}
+	}
+}
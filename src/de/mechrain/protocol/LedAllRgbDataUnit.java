@@ -1,5 +1,7 @@
 package de.mechrain.protocol;
 
+import java.nio.ByteBuffer;
+
 public class LedAllRgbDataUnit extends AbstractMechRainDataUnit {
 	
 	public final int red;
@@ -14,15 +16,16 @@ public class LedAllRgbDataUnit extends AbstractMechRainDataUnit {
 	}
 
 	@Override
-	public byte[] toBytes() {
-		final byte[] result = new byte[6];
-		result[0] = id.byteVal;
-		result[1] = lengthBytes[0];
-		result[2] = lengthBytes[1];
-		result[3] = (byte) red;
-		result[4] = (byte) green;
-		result[5] = (byte) blue;
-		return result;
+	public int getEncodedLength() {
+		return HEADER_LENGTH + 3;
+	}
+
+	@Override
+	public void encodeTo(final ByteBuffer buffer) {
+		encodeHeader(buffer);
+		buffer.put((byte) red);
+		buffer.put((byte) green);
+		buffer.put((byte) blue);
 	}
 
 	@Override
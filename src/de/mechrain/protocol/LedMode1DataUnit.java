@@ -1,5 +1,7 @@
 package de.mechrain.protocol;
 
+import java.nio.ByteBuffer;
+
 public class LedMode1DataUnit extends AbstractMechRainDataUnit {
 	
 	public final int mode;
@@ -10,12 +12,13 @@ public class LedMode1DataUnit extends AbstractMechRainDataUnit {
 	}
 
 	@Override
-	public byte[] toBytes() {
-		final byte[] result = new byte[3];
-		result[0] = id.byteVal;
-		result[1] = lengthBytes[0];
-		result[2] = lengthBytes[1];
-		return result;
+	public int getEncodedLength() {
+		return HEADER_LENGTH;
+	}
+
+	@Override
+	public void encodeTo(final ByteBuffer buffer) {
+		encodeHeader(buffer);
 	}
 
 	@Override
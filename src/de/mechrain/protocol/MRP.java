@@ -1,5 +1,7 @@
 package de.mechrain.protocol;
 
+import java.util.Arrays;
+
 /**
  * Mech Rain Protocol
  */
@@ -55,16 +57,21 @@ public enum MRP {
 	
 	public final byte byteVal;
 	
+	/** Maps every possible wire byte to its MRP */
+	private static final MRP[] BY_BYTE = new MRP[256];
+	
+	static {
+		Arrays.fill(BY_BYTE, UNKNOWN);
+		for (final MRP mrp : values()) {
+			BY_BYTE[mrp.byteVal & 0xFF] = mrp;
+		}
+	}
+	
 	private MRP(final byte byteVal) {
 		this.byteVal = byteVal;
 	}
 	
 	public static MRP fromByte(final byte val) {
-		for (final MRP mrp : MRP.values()) {
-			if (mrp.byteVal == val) {
-				return mrp;
-			}
-		}
-		return UNKNOWN;
+		return BY_BYTE[val & 0xFF];
 	}
 }
@@ -0,0 +1,179 @@
+package de.mechrain.protocol;
+
+/**
+ * Mutable holder of a single measurement value, the allocation free alternative to the numeric data units.
+ * <p>
+ * Each connection decodes all measurement frames into the same instance, so receivers must copy what they need and must
+ * not keep a reference after returning.
+ */
+public class MeasurementRecord {
+
+	/**
+	 * Statistic of a window of measurements a record may carry instead of a single measurement.
+	 */
+	public enum Aggregate {
+		MIN, MAX, MEAN, LAST, COUNT;
+
+		/** Appended to the field name the aggregate is written to, e.g. <code>_min</code> */
+		public final String suffix = '_' + name().toLowerCase();
+	}
+
+	private int deviceId;
+	private MRP mrp;
+	private int channel = -1;
+	private boolean floatingPoint;
+	private double doubleValue;
+	private long longValue;
+	private long timestamp;
+	private Aggregate aggregate;
+
+	/**
+	 * Checks if measurements of the given type can be decoded into a record.
+	 *
+	 * @param mrp the measurement type
+	 * @return true if a measurement decoder is registered for the type
+	 */
+	public static boolean isSupported(final MRP mrp) {
+		return DataUnitFactory.getMeasurementDecoder(mrp) != null;
+	}
+
+	/**
+	 * Sets a floating point value and resets the remaining fields of the record.
+	 *
+	 * @param mrp   the measurement type
+	 * @param value the value
+	 * @return this record
+	 */
+	public MeasurementRecord set(final MRP mrp, final double value) {
+		reset(mrp);
+		this.floatingPoint = true;
+		this.doubleValue = value;
+		this.longValue = (long) value;
+		return this;
+	}
+
+	/**
+	 * Sets an integer value and resets the remaining fields of the record.
+	 *
+	 * @param mrp   the measurement type
+	 * @param value the value
+	 * @return this record
+	 */
+	public MeasurementRecord set(final MRP mrp, final long value) {
+		reset(mrp);
+		this.floatingPoint = false;
+		this.longValue = value;
+		this.doubleValue = value;
+		return this;
+	}
+
+	private void reset(final MRP mrp) {
+		this.mrp = mrp;
+		this.deviceId = 0;
+		this.channel = -1;
+		this.timestamp = 0;
+		this.aggregate = null;
+	}
+
+	public int getDeviceId() {
+		return deviceId;
+	}
+
+	public void setDeviceId(final int deviceId) {
+		this.deviceId = deviceId;
+	}
+
+	public MRP getMrp() {
+		return mrp;
+	}
+
+	/**
+	 * Gets the channel of the measurement.
+	 *
+	 * @return the channel or -1 if the measurement has no channel
+	 */
+	public int getChannel() {
+		return channel;
+	}
+
+	public void setChannel(final int channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Checks if the device sent a floating point value, otherwise it sent an integer.
+	 *
+	 * @return true for floating point values
+	 */
+	public boolean isFloatingPoint() {
+		return floatingPoint;
+	}
+
+	public double getDoubleValue() {
+		return doubleValue;
+	}
+
+	public long getLongValue() {
+		return longValue;
+	}
+
+	/**
+	 * Gets the time the measurement was received.
+	 *
+	 * @return the receive time in milliseconds since the epoch
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public void setTimestamp(final long timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Gets the statistic carried by this record.
+	 *
+	 * @return the statistic of the window starting at the timestamp or null for a single measurement
+	 */
+	public Aggregate getAggregate() {
+		return aggregate;
+	}
+
+	public void setAggregate(final Aggregate aggregate) {
+		this.aggregate = aggregate;
+	}
+
+	/**
+	 * Creates the data unit carrying the value of this record, for receivers without support for records.
+	 *
+	 * @return the data unit
+	 * @throws DataUnitValidationException if the data unit cannot be built
+	 */
+	public AbstractMechRainDataUnit toDataUnit() throws DataUnitValidationException {
+		final IDataUnitDecoder decoder = DataUnitFactory.getMeasurementDecoder(mrp);
+		if (decoder == null) {
+			throw new DataUnitValidationException("No data unit for measurement " + mrp);
+		}
+		return decoder.toDataUnit(this);
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("MeasurementRecord ").append(mrp)
+			.append(" device: ").append(deviceId);
+		if (channel >= 0) {
+			sb.append(" channel: ").append(channel);
+		}
+		if (aggregate != null) {
+			sb.append(" aggregate: ").append(aggregate);
+		}
+		sb.append(" value: ");
+		if (floatingPoint) {
+			sb.append(doubleValue);
+		} else {
+			sb.append(longValue);
+		}
+		return sb.toString();
+	}
+}
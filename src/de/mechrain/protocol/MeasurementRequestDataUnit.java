@@ -1,5 +1,7 @@
 package de.mechrain.protocol;
 
+import java.nio.ByteBuffer;
+
 /**
  * Data unit representing a measurement request.
  */
@@ -13,15 +15,38 @@ public class MeasurementRequestDataUnit extends AbstractMechRainDataUnit {
 	}
 
 	@Override
-	public byte[] toBytes() {
-		final byte[] result = new byte[6];
-		result[0] = id.byteVal;
-		result[1] = lengthBytes[0];
-		result[2] = lengthBytes[1];
-		result[3] = measurementId.byteVal;
-		result[4] = 0x00; /* reserved */
-		result[5] = 0x00; /* reserved */
-		return result;
+	public int getEncodedLength() {
+		return HEADER_LENGTH + 3;
+	}
+
+	@Override
+	public void encodeTo(final ByteBuffer buffer) {
+		encodeHeader(buffer);
+		buffer.put(measurementId.byteVal);
+		buffer.put((byte) 0x00); /* reserved */
+		buffer.put((byte) 0x00); /* reserved */
+	}
+
+	public MRP getMeasurementId() {
+		return measurementId;
+	}
+	
+	/**
+	 * Gets the channel of the requested measurement.
+	 *
+	 * @return the channel or -1 if the measurement has no channel
+	 */
+	public int getChannelId() {
+		return -1;
+	}
+	
+	/**
+	 * Gets a key identifying the requested measurement and channel. Requests with the same key are interchangeable.
+	 *
+	 * @return the request key
+	 */
+	public int getRequestKey() {
+		return (measurementId.byteVal & 0xFF) << 16 | getChannelId() & 0xFFFF;
 	}
 
 	@Override
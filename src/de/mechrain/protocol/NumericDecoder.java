@@ -0,0 +1,99 @@
+package de.mechrain.protocol;
+
+import java.nio.ByteBuffer;
+
+import de.mechrain.protocol.datatypes.FloatDataUnit.FloatDataUnitBuilder;
+import de.mechrain.protocol.datatypes.UInt1DataUnit.UInt1DataUnitBuilder;
+import de.mechrain.protocol.datatypes.UInt2DataUnit.UInt2DataUnitBuilder;
+
+/**
+ * Decoders of the numeric measurement encodings, supporting the allocation free {@link MeasurementRecord} path.
+ */
+public enum NumericDecoder implements IDataUnitDecoder {
+
+	/** 4 byte float, little endian */
+	FLOAT {
+		@Override
+		public AbstractMechRainDataUnit decode(final MRP mrp, final ByteBuffer buffer, final int payload, final int length)
+				throws DataUnitValidationException {
+			IDataUnitDecoder.requireLength(mrp, length, 4);
+			return new FloatDataUnitBuilder(mrp).humidity(readFloat(buffer, payload)).build();
+		}
+
+		@Override
+		public boolean decodeMeasurement(final MRP mrp, final ByteBuffer buffer, final int payload, final int length,
+				final MeasurementRecord record) {
+			if (length < 4) {
+				return false;
+			}
+			record.set(mrp, readFloat(buffer, payload));
+			return true;
+		}
+
+		@Override
+		public AbstractMechRainDataUnit toDataUnit(final MeasurementRecord record) throws DataUnitValidationException {
+			return new FloatDataUnitBuilder(record.getMrp()).humidity((float) record.getDoubleValue()).build();
+		}
+	},
+
+	/** 2 byte unsigned integer, big endian */
+	UINT2 {
+		@Override
+		public AbstractMechRainDataUnit decode(final MRP mrp, final ByteBuffer buffer, final int payload, final int length)
+				throws DataUnitValidationException {
+			IDataUnitDecoder.requireLength(mrp, length, 2);
+			return new UInt2DataUnitBuilder(mrp).soilMoistureAbs(readUInt2(buffer, payload)).build();
+		}
+
+		@Override
+		public boolean decodeMeasurement(final MRP mrp, final ByteBuffer buffer, final int payload, final int length,
+				final MeasurementRecord record) {
+			if (length < 2) {
+				return false;
+			}
+			record.set(mrp, (long) readUInt2(buffer, payload));
+			return true;
+		}
+
+		@Override
+		public AbstractMechRainDataUnit toDataUnit(final MeasurementRecord record) throws DataUnitValidationException {
+			return new UInt2DataUnitBuilder(record.getMrp()).soilMoistureAbs((int) record.getLongValue()).build();
+		}
+	},
+
+	/** 1 byte integer, sign extended like the UInt1DataUnit always did */
+	UINT1 {
+		@Override
+		public AbstractMechRainDataUnit decode(final MRP mrp, final ByteBuffer buffer, final int payload, final int length)
+				throws DataUnitValidationException {
+			IDataUnitDecoder.requireLength(mrp, length, 1);
+			return new UInt1DataUnitBuilder(mrp).soilMoisturePercent(buffer.get(payload)).build();
+		}
+
+		@Override
+		public boolean decodeMeasurement(final MRP mrp, final ByteBuffer buffer, final int payload, final int length,
+				final MeasurementRecord record) {
+			if (length < 1) {
+				return false;
+			}
+			record.set(mrp, (long) buffer.get(payload));
+			return true;
+		}
+
+		@Override
+		public AbstractMechRainDataUnit toDataUnit(final MeasurementRecord record) throws DataUnitValidationException {
+			return new UInt1DataUnitBuilder(record.getMrp()).soilMoisturePercent((int) record.getLongValue()).build();
+		}
+	};
+
+	private static float readFloat(final ByteBuffer buffer, final int payload) {
+		return Float.intBitsToFloat(buffer.get(payload + 3) << 24 
+				| (buffer.get(payload + 2) & 0xFF) << 16 
+				| (buffer.get(payload + 1) & 0xFF) << 8 
+				| (buffer.get(payload) & 0xFF));
+	}
+
+	private static int readUInt2(final ByteBuffer buffer, final int payload) {
+		return (buffer.get(payload) & 0xFF) << 8 | buffer.get(payload + 1) & 0xFF;
+	}
+}
@@ -1,5 +1,7 @@
 package de.mechrain.protocol;
 
+import java.nio.ByteBuffer;
+
 /**
  * Data unit to toggle an output pin for a defined duration.
  */
@@ -15,15 +17,16 @@ public class ToggleOutPinDataUnit extends AbstractMechRainDataUnit {
 	}
 
 	@Override
-	public byte[] toBytes() {
-		final byte[] result = new byte[6];
-		result[0] = id.byteVal;
-		result[1] = lengthBytes[0];
-		result[2] = lengthBytes[1];
-		result[3] = channel;
-		result[4] = (byte) (duration >> 8);
-		result[5] = (byte) duration;
-		return result;
+	public int getEncodedLength() {
+		return HEADER_LENGTH + 3;
+	}
+
+	@Override
+	public void encodeTo(final ByteBuffer buffer) {
+		encodeHeader(buffer);
+		buffer.put(channel);
+		buffer.put((byte) (duration >> 8));
+		buffer.put((byte) duration);
 	}
 
 	@Override
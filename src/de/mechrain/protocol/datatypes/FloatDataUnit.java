@@ -1,5 +1,7 @@
 package de.mechrain.protocol.datatypes;
 
+import java.nio.ByteBuffer;
+
 import de.mechrain.protocol.AbstractMechRainDataUnit;
 import de.mechrain.protocol.DataUnitValidationException;
 import de.mechrain.protocol.MRP;
@@ -14,18 +16,18 @@ public class FloatDataUnit extends AbstractMechRainDataUnit {
 	}
 
 	@Override
-	public byte[] toBytes() {
-		final byte[] result = new byte[7];
-		result[0] = id.byteVal;
-		result[1] = lengthBytes[0];
-		result[2] = lengthBytes[1];
-		
+	public int getEncodedLength() {
+		return HEADER_LENGTH + 4;
+	}
+
+	@Override
+	public void encodeTo(final ByteBuffer buffer) {
+		encodeHeader(buffer);
 		final int intBits = Float.floatToIntBits(value);
-		result[3] = (byte) (intBits >> 24);
-		result[4] = (byte) (intBits >> 16);
-		result[5] = (byte) (intBits >> 8);
-		result[6] = (byte) (intBits);
-		return result;
+		buffer.put((byte) (intBits >> 24));
+		buffer.put((byte) (intBits >> 16));
+		buffer.put((byte) (intBits >> 8));
+		buffer.put((byte) intBits);
 	}
 	
 	public float getValue() {
@@ -1,6 +1,6 @@
 package de.mechrain.protocol.datatypes;
 
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 
 import de.mechrain.protocol.AbstractMechRainDataUnit;
 import de.mechrain.protocol.DataUnitValidationException;
@@ -23,15 +23,18 @@ public class TextDataUnit extends AbstractMechRainDataUnit {
 	}
 
 	@Override
-	public byte[] toBytes() {
-		final byte[] result = new byte[text.length() + 3];
-		result[0] = id.byteVal;
-		result[1] = lengthBytes[0];
-		result[2] = lengthBytes[1];
-		
-		final byte[] messageBytes = text.getBytes(StandardCharsets.ISO_8859_1);
-		System.arraycopy(messageBytes, 0, result, 3, messageBytes.length);
-		return result;
+	public int getEncodedLength() {
+		return HEADER_LENGTH + text.length();
+	}
+
+	@Override
+	public void encodeTo(final ByteBuffer buffer) {
+		encodeHeader(buffer);
+		for (int i = 0; i < text.length(); i++) {
+			/* ISO-8859-1, unmappable characters become '?' */
+			final char c = text.charAt(i);
+			buffer.put(c <= 0xFF ? (byte) c : (byte) '?');
+		}
 	}
 
 	@Override
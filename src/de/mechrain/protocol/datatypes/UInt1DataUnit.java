@@ -1,5 +1,7 @@
 package de.mechrain.protocol.datatypes;
 
+import java.nio.ByteBuffer;
+
 import de.mechrain.protocol.AbstractMechRainDataUnit;
 import de.mechrain.protocol.DataUnitValidationException;
 import de.mechrain.protocol.MRP;
@@ -18,13 +20,14 @@ public class UInt1DataUnit extends AbstractMechRainDataUnit {
 	}
 
 	@Override
-	public byte[] toBytes() {
-		final byte[] result = new byte[4];
-		result[0] = id.byteVal;
-		result[1] = lengthBytes[0];
-		result[2] = lengthBytes[1];
-		result[3] = (byte) (value >> 8);
-		return result;
+	public int getEncodedLength() {
+		return HEADER_LENGTH + 1;
+	}
+
+	@Override
+	public void encodeTo(final ByteBuffer buffer) {
+		encodeHeader(buffer);
+		buffer.put((byte) (value >> 8));
 	}
 
 	@Override
@@ -1,5 +1,7 @@
 package de.mechrain.protocol.datatypes;
 
+import java.nio.ByteBuffer;
+
 import de.mechrain.protocol.AbstractMechRainDataUnit;
 import de.mechrain.protocol.DataUnitValidationException;
 import de.mechrain.protocol.MRP;
@@ -18,15 +20,15 @@ public class UInt2DataUnit extends AbstractMechRainDataUnit {
 	}
 
 	@Override
-	public byte[] toBytes() {
-		final byte[] result = new byte[5];
-		result[0] = id.byteVal;
-		result[1] = lengthBytes[0];
-		result[2] = lengthBytes[1];
-		result[3] = (byte) (value >> 8);
-		result[4] = (byte) value;
-		
-		return result;
+	public int getEncodedLength() {
+		return HEADER_LENGTH + 2;
+	}
+
+	@Override
+	public void encodeTo(final ByteBuffer buffer) {
+		encodeHeader(buffer);
+		buffer.put((byte) (value >> 8));
+		buffer.put((byte) value);
 	}
 
 	@Override
@@ -0,0 +1,67 @@
+package de.mechrain.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads bits most significant bit first from a region of a buffer, e.g. a memory mapped segment.
+ */
+class BitInput {
+
+	private final ByteBuffer buffer;
+	private final int end;
+	private int position;
+	/* bits not consumed yet, left aligned */
+	private long cache;
+	private int cached;
+
+	/**
+	 * @param buffer the buffer, its position and limit are not changed
+	 * @param offset the offset of the first byte
+	 * @param length the number of bytes
+	 */
+	BitInput(final ByteBuffer buffer, final int offset, final int length) {
+		this.buffer = buffer;
+		this.position = offset;
+		this.end = offset + length;
+	}
+
+	/**
+	 * Reads an unsigned value.
+	 *
+	 * @param bits the number of bits, 1 to 64
+	 * @return the value in the lowest bits
+	 */
+	long read(final int bits) {
+		if (bits <= cached) {
+			final long value = cache >>> (64 - bits);
+			cache = bits == 64 ? 0 : cache << bits;
+			cached -= bits;
+			return value;
+		}
+		/* take what is cached, then refill */
+		final int first = cached;
+		long value = first == 0 ? 0 : cache >>> (64 - first);
+		refill();
+		final int rest = bits - first;
+		if (rest > cached) {
+			throw new IllegalStateException("Read beyond the end of the chunk");
+		}
+		value = rest == 64 ? cache : (value << rest) | (cache >>> (64 - rest));
+		cache = rest == 64 ? 0 : cache << rest;
+		cached -= rest;
+		return value;
+	}
+
+	boolean readBit() {
+		return read(1) != 0;
+	}
+
+	private void refill() {
+		cache = 0;
+		cached = 0;
+		while (cached < 64 && position < end) {
+			cache |= (buffer.get(position++) & 0xFFL) << (56 - cached);
+			cached += 8;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package de.mechrain.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Growable buffer of bits written most significant bit first.
+ */
+class BitOutput {
+
+	private long[] words = new long[16];
+	/* number of bits written */
+	private long length;
+
+	/**
+	 * Writes the lowest bits of a value.
+	 *
+	 * @param value the value
+	 * @param bits  the number of bits to write, 1 to 64
+	 */
+	void write(final long value, final int bits) {
+		final int index = (int) (length >>> 6);
+		if (index + 1 >= words.length) {
+			words = Arrays.copyOf(words, words.length * 2);
+		}
+		final long masked = bits == 64 ? value : value & ((1L << bits) - 1);
+		final int used = (int) (length & 63);
+		final int free = 64 - used;
+		if (bits <= free) {
+			words[index] |= masked << (free - bits);
+		} else {
+			words[index] |= masked >>> (bits - free);
+			words[index + 1] = masked << (64 - (bits - free));
+		}
+		length += bits;
+	}
+
+	void writeBit(final boolean bit) {
+		write(bit ? 1 : 0, 1);
+	}
+
+	long length() {
+		return length;
+	}
+
+	/**
+	 * Gets the number of bytes holding the written bits.
+	 */
+	int byteLength() {
+		return (int) ((length + 7) >>> 3);
+	}
+
+	/**
+	 * Copies the written bits to the buffer, the last byte is padded with zeros.
+	 *
+	 * @param target the buffer to write to
+	 */
+	void copyTo(final ByteBuffer target) {
+		final int bytes = byteLength();
+		for (int i = 0; i < bytes; i++) {
+			target.put((byte) (words[i >>> 3] >>> (56 - ((i & 7) << 3))));
+		}
+	}
+
+	void clear() {
+		Arrays.fill(words, 0, Math.min(words.length, (int) (length >>> 6) + 1), 0);
+		length = 0;
+	}
+}
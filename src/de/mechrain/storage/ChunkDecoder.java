@@ -0,0 +1,105 @@
+package de.mechrain.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decompresses the points written by a {@link ChunkEncoder}.
+ */
+class ChunkDecoder {
+
+	private final BitInput bits;
+	private final int count;
+	private final long firstTimestamp;
+	private final long lastTimestamp;
+
+	private int read;
+	private long timestamp;
+	private long delta;
+	private long value;
+	private int leading;
+	private int trailing;
+
+	/**
+	 * @param buffer the buffer holding the chunk, e.g. a memory mapped segment
+	 * @param offset the offset of the compressed points
+	 * @param length the number of bytes of the compressed points
+	 * @param count  the number of points
+	 * @param first  the first timestamp of the chunk
+	 * @param last   the last timestamp of the chunk
+	 */
+	ChunkDecoder(final ByteBuffer buffer, final int offset, final int length, final int count, final long first,
+			final long last) {
+		this.bits = new BitInput(buffer, offset, length);
+		this.count = count;
+		this.firstTimestamp = first;
+		this.lastTimestamp = last;
+	}
+
+	/**
+	 * Moves to the next point.
+	 *
+	 * @return false if all points were read
+	 */
+	boolean next() {
+		if (read == count) {
+			return false;
+		}
+		if (read == 0) {
+			timestamp = bits.read(64);
+			value = bits.read(64);
+		} else {
+			delta += readDeltaOfDelta();
+			timestamp += delta;
+			readValue();
+		}
+		read++;
+		return true;
+	}
+
+	private long readDeltaOfDelta() {
+		if ( ! bits.readBit()) {
+			return 0;
+		}
+		if ( ! bits.readBit()) {
+			return signed(bits.read(7), 7);
+		}
+		if ( ! bits.readBit()) {
+			return signed(bits.read(9), 9);
+		}
+		if ( ! bits.readBit()) {
+			return signed(bits.read(12), 12);
+		}
+		return bits.read(64);
+	}
+
+	private static long signed(final long value, final int bits) {
+		return (value << (64 - bits)) >> (64 - bits);
+	}
+
+	private void readValue() {
+		if ( ! bits.readBit()) {
+			return;
+		}
+		if (bits.readBit()) {
+			leading = (int) bits.read(5);
+			trailing = 64 - leading - ((int) bits.read(6) + 1);
+		}
+		value ^= bits.read(64 - leading - trailing) << trailing;
+	}
+
+	long getFirstTimestamp() {
+		return firstTimestamp;
+	}
+
+	long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+	long timestamp() {
+		return timestamp;
+	}
+
+	double value() {
+		return Double.longBitsToDouble(value);
+	}
+}
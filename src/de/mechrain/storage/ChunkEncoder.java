@@ -0,0 +1,118 @@
+package de.mechrain.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses the points of one series as described for Facebook's Gorilla: timestamps as delta of deltas and values
+ * as XOR with the previous value. Regularly polled, slowly changing values take a few bits per point.
+ * <p>
+ * Timestamp encoding, the delta of deltas in milliseconds: <code>0</code> for 0, <code>10</code> + 7 bits,
+ * <code>110</code> + 9 bits, <code>1110</code> + 12 bits, otherwise <code>1111</code> + 64 bits. Value encoding, the
+ * XOR with the previous value: <code>0</code> if equal, <code>10</code> + the meaningful bits if they fit the window
+ * of the previous value, otherwise <code>11</code> + 5 bits leading zeros + 6 bits length - 1 + the meaningful bits.
+ * The first point is written with 64 bits each.
+ */
+class ChunkEncoder {
+
+	private final BitOutput bits = new BitOutput();
+
+	private int count;
+	private long firstTimestamp;
+	private long previousTimestamp;
+	private long previousDelta;
+	private long previousValue;
+	private int previousLeading = -1;
+	private int previousTrailing;
+
+	void append(final long timestamp, final double value) {
+		final long valueBits = Double.doubleToRawLongBits(value);
+		if (count == 0) {
+			firstTimestamp = timestamp;
+			bits.write(timestamp, 64);
+			bits.write(valueBits, 64);
+		} else {
+			final long delta = timestamp - previousTimestamp;
+			writeDeltaOfDelta(delta - previousDelta);
+			previousDelta = delta;
+			writeValue(valueBits ^ previousValue);
+		}
+		previousTimestamp = timestamp;
+		previousValue = valueBits;
+		count++;
+	}
+
+	private void writeDeltaOfDelta(final long dod) {
+		if (dod == 0) {
+			bits.write(0b0, 1);
+		} else if (dod >= -64 && dod <= 63) {
+			bits.write(0b10, 2);
+			bits.write(dod, 7);
+		} else if (dod >= -256 && dod <= 255) {
+			bits.write(0b110, 3);
+			bits.write(dod, 9);
+		} else if (dod >= -2048 && dod <= 2047) {
+			bits.write(0b1110, 4);
+			bits.write(dod, 12);
+		} else {
+			bits.write(0b1111, 4);
+			bits.write(dod, 64);
+		}
+	}
+
+	private void writeValue(final long xor) {
+		if (xor == 0) {
+			bits.write(0b0, 1);
+			return;
+		}
+		final int leading = Math.min(31, Long.numberOfLeadingZeros(xor));
+		final int trailing = Long.numberOfTrailingZeros(xor);
+		if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+			bits.write(0b10, 2);
+			bits.write(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+		} else {
+			final int meaningful = 64 - leading - trailing;
+			bits.write(0b11, 2);
+			bits.write(leading, 5);
+			bits.write(meaningful - 1, 6);
+			bits.write(xor >>> trailing, meaningful);
+			previousLeading = leading;
+			previousTrailing = trailing;
+		}
+	}
+
+	int getCount() {
+		return count;
+	}
+
+	long getFirstTimestamp() {
+		return firstTimestamp;
+	}
+
+	long getLastTimestamp() {
+		return previousTimestamp;
+	}
+
+	int byteLength() {
+		return bits.byteLength();
+	}
+
+	/**
+	 * Copies the compressed points to the buffer.
+	 *
+	 * @param target the buffer, at least {@link #byteLength()} bytes must remain
+	 */
+	void copyTo(final ByteBuffer target) {
+		bits.copyTo(target);
+	}
+
+	/**
+	 * Starts a new chunk, the buffer is reused.
+	 */
+	void reset() {
+		bits.clear();
+		count = 0;
+		previousDelta = 0;
+		previousLeading = -1;
+		previousTrailing = 0;
+	}
+}
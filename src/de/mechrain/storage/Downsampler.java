@@ -0,0 +1,77 @@
+package de.mechrain.storage;
+
+/**
+ * Reduces the points read from a {@link TimeSeriesStore} to one point per time bucket. Buckets are aligned to the
+ * epoch, the reduced point carries the start of its bucket as timestamp. Points are expected in time order as passed
+ * by {@link TimeSeriesStore#read(long, long, long, IPointConsumer)}, each bucket is passed on once.
+ */
+public class Downsampler implements IPointConsumer {
+
+	/**
+	 * The statistic of the points of a bucket.
+	 */
+	public enum Function {
+		AVG,
+		MIN,
+		MAX
+	}
+
+	private final long bucketMillis;
+	private final Function function;
+	private final IPointConsumer downstream;
+
+	private long bucket;
+	private long count;
+	private double result;
+
+	/**
+	 * @param bucketMillis the length of the buckets in milliseconds
+	 * @param function     the statistic passed on per bucket
+	 * @param downstream   receives a point per bucket
+	 */
+	public Downsampler(final long bucketMillis, final Function function, final IPointConsumer downstream) {
+		if (bucketMillis <= 0) {
+			throw new IllegalArgumentException("Bucket must be positive");
+		}
+		this.bucketMillis = bucketMillis;
+		this.function = function;
+		this.downstream = downstream;
+	}
+
+	@Override
+	public void accept(final long timestamp, final double value) {
+		final long start = Math.floorDiv(timestamp, bucketMillis) * bucketMillis;
+		if (count > 0 && start != bucket) {
+			finish();
+		}
+		if (count == 0) {
+			bucket = start;
+			result = value;
+		} else {
+			switch (function) {
+			case MIN:
+				result = Math.min(result, value);
+				break;
+			case MAX:
+				result = Math.max(result, value);
+				break;
+			case AVG:
+			default:
+				result += value;
+				break;
+			}
+		}
+		count++;
+	}
+
+	/**
+	 * Passes on the point of the last bucket, must be called after the read.
+	 */
+	public void finish() {
+		if (count == 0) {
+			return;
+		}
+		downstream.accept(bucket, function == Function.AVG ? result / count : result);
+		count = 0;
+	}
+}
@@ -0,0 +1,14 @@
+package de.mechrain.storage;
+
+/**
+ * Receives the points read from a {@link TimeSeriesStore}.
+ */
+@FunctionalInterface
+public interface IPointConsumer {
+
+	/**
+	 * @param timestamp the time of the point in milliseconds since the epoch
+	 * @param value     the value of the point
+	 */
+	void accept(final long timestamp, final double value);
+}
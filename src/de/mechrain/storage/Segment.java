@@ -0,0 +1,298 @@
+package de.mechrain.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.mechrain.log.Logging;
+
+/**
+ * The chunks of one time partition of a {@link TimeSeriesStore}, stored in an append-only data file and a time index
+ * file next to it.
+ * <p>
+ * The index holds an entry per chunk: series (long), first timestamp (long), last timestamp (long), offset in the data
+ * file (int), length of the compressed points (int) and points (int). It is kept in primitive arrays, so selecting the
+ * chunks of a query does not touch the data file, only the pages of the selected chunks are read from the memory
+ * mapping. An index entry is written after its chunk. When the segment is opened again, entries without a complete
+ * chunk are dropped and chunks without an entry are indexed by scanning their headers. Not thread safe, guarded by the
+ * store.
+ */
+class Segment {
+
+	private static final Logger LOG = LogManager.getLogger(Logging.STORAGE);
+
+	static final String DATA_SUFFIX = ".tsd";
+	static final String INDEX_SUFFIX = ".tsi";
+	static final int INDEX_ENTRY_BYTES = 36;
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final long partition;
+	private final Path dataPath;
+	private final Path indexPath;
+
+	/* bytes of complete chunks */
+	private long size;
+	/* opened on the first write */
+	private FileChannel dataChannel;
+	private FileChannel indexChannel;
+	private boolean dirty;
+	/* mapping of the first mappedSize bytes, replaced once chunks were appended */
+	private MappedByteBuffer mapped;
+	private long mappedSize;
+	private final ByteBuffer entryBuffer = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+
+	/* the index by chunk */
+	private long[] series = new long[INITIAL_CAPACITY];
+	private long[] firstTimestamps = new long[INITIAL_CAPACITY];
+	private long[] lastTimestamps = new long[INITIAL_CAPACITY];
+	private int[] offsets = new int[INITIAL_CAPACITY];
+	private int[] lengths = new int[INITIAL_CAPACITY];
+	private int[] counts = new int[INITIAL_CAPACITY];
+	private int chunks;
+	private long points;
+
+	Segment(final Path directory, final long partition) {
+		this.partition = partition;
+		this.dataPath = directory.resolve(partition + DATA_SUFFIX);
+		this.indexPath = directory.resolve(partition + INDEX_SUFFIX);
+	}
+
+	/**
+	 * Loads the index of an existing segment, repairing it and truncating a torn chunk at the end of the data file.
+	 *
+	 * @return true if the data file was truncated
+	 * @throws IOException if the files cannot be read or repaired
+	 */
+	boolean recover() throws IOException {
+		final long dataSize = Files.size(dataPath);
+		long end = 0;
+		int indexed = 0;
+		if (Files.exists(indexPath)) {
+			final ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexPath));
+			while (index.remaining() >= INDEX_ENTRY_BYTES) {
+				final long entrySeries = index.getLong();
+				final long first = index.getLong();
+				final long last = index.getLong();
+				final int offset = index.getInt();
+				final int length = index.getInt();
+				final int count = index.getInt();
+				if (offset != end || length <= 0 || count <= 0 || end + TimeSeriesStore.HEADER_BYTES + length > dataSize) {
+					break;
+				}
+				add(entrySeries, first, last, offset, length, count);
+				end += TimeSeriesStore.HEADER_BYTES + length;
+				indexed++;
+			}
+		}
+		final boolean truncated;
+		try (final FileChannel channel = FileChannel.open(dataPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			end = scan(channel, end, dataSize);
+			truncated = end < dataSize;
+			if (truncated) {
+				final long valid = end;
+				LOG.warn(() -> "Truncating torn chunk at " + valid + " of " + dataPath + " (" + dataSize + " bytes)");
+				channel.truncate(end);
+			}
+		}
+		size = end;
+		if (indexed != chunks || ! Files.exists(indexPath) || Files.size(indexPath) != (long) chunks * INDEX_ENTRY_BYTES) {
+			LOG.info(() -> "Rebuilding index " + indexPath + " with " + chunks + " chunks");
+			rewriteIndex();
+		}
+		return truncated;
+	}
+
+	/**
+	 * Indexes the chunks following the indexed ones by their headers.
+	 *
+	 * @return the end of the last complete chunk
+	 */
+	private long scan(final FileChannel channel, final long start, final long dataSize) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(TimeSeriesStore.HEADER_BYTES);
+		long position = start;
+		while (position + TimeSeriesStore.HEADER_BYTES <= dataSize) {
+			header.clear();
+			while (header.hasRemaining() && channel.read(header, position + header.position()) > 0) {
+				/* read the header */
+			}
+			final int count = header.getInt(28);
+			final int length = header.getInt(32);
+			if (header.getInt(0) != TimeSeriesStore.MAGIC || count <= 0 || length <= 0
+					|| position + TimeSeriesStore.HEADER_BYTES + length > dataSize) {
+				break;
+			}
+			add(header.getLong(4), header.getLong(12), header.getLong(20), (int) position, length, count);
+			position += TimeSeriesStore.HEADER_BYTES + length;
+		}
+		return position;
+	}
+
+	private void rewriteIndex() throws IOException {
+		try (final FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (int chunk = 0; chunk < chunks; chunk++) {
+				writeEntry(channel, chunk);
+			}
+			channel.force(false);
+		}
+	}
+
+	private void writeEntry(final FileChannel channel, final int chunk) throws IOException {
+		entryBuffer.clear();
+		entryBuffer.putLong(series[chunk]).putLong(firstTimestamps[chunk]).putLong(lastTimestamps[chunk])
+				.putInt(offsets[chunk]).putInt(lengths[chunk]).putInt(counts[chunk]);
+		entryBuffer.flip();
+		long position = (long) chunk * INDEX_ENTRY_BYTES;
+		while (entryBuffer.hasRemaining()) {
+			position += channel.write(entryBuffer, position);
+		}
+	}
+
+	private void add(final long chunkSeries, final long first, final long last, final int offset, final int length,
+			final int count) {
+		if (chunks == series.length) {
+			final int capacity = chunks * 2;
+			series = Arrays.copyOf(series, capacity);
+			firstTimestamps = Arrays.copyOf(firstTimestamps, capacity);
+			lastTimestamps = Arrays.copyOf(lastTimestamps, capacity);
+			offsets = Arrays.copyOf(offsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			counts = Arrays.copyOf(counts, capacity);
+		}
+		series[chunks] = chunkSeries;
+		firstTimestamps[chunks] = first;
+		lastTimestamps[chunks] = last;
+		offsets[chunks] = offset;
+		lengths[chunks] = length;
+		counts[chunks] = count;
+		chunks++;
+		points += count;
+	}
+
+	/**
+	 * Appends a chunk to the data file and its entry to the index.
+	 *
+	 * @param chunk       the header and compressed points of the chunk
+	 * @param chunkSeries the key of the series
+	 * @param first       the first timestamp of the chunk
+	 * @param last        the last timestamp of the chunk
+	 * @param count       the number of points
+	 * @throws IOException if the chunk cannot be written
+	 */
+	void append(final ByteBuffer chunk, final long chunkSeries, final long first, final long last, final int count)
+			throws IOException {
+		if (size + chunk.remaining() > Integer.MAX_VALUE) {
+			throw new IOException("Segment " + dataPath + " is full, use shorter partitions");
+		}
+		if (dataChannel == null) {
+			dataChannel = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		}
+		final int offset = (int) size;
+		final int length = chunk.remaining() - TimeSeriesStore.HEADER_BYTES;
+		long position = size;
+		while (chunk.hasRemaining()) {
+			position += dataChannel.write(chunk, position);
+		}
+		size = position;
+		dirty = true;
+		add(chunkSeries, first, last, offset, length, count);
+		/* a missing entry is rebuilt from the chunk header when the segment is opened again */
+		writeEntry(indexChannel, chunks - 1);
+	}
+
+	/**
+	 * Adds a decoder for each chunk of the series overlapping the time range, in the order they were written.
+	 *
+	 * @throws IOException if the data file cannot be mapped
+	 */
+	void select(final long selectedSeries, final long from, final long to, final List<ChunkDecoder> decoders)
+			throws IOException {
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			if (series[chunk] == selectedSeries && firstTimestamps[chunk] <= to && lastTimestamps[chunk] >= from) {
+				decoders.add(new ChunkDecoder(map(), offsets[chunk] + TimeSeriesStore.HEADER_BYTES, lengths[chunk], counts[chunk],
+						firstTimestamps[chunk], lastTimestamps[chunk]));
+			}
+		}
+	}
+
+	/**
+	 * Maps the complete chunks read-only. The mapping stays valid after the segment was closed or deleted, so queries
+	 * decode outside the lock of the store.
+	 */
+	private MappedByteBuffer map() throws IOException {
+		if (mapped == null || mappedSize != size) {
+			try (final FileChannel channel = FileChannel.open(dataPath, StandardOpenOption.READ)) {
+				mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				mappedSize = size;
+			}
+		}
+		return mapped;
+	}
+
+	/**
+	 * Forces appended chunks and index entries to disk.
+	 */
+	void force() throws IOException {
+		if (dirty) {
+			dataChannel.force(false);
+			indexChannel.force(false);
+			dirty = false;
+		}
+	}
+
+	void close() {
+		if (dataChannel != null) {
+			try {
+				dataChannel.close();
+				indexChannel.close();
+			} catch (final IOException e) {
+				LOG.error(() -> "Could not close " + dataPath, e);
+			}
+			dataChannel = null;
+			indexChannel = null;
+		}
+		mapped = null;
+	}
+
+	/**
+	 * Closes and deletes the data and index files.
+	 */
+	void delete() throws IOException {
+		close();
+		Files.deleteIfExists(indexPath);
+		Files.deleteIfExists(dataPath);
+	}
+
+	long getPartition() {
+		return partition;
+	}
+
+	Path getDataPath() {
+		return dataPath;
+	}
+
+	/**
+	 * Gets the bytes of complete chunks in the data file.
+	 */
+	long getSize() {
+		return size;
+	}
+
+	int getChunks() {
+		return chunks;
+	}
+
+	long getPoints() {
+		return points;
+	}
+}
@@ -0,0 +1,548 @@
+package de.mechrain.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.mechrain.log.Logging;
+import de.mechrain.protocol.MRP;
+import de.mechrain.protocol.MeasurementRecord.Aggregate;
+import de.mechrain.util.HashedWheelTimer;
+import de.mechrain.util.HashedWheelTimer.Timeout;
+import de.mechrain.util.ThreadSupport;
+
+/**
+ * Embedded append-only store for numeric time series on local disk.
+ * <p>
+ * The points of each series are collected in an open chunk compressed by {@link ChunkEncoder}. A chunk is sealed and
+ * appended to the segment file of its time partition when it is full, when a point belongs to another partition or
+ * arrives out of order, and when it was open for longer than the maximum chunk age. Segment files are named after the
+ * start of their partition, are never rewritten and are deleted as a whole once the partition is older than the
+ * retention. Reads only consider the segments of the partitions overlapping the requested range and select the chunks
+ * by the time index of each {@link Segment}, so only the pages of the selected chunks are mapped in. Points of open
+ * chunks are lost if the process dies, a torn chunk at the end of a segment is truncated when the store is opened
+ * again.
+ * <p>
+ * Chunk layout: magic (int), series (long), first timestamp (long), last timestamp (long), points (int), length of
+ * the compressed points in bytes (int), compressed points.
+ */
+public final class TimeSeriesStore {
+
+	private static final Logger LOG = LogManager.getLogger(Logging.STORAGE);
+
+	/** Maximum number of points per chunk (default 1024) */
+	public static final String CHUNK_POINTS_PROPERTY = "mechrain.store.chunkPoints";
+	/** Maximum time in ms a chunk stays open before it is written, i.e. the points lost on a crash (default 600000) */
+	public static final String CHUNK_AGE_PROPERTY = "mechrain.store.chunkAgeMs";
+	/** Interval in ms of writing aged chunks and deleting expired segments (default 10000) */
+	public static final String FLUSH_INTERVAL_PROPERTY = "mechrain.store.flushIntervalMs";
+
+	static final int MAGIC = 0x4D525453;
+	static final int HEADER_BYTES = 36;
+
+	/** Thread writing aged chunks and deleting expired segments of all stores */
+	private static final ThreadPoolExecutor MAINTENANCE_EXECUTOR = ThreadSupport.newBoundedExecutor("Local-Store", 1, 16);
+
+	/* guarded by itself */
+	private static final Map<Path, TimeSeriesStore> STORES = new HashMap<>();
+
+	private final Path directory;
+	private final long partitionMillis;
+	private final long retentionMillis;
+	private final int chunkPoints;
+	private final long chunkAgeMillis;
+	private final Timeout maintenanceTimer;
+
+	/* segments by start of their partition */
+	private final TreeMap<Long, Segment> segments = new TreeMap<>();
+	/* open chunks in an open addressing table keyed by series */
+	private OpenChunk[] chunks = new OpenChunk[64];
+	private int chunkCount;
+	private ByteBuffer writeBuffer = ByteBuffer.allocate(4096);
+	private boolean closed;
+	/* guarded by STORES */
+	private int references;
+
+	private long points;
+	private long sealedPoints;
+	private long sealedChunks;
+	private long bytes;
+	private long deletedSegments;
+	private long truncated;
+	private long writeErrors;
+
+	private TimeSeriesStore(final Path directory, final long partitionMillis, final long retentionMillis) throws IOException {
+		this.directory = directory;
+		this.partitionMillis = partitionMillis;
+		this.retentionMillis = retentionMillis;
+		this.chunkPoints = Math.max(2, Integer.getInteger(CHUNK_POINTS_PROPERTY, 1024));
+		this.chunkAgeMillis = Long.getLong(CHUNK_AGE_PROPERTY, 600000);
+		Files.createDirectories(directory);
+		recover();
+		final long interval = Long.getLong(FLUSH_INTERVAL_PROPERTY, 10000);
+		this.maintenanceTimer = HashedWheelTimer.shared().scheduleAtFixedRate(this::requestMaintenance, interval, interval,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Opens the store in the given directory or gets it if it is already open. Each call must be paired with
+	 * {@link #release()}.
+	 *
+	 * @param directory       the directory of the segment files, created if missing
+	 * @param partitionMillis the time span of a segment file in milliseconds
+	 * @param retentionMillis the time in milliseconds after which segments are deleted
+	 * @return the store
+	 * @throws IOException if the directory cannot be created or read
+	 */
+	public static TimeSeriesStore acquire(final Path directory, final long partitionMillis, final long retentionMillis)
+			throws IOException {
+		if (partitionMillis <= 0 || retentionMillis <= 0) {
+			throw new IllegalArgumentException("Partition and retention must be positive");
+		}
+		final Path key = directory.toAbsolutePath().normalize();
+		synchronized (STORES) {
+			TimeSeriesStore store = STORES.get(key);
+			if (store == null) {
+				store = new TimeSeriesStore(key, partitionMillis, retentionMillis);
+				STORES.put(key, store);
+			} else if (store.partitionMillis != partitionMillis || store.retentionMillis != retentionMillis) {
+				LOG.warn(() -> "Store " + key + " is already open with other settings, using them");
+			}
+			store.references++;
+			return store;
+		}
+	}
+
+	/**
+	 * Releases the store, the last user writes the open chunks and closes the segment files.
+	 */
+	public void release() {
+		synchronized (STORES) {
+			if (--references > 0) {
+				return;
+			}
+			STORES.remove(directory);
+		}
+		maintenanceTimer.cancel();
+		close();
+	}
+
+	/**
+	 * Builds the key of a series.
+	 *
+	 * @param deviceId  the ID of the device
+	 * @param channel   the channel or -1
+	 * @param mrp       the type of the values
+	 * @param aggregate the statistic of downsampled values or null for raw values
+	 * @return the key
+	 */
+	public static long seriesKey(final int deviceId, final int channel, final MRP mrp, final Aggregate aggregate) {
+		final long key = (deviceId & 0xFFFFFFFFL) << 24 | (channel & 0xFFFFL) << 8 | mrp.ordinal();
+		return aggregate == null ? key : key | (aggregate.ordinal() + 1L) << 56;
+	}
+
+	/**
+	 * Appends a point to the open chunk of its series.
+	 *
+	 * @param series    the key of the series
+	 * @param timestamp the time of the point in milliseconds since the epoch
+	 * @param value     the value
+	 */
+	public synchronized void append(final long series, final long timestamp, final double value) {
+		if (closed) {
+			throw new IllegalStateException("Store " + directory + " is closed");
+		}
+		final OpenChunk chunk = chunk(series);
+		final ChunkEncoder encoder = chunk.encoder;
+		final long partition = Math.floorDiv(timestamp, partitionMillis) * partitionMillis;
+		if (encoder.getCount() > 0 && (partition != chunk.partition || timestamp < encoder.getLastTimestamp())) {
+			seal(chunk);
+		}
+		if (encoder.getCount() == 0) {
+			chunk.partition = partition;
+			chunk.openedAt = System.currentTimeMillis();
+		}
+		encoder.append(timestamp, value);
+		points++;
+		if (encoder.getCount() >= chunkPoints) {
+			seal(chunk);
+		}
+	}
+
+	private OpenChunk chunk(final long series) {
+		final int mask = chunks.length - 1;
+		int entry = hash(series) & mask;
+		OpenChunk chunk;
+		while ((chunk = chunks[entry]) != null) {
+			if (chunk.series == series) {
+				return chunk;
+			}
+			entry = (entry + 1) & mask;
+		}
+		if ((chunkCount + 1) * 2 > chunks.length) {
+			final OpenChunk[] old = chunks;
+			chunks = new OpenChunk[old.length * 2];
+			for (final OpenChunk c : old) {
+				if (c != null) {
+					int e = hash(c.series) & (chunks.length - 1);
+					while (chunks[e] != null) {
+						e = (e + 1) & (chunks.length - 1);
+					}
+					chunks[e] = c;
+				}
+			}
+			return chunk(series);
+		}
+		chunk = new OpenChunk(series);
+		chunks[entry] = chunk;
+		chunkCount++;
+		return chunk;
+	}
+
+	private static int hash(final long key) {
+		final long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	/**
+	 * Appends the chunk to the segment of its partition and starts a new one.
+	 */
+	private void seal(final OpenChunk chunk) {
+		final ChunkEncoder encoder = chunk.encoder;
+		if (encoder.getCount() == 0) {
+			return;
+		}
+		final int length = encoder.byteLength();
+		if (writeBuffer.capacity() < HEADER_BYTES + length) {
+			writeBuffer = ByteBuffer.allocate(Math.max(HEADER_BYTES + length, writeBuffer.capacity() * 2));
+		}
+		writeBuffer.clear();
+		writeBuffer.putInt(MAGIC).putLong(chunk.series).putLong(encoder.getFirstTimestamp())
+				.putLong(encoder.getLastTimestamp()).putInt(encoder.getCount()).putInt(length);
+		encoder.copyTo(writeBuffer);
+		writeBuffer.flip();
+		final Segment segment = segments.computeIfAbsent(chunk.partition, partition -> new Segment(directory, partition));
+		try {
+			segment.append(writeBuffer, chunk.series, encoder.getFirstTimestamp(), encoder.getLastTimestamp(),
+					encoder.getCount());
+			sealedPoints += encoder.getCount();
+			sealedChunks++;
+			bytes += HEADER_BYTES + length;
+		} catch (final IOException e) {
+			writeErrors++;
+			LOG.error(() -> "Could not write chunk of " + encoder.getCount() + " points to " + segment.getDataPath(), e);
+		}
+		encoder.reset();
+	}
+
+	/**
+	 * Reads the points of a series in a time range in time order, points with the same timestamp in the order they were
+	 * written. The points within a chunk are in time order, chunks sealed for out of order points overlap earlier
+	 * chunks and are merged point by point. The chunks are selected while holding the lock and decoded without it, so
+	 * a slow consumer does not block appending.
+	 *
+	 * @param series   the key of the series
+	 * @param from     the start of the range in milliseconds since the epoch, inclusive
+	 * @param to       the end of the range in milliseconds since the epoch, inclusive
+	 * @param consumer receives the points
+	 * @return the number of points passed to the consumer
+	 * @throws IOException if a segment cannot be read
+	 */
+	public long read(final long series, final long from, final long to, final IPointConsumer consumer) throws IOException {
+		long count = 0;
+		if (from > to) {
+			return count;
+		}
+		final List<ChunkDecoder> decoders = select(series, from, to);
+		/* stable, chunks starting at the same time stay in write order */
+		decoders.sort(Comparator.comparingLong(ChunkDecoder::getFirstTimestamp));
+		if (overlap(decoders)) {
+			return merge(decoders, from, to, consumer);
+		}
+		for (final ChunkDecoder decoder : decoders) {
+			count += decode(decoder, from, to, consumer);
+		}
+		return count;
+	}
+
+	private static boolean overlap(final List<ChunkDecoder> decoders) {
+		long last = Long.MIN_VALUE;
+		for (final ChunkDecoder decoder : decoders) {
+			if (decoder.getFirstTimestamp() < last) {
+				return true;
+			}
+			last = Math.max(last, decoder.getLastTimestamp());
+		}
+		return false;
+	}
+
+	/**
+	 * Passes the points of overlapping chunks in time order by a k-way merge over a heap of the chunks ordered by their
+	 * current point, chunks with the same timestamp by their position in the list.
+	 */
+	private static long merge(final List<ChunkDecoder> decoders, final long from, final long to,
+			final IPointConsumer consumer) {
+		final int[] heap = new int[decoders.size()];
+		int size = 0;
+		for (int i = 0; i < decoders.size(); i++) {
+			if (decoders.get(i).next()) {
+				heap[size++] = i;
+				siftUp(decoders, heap, size - 1);
+			}
+		}
+		long count = 0;
+		while (size > 0) {
+			final ChunkDecoder decoder = decoders.get(heap[0]);
+			final long timestamp = decoder.timestamp();
+			if (timestamp >= from && timestamp <= to) {
+				consumer.accept(timestamp, decoder.value());
+				count++;
+			}
+			if ( ! decoder.next()) {
+				heap[0] = heap[--size];
+			}
+			siftDown(decoders, heap, size);
+		}
+		return count;
+	}
+
+	private static boolean before(final List<ChunkDecoder> decoders, final int a, final int b) {
+		final long timestampA = decoders.get(a).timestamp();
+		final long timestampB = decoders.get(b).timestamp();
+		return timestampA < timestampB || timestampA == timestampB && a < b;
+	}
+
+	private static void siftUp(final List<ChunkDecoder> decoders, final int[] heap, final int index) {
+		int child = index;
+		while (child > 0) {
+			final int parent = (child - 1) / 2;
+			if ( ! before(decoders, heap[child], heap[parent])) {
+				return;
+			}
+			final int swap = heap[child];
+			heap[child] = heap[parent];
+			heap[parent] = swap;
+			child = parent;
+		}
+	}
+
+	private static void siftDown(final List<ChunkDecoder> decoders, final int[] heap, final int size) {
+		int parent = 0;
+		while (true) {
+			final int left = 2 * parent + 1;
+			if (left >= size) {
+				return;
+			}
+			final int right = left + 1;
+			final int child = right < size && before(decoders, heap[right], heap[left]) ? right : left;
+			if ( ! before(decoders, heap[child], heap[parent])) {
+				return;
+			}
+			final int swap = heap[child];
+			heap[child] = heap[parent];
+			heap[parent] = swap;
+			parent = child;
+		}
+	}
+
+	private synchronized List<ChunkDecoder> select(final long series, final long from, final long to) throws IOException {
+		final List<ChunkDecoder> decoders = new ArrayList<>();
+		/* a partition holds the points from its start until the start of the next one */
+		final Long first = segments.floorKey(from);
+		for (final Segment segment : segments.subMap(first != null ? first : from, true, to, true).values()) {
+			segment.select(series, from, to, decoders);
+		}
+		final OpenChunk chunk = findChunk(series);
+		if (chunk != null && chunk.encoder.getCount() > 0 && chunk.encoder.getFirstTimestamp() <= to
+				&& chunk.encoder.getLastTimestamp() >= from) {
+			final ByteBuffer buffer = ByteBuffer.allocate(chunk.encoder.byteLength());
+			chunk.encoder.copyTo(buffer);
+			decoders.add(new ChunkDecoder(buffer, 0, buffer.capacity(), chunk.encoder.getCount(),
+					chunk.encoder.getFirstTimestamp(), chunk.encoder.getLastTimestamp()));
+		}
+		return decoders;
+	}
+
+	private static long decode(final ChunkDecoder decoder, final long from, final long to, final IPointConsumer consumer) {
+		long count = 0;
+		while (decoder.next()) {
+			final long timestamp = decoder.timestamp();
+			if (timestamp >= from && timestamp <= to) {
+				consumer.accept(timestamp, decoder.value());
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private OpenChunk findChunk(final long series) {
+		final int mask = chunks.length - 1;
+		int entry = hash(series) & mask;
+		OpenChunk chunk;
+		while ((chunk = chunks[entry]) != null) {
+			if (chunk.series == series) {
+				return chunk;
+			}
+			entry = (entry + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * Writes all open chunks and forces the segments to disk.
+	 */
+	public synchronized void flush() {
+		sealOlderThan(Long.MAX_VALUE);
+		force();
+	}
+
+	private void sealOlderThan(final long openedBefore) {
+		for (final OpenChunk chunk : chunks) {
+			if (chunk != null && chunk.encoder.getCount() > 0 && chunk.openedAt < openedBefore) {
+				seal(chunk);
+			}
+		}
+	}
+
+	private void force() {
+		for (final Segment segment : segments.values()) {
+			try {
+				segment.force();
+			} catch (final IOException e) {
+				writeErrors++;
+				LOG.error(() -> "Could not force " + segment.getDataPath(), e);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the segments whose whole partition is older than the retention.
+	 *
+	 * @param now the current time in milliseconds since the epoch
+	 */
+	public synchronized void enforceRetention(final long now) {
+		final long cutoff = now - retentionMillis;
+		for (final Iterator<Segment> iterator = segments.values().iterator(); iterator.hasNext();) {
+			final Segment segment = iterator.next();
+			if (segment.getPartition() + partitionMillis > cutoff) {
+				break;
+			}
+			iterator.remove();
+			try {
+				segment.delete();
+				deletedSegments++;
+				LOG.info(() -> "Deleted expired segment " + segment.getDataPath());
+			} catch (final IOException e) {
+				LOG.error(() -> "Could not delete expired segment " + segment.getDataPath(), e);
+			}
+		}
+	}
+
+	private void requestMaintenance() {
+		try {
+			MAINTENANCE_EXECUTOR.execute(this::maintain);
+		} catch (final RejectedExecutionException e) {
+			LOG.debug(() -> "Maintenance of " + directory + " still pending");
+		}
+	}
+
+	private synchronized void maintain() {
+		if (closed) {
+			return;
+		}
+		final long now = System.currentTimeMillis();
+		sealOlderThan(now - chunkAgeMillis);
+		force();
+		enforceRetention(now);
+	}
+
+	private synchronized void close() {
+		flush();
+		for (final Segment segment : segments.values()) {
+			segment.close();
+		}
+		closed = true;
+		LOG.info(() -> "Closed store " + directory);
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Loads the indexes of the existing segments, repairing them if the process died while writing.
+	 */
+	private void recover() throws IOException {
+		try (final DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + Segment.DATA_SUFFIX)) {
+			for (final Path path : files) {
+				final String name = path.getFileName().toString();
+				final long partition;
+				try {
+					partition = Long.parseLong(name.substring(0, name.length() - Segment.DATA_SUFFIX.length()));
+				} catch (final NumberFormatException e) {
+					LOG.warn(() -> "Ignoring unknown file " + path);
+					continue;
+				}
+				final Segment segment = new Segment(directory, partition);
+				if (segment.recover()) {
+					truncated++;
+				}
+				sealedPoints += segment.getPoints();
+				sealedChunks += segment.getChunks();
+				bytes += segment.getSize();
+				segments.put(partition, segment);
+			}
+		}
+		LOG.info(() -> "Opened store " + directory + " with " + segments.size() + " segments, " + sealedChunks + " chunks");
+	}
+
+	/**
+	 * Adds the counters of this store to the given statistics.
+	 *
+	 * @param prefix     the prefix of the counter names
+	 * @param statistics counter names mapped to their values
+	 */
+	public synchronized void collectStatistics(final String prefix, final Map<String, Number> statistics) {
+		statistics.put(prefix + ".points", points);
+		statistics.put(prefix + ".chunks", sealedChunks);
+		statistics.put(prefix + ".bytes", bytes);
+		statistics.put(prefix + ".bytesPerPoint", sealedPoints == 0 ? 0 : Math.round(bytes * 100.0 / sealedPoints) / 100.0);
+		statistics.put(prefix + ".segments", segments.size());
+		statistics.put(prefix + ".segments.deleted", deletedSegments);
+		statistics.put(prefix + ".truncated", truncated);
+		statistics.put(prefix + ".writeErrors", writeErrors);
+	}
+
+	@Override
+	public String toString() {
+		return "TimeSeriesStore " + directory;
+	}
+
+	private static final class OpenChunk {
+
+		private final long series;
+		private final ChunkEncoder encoder = new ChunkEncoder();
+		private long partition;
+		/* wall clock time the first point was appended */
+		private long openedAt;
+
+		private OpenChunk(final long series) {
+			this.series = series;
+		}
+	}
+}
@@ -0,0 +1,284 @@
+package de.mechrain.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.mechrain.log.Logging;
+
+/**
+ * Hashed timing wheel driving all measurement ticks, heartbeats and timeouts of the server on a single thread.
+ * <p>
+ * Scheduling and cancelling are O(1): new and cancelled timeouts are handed to the worker through lock-free queues and
+ * linked into / unlinked from the doubly linked bucket of their deadline on the next tick. Tasks run on the worker
+ * thread and must therefore be short, e.g. queueing a request.
+ */
+public class HashedWheelTimer {
+
+	private static final Logger LOG = LogManager.getLogger(Logging.SERVER);
+
+	private static final long DEFAULT_TICK_MS = 10;
+	private static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final Queue<Timeout> pendingAdds = new ConcurrentLinkedQueue<>();
+	private final Queue<Timeout> pendingCancels = new ConcurrentLinkedQueue<>();
+	private final long startNanos;
+	private final Thread worker;
+	private volatile boolean running = true;
+	private long tick;
+
+	private static class Holder {
+		private static final HashedWheelTimer SHARED = new HashedWheelTimer("Scheduler", DEFAULT_TICK_MS, DEFAULT_WHEEL_SIZE);
+	}
+
+	/**
+	 * Gets the server-wide timer instance.
+	 *
+	 * @return the shared timer
+	 */
+	public static HashedWheelTimer shared() {
+		return Holder.SHARED;
+	}
+
+	/**
+	 * Creates and starts a new timer.
+	 *
+	 * @param name       the name of the worker thread
+	 * @param tickMillis the duration of one tick, i.e. the scheduling resolution
+	 * @param wheelSize  the number of buckets, rounded up to the next power of two
+	 */
+	public HashedWheelTimer(final String name, final long tickMillis, final int wheelSize) {
+		if (tickMillis <= 0) {
+			throw new IllegalArgumentException("Tick duration must be positive");
+		}
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		final int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		this.mask = size - 1;
+		this.startNanos = System.nanoTime();
+		this.worker = new Thread(this::run, name);
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Schedules a one-shot task.
+	 *
+	 * @param task  the task to run
+	 * @param delay the delay before the task runs
+	 * @param unit  the unit of the delay
+	 * @return the timeout to cancel the task
+	 */
+	public Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+		return add(new Timeout(this, task, relativeDeadline(delay, unit), 0));
+	}
+
+	/**
+	 * Schedules a periodic task, subsequent runs are scheduled relative to the initial deadline (fixed rate).
+	 *
+	 * @param task         the task to run
+	 * @param initialDelay the delay before the first run
+	 * @param period       the period between runs
+	 * @param unit         the unit of the delay and period
+	 * @return the timeout to cancel the task
+	 */
+	public Timeout scheduleAtFixedRate(final Runnable task, final long initialDelay, final long period, final TimeUnit unit) {
+		if (period <= 0) {
+			throw new IllegalArgumentException("Period must be positive");
+		}
+		return add(new Timeout(this, task, relativeDeadline(initialDelay, unit), unit.toNanos(period)));
+	}
+
+	/**
+	 * Stops the worker thread, pending timeouts are discarded.
+	 */
+	public void stop() {
+		running = false;
+		worker.interrupt();
+	}
+
+	private Timeout add(final Timeout timeout) {
+		pendingAdds.add(timeout);
+		return timeout;
+	}
+
+	private long relativeDeadline(final long delay, final TimeUnit unit) {
+		return System.nanoTime() - startNanos + unit.toNanos(Math.max(delay, 0));
+	}
+
+	private void run() {
+		while (running) {
+			final long deadline = tickNanos * (tick + 1);
+			final long sleepNanos = deadline - (System.nanoTime() - startNanos);
+			if (sleepNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepNanos);
+				} catch (final InterruptedException e) {
+					if ( ! running) {
+						break;
+					}
+					continue;
+				}
+			}
+			processCancels();
+			transferAdds();
+			wheel[(int) (tick & mask)].expire();
+			tick++;
+		}
+		LOG.info(() -> worker.getName() + " stopped");
+	}
+
+	private void processCancels() {
+		Timeout timeout;
+		while ((timeout = pendingCancels.poll()) != null) {
+			if (timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+			}
+		}
+	}
+
+	private void transferAdds() {
+		Timeout timeout;
+		while ((timeout = pendingAdds.poll()) != null) {
+			if (timeout.state.get() == Timeout.CANCELLED) {
+				continue;
+			}
+			final long calculated = timeout.deadline / tickNanos;
+			timeout.remainingRounds = (calculated - tick) / wheel.length;
+			/* deadlines already passed are run with the current tick */
+			final long ticks = Math.max(calculated, tick);
+			wheel[(int) (ticks & mask)].add(timeout);
+		}
+	}
+
+	/**
+	 * Handle of a scheduled task.
+	 */
+	public static final class Timeout {
+
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final HashedWheelTimer timer;
+		private final Runnable task;
+		private final long periodNanos;
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+		private long deadline;
+		private long remainingRounds;
+
+		/* bucket linkage, only accessed by the worker thread */
+		private Bucket bucket;
+		private Timeout next;
+		private Timeout prev;
+
+		private Timeout(final HashedWheelTimer timer, final Runnable task, final long deadline, final long periodNanos) {
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+			this.periodNanos = periodNanos;
+		}
+
+		/**
+		 * Cancels the task, a periodic task does not run again.
+		 *
+		 * @return true if the task was pending and is now cancelled
+		 */
+		public boolean cancel() {
+			if ( ! state.compareAndSet(PENDING, CANCELLED)) {
+				return false;
+			}
+			timer.pendingCancels.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		private void expire() {
+			if (periodNanos == 0 && ! state.compareAndSet(PENDING, EXPIRED)) {
+				return;
+			}
+			try {
+				task.run();
+			} catch (final RuntimeException e) {
+				LOG.error(() -> "Error running scheduled task " + task, e);
+			}
+			if (periodNanos > 0 && state.get() == PENDING) {
+				deadline += periodNanos;
+				timer.pendingAdds.add(this);
+			}
+		}
+	}
+
+	/**
+	 * Doubly linked list of the timeouts hashed to one slot of the wheel.
+	 */
+	private static final class Bucket {
+
+		private Timeout head;
+		private Timeout tail;
+
+		private void add(final Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		private Timeout remove(final Timeout timeout) {
+			final Timeout next = timeout.next;
+			if (timeout.prev != null) {
+				timeout.prev.next = next;
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			}
+			if (timeout == head) {
+				if (timeout == tail) {
+					tail = null;
+					head = null;
+				} else {
+					head = next;
+				}
+			} else if (timeout == tail) {
+				tail = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.bucket = null;
+			return next;
+		}
+
+		private void expire() {
+			Timeout timeout = head;
+			while (timeout != null) {
+				if (timeout.remainingRounds <= 0) {
+					final Timeout expired = timeout;
+					timeout = remove(expired);
+					if ( ! expired.isCancelled()) {
+						expired.expire();
+					}
+				} else {
+					timeout.remainingRounds--;
+					timeout = timeout.next;
+				}
+			}
+		}
+	}
+}
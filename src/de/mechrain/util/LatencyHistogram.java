@@ -0,0 +1,88 @@
+package de.mechrain.util;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with power of two buckets in microseconds. Bucket i counts latencies in
+ * [2^i, 2^(i+1)) µs, so percentiles are accurate to a factor of two, which is enough to spot slow devices.
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 32;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sumMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	/**
+	 * Records one latency.
+	 *
+	 * @param nanos the latency in nanoseconds
+	 */
+	public void record(final long nanos) {
+		final long micros = Math.max(TimeUnit.NANOSECONDS.toMicros(nanos), 1);
+		final int bucket = Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		sumMicros.addAndGet(micros);
+		maxMicros.accumulateAndGet(micros, Math::max);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Gets the mean latency.
+	 *
+	 * @return the mean in milliseconds, 0 if nothing was recorded
+	 */
+	public double getMeanMillis() {
+		final long n = count.get();
+		return n > 0 ? sumMicros.get() / 1000.0 / n : 0;
+	}
+
+	public double getMaxMillis() {
+		return maxMicros.get() / 1000.0;
+	}
+
+	/**
+	 * Gets the upper bound of the bucket containing the given percentile.
+	 *
+	 * @param percentile the percentile in (0, 100]
+	 * @return the latency in milliseconds, 0 if nothing was recorded
+	 */
+	public double getPercentileMillis(final double percentile) {
+		final long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		final long rank = (long) Math.ceil(n * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(1L << (i + 1), Math.max(maxMicros.get(), 1)) / 1000.0;
+			}
+		}
+		return getMaxMillis();
+	}
+
+	/**
+	 * Adds count, mean, p50, p99 and max of this histogram to the given statistics.
+	 *
+	 * @param prefix     the prefix of the counter names
+	 * @param statistics counter names mapped to their values
+	 */
+	public void collectStatistics(final String prefix, final Map<String, Number> statistics) {
+		statistics.put(prefix + ".count", getCount());
+		statistics.put(prefix + ".meanMs", getMeanMillis());
+		statistics.put(prefix + ".p50Ms", getPercentileMillis(50));
+		statistics.put(prefix + ".p99Ms", getPercentileMillis(99));
+		statistics.put(prefix + ".maxMs", getMaxMillis());
+	}
+}
@@ -9,6 +9,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.function.Supplier;
 
 import org.apache.logging.log4j.LogManager;
@@ -21,12 +22,18 @@ import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonWriter;
 
 import de.mechrain.device.DeviceRegistry;
+import de.mechrain.device.sink.Aggregation;
+import de.mechrain.device.sink.Deadband;
 import de.mechrain.device.sink.DummySink;
 import de.mechrain.device.sink.IDataSink;
 import de.mechrain.device.sink.InfluxSink;
+import de.mechrain.device.sink.LocalSink;
+import de.mechrain.device.sink.SharedSink;
+import de.mechrain.device.sink.SinkDispatcher;
 import de.mechrain.device.sink.VictoriaMetricsSink;
 import de.mechrain.log.Logging;
 import de.mechrain.protocol.MRP;
+import de.mechrain.protocol.MeasurementRecord.Aggregate;
 
 /**
  * Manages server configuration by saving and restoring configuration objects to and from JSON files.
@@ -119,7 +126,7 @@ public class ServerConfig {
 				out.value("influx");
 				out.name("id");
 				out.value(value.getId());
-				final List<MRP> filter = sink.getFilter();
+				final Set<MRP> filter = sink.getFilter();
 				if (filter != null) {
 					out.name("filter");
 					out.beginArray();
@@ -140,11 +147,20 @@ public class ServerConfig {
 				out.value(sink.getDbName());
 				out.name("measurementName");
 				out.value(sink.getMeasurementName());
+				out.name("batchSize");
+				out.value(sink.getBatchSize());
+				out.name("flushIntervalMs");
+				out.value(sink.getFlushIntervalMs());
+				out.name("queueCapacity");
+				out.value(sink.getQueueCapacity());
+				writeBackpressure(out, sink);
+				writeAggregation(out, sink);
+				writeDeadband(out, sink);
 			} else if (value instanceof VictoriaMetricsSink sink) {
 				out.value("victoriametrics");
 				out.name("id");
 				out.value(value.getId());
-				final List<MRP> filter = sink.getFilter();
+				final Set<MRP> filter = sink.getFilter();
 				if (filter != null) {
 					out.name("filter");
 					out.beginArray();
@@ -159,6 +175,40 @@ public class ServerConfig {
 				out.value(sink.getPort());
 				out.name("measurementName");
 				out.value(sink.getMeasurementName());
+				writeBackpressure(out, sink);
+				writeAggregation(out, sink);
+				writeDeadband(out, sink);
+			} else if (value instanceof LocalSink sink) {
+				out.value("local");
+				out.name("id");
+				out.value(value.getId());
+				final Set<MRP> filter = sink.getFilter();
+				if (filter != null) {
+					out.name("filter");
+					out.beginArray();
+					for (final MRP mrp : filter) {
+						out.value(mrp.name());
+					}
+					out.endArray();
+				}
+				out.name("directory");
+				out.value(sink.getDirectory());
+				out.name("partitionHours");
+				out.value(sink.getPartitionHours());
+				out.name("retentionDays");
+				out.value(sink.getRetentionDays());
+				writeBackpressure(out, sink);
+				writeAggregation(out, sink);
+				writeDeadband(out, sink);
+			} else if (value instanceof SharedSink sink) {
+				out.value("shared");
+				out.name("id");
+				out.value(value.getId());
+				out.name("sharedId");
+				out.value(sink.getSharedId());
+				writeBackpressure(out, sink);
+				writeAggregation(out, sink);
+				writeDeadband(out, sink);
 			} else {
 				throw new IllegalArgumentException("Unsupported sink " + value.getClass().getSimpleName());
 			}
@@ -178,6 +228,8 @@ public class ServerConfig {
 					return new DummySink();
 				} else if (text.equals("influx")) {
 					final InfluxSink.Builder influxSinkBuilder = new InfluxSink.Builder();
+					Aggregation aggregation = null;
+					Deadband deadband = null;
 					while (in.hasNext()) {
 						nextName = in.nextName();
 						switch (nextName) {
@@ -219,15 +271,38 @@ public class ServerConfig {
 							final String measurementName = in.nextString();
 							influxSinkBuilder.measurementName(measurementName);
 							break;
+						case "batchSize":
+							influxSinkBuilder.batchSize(in.nextInt());
+							break;
+						case "flushIntervalMs":
+							influxSinkBuilder.flushIntervalMs(in.nextInt());
+							break;
+						case "queueCapacity":
+							influxSinkBuilder.queueCapacity(in.nextInt());
+							break;
+						case "backpressure":
+							influxSinkBuilder.backpressure(SinkDispatcher.Backpressure.valueOf(in.nextString()));
+							break;
+						case "aggregation":
+							aggregation = readAggregation(in);
+							break;
+						case "deadband":
+							deadband = readDeadband(in);
+							break;
 						default:
 							final String name = nextName;
 							LOG.error(() -> "Unknown property name " + name);
 							break;
 						}
 					}
-					return influxSinkBuilder.build();
+					final InfluxSink influxSink = influxSinkBuilder.build();
+					influxSink.setAggregation(aggregation);
+					influxSink.setDeadband(deadband);
+					return influxSink;
 				} else if (text.equals("victoriametrics")) {
 					final VictoriaMetricsSink.Builder vmSinkBuilder = new VictoriaMetricsSink.Builder();
+					Aggregation aggregation = null;
+					Deadband deadband = null;
 					while (in.hasNext()) {
 						nextName = in.nextName();
 						switch (nextName) {
@@ -257,13 +332,112 @@ public class ServerConfig {
 							final String measurementName = in.nextString();
 							vmSinkBuilder.measurementName(measurementName);
 							break;
+						case "backpressure":
+							vmSinkBuilder.backpressure(SinkDispatcher.Backpressure.valueOf(in.nextString()));
+							break;
+						case "aggregation":
+							aggregation = readAggregation(in);
+							break;
+						case "deadband":
+							deadband = readDeadband(in);
+							break;
 						default:
 							final String name = nextName;
 							LOG.error(() -> "Unknown property name " + name);
 							break;
 						}
 					}
-					return vmSinkBuilder.build();
+					final VictoriaMetricsSink vmSink = vmSinkBuilder.build();
+					vmSink.setAggregation(aggregation);
+					vmSink.setDeadband(deadband);
+					return vmSink;
+				} else if (text.equals("local")) {
+					final LocalSink.Builder localSinkBuilder = new LocalSink.Builder();
+					Aggregation aggregation = null;
+					Deadband deadband = null;
+					while (in.hasNext()) {
+						nextName = in.nextName();
+						switch (nextName) {
+						case "id":
+							localSinkBuilder.id(in.nextInt());
+							break;
+						case "filter":
+							final List<MRP> filters = new ArrayList<>();
+							in.beginArray();
+							while (in.hasNext()) {
+								final MRP mrp = MRP.valueOf(in.nextString());
+								filters.add(mrp);
+							}
+							in.endArray();
+							localSinkBuilder.filter(filters);
+							break;
+						case "directory":
+							localSinkBuilder.directory(in.nextString());
+							break;
+						case "partitionHours":
+							localSinkBuilder.partitionHours(in.nextInt());
+							break;
+						case "retentionDays":
+							localSinkBuilder.retentionDays(in.nextInt());
+							break;
+						case "backpressure":
+							localSinkBuilder.backpressure(SinkDispatcher.Backpressure.valueOf(in.nextString()));
+							break;
+						case "aggregation":
+							aggregation = readAggregation(in);
+							break;
+						case "deadband":
+							deadband = readDeadband(in);
+							break;
+						default:
+							final String name = nextName;
+							LOG.error(() -> "Unknown property name " + name);
+							break;
+						}
+					}
+					final LocalSink localSink = localSinkBuilder.build();
+					localSink.setAggregation(aggregation);
+					localSink.setDeadband(deadband);
+					return localSink;
+				} else if (text.equals("shared")) {
+					int id = 0;
+					int sharedId = -1;
+					SinkDispatcher.Backpressure backpressure = null;
+					Aggregation aggregation = null;
+					Deadband deadband = null;
+					while (in.hasNext()) {
+						nextName = in.nextName();
+						switch (nextName) {
+						case "id":
+							id = in.nextInt();
+							break;
+						case "sharedId":
+							sharedId = in.nextInt();
+							break;
+						case "backpressure":
+							backpressure = SinkDispatcher.Backpressure.valueOf(in.nextString());
+							break;
+						case "aggregation":
+							aggregation = readAggregation(in);
+							break;
+						case "deadband":
+							deadband = readDeadband(in);
+							break;
+						default:
+							final String name = nextName;
+							LOG.error(() -> "Unknown property name " + name);
+							break;
+						}
+					}
+					if (sharedId < 0) {
+						throw new IllegalArgumentException("Shared sink without sharedId");
+					}
+					final SharedSink sharedSink = new SharedSink(sharedId);
+					sharedSink.setId(id);
+					sharedSink.setBackpressure(backpressure);
+					sharedSink.setAggregation(aggregation);
+					sharedSink.setDeadband(deadband);
+					return sharedSink;
 				} else {
 					throw new IllegalArgumentException("Unsupported sink " + text);
 				}
@@ -271,5 +445,98 @@ public class ServerConfig {
 				in.endObject();
 			}
 		}
+
+		private static void writeAggregation(final JsonWriter out, final IDataSink sink) throws IOException {
+			final Aggregation aggregation = sink.getAggregation();
+			if (aggregation != null) {
+				out.name("aggregation");
+				out.beginObject();
+				out.name("windowMs");
+				out.value(aggregation.getWindowMillis());
+				out.name("aggregates");
+				out.beginArray();
+				for (final Aggregate aggregate : aggregation.getAggregates()) {
+					out.value(aggregate.name());
+				}
+				out.endArray();
+				out.endObject();
+			}
+		}
+
+		private static void writeDeadband(final JsonWriter out, final IDataSink sink) throws IOException {
+			final Deadband deadband = sink.getDeadband();
+			if (deadband != null) {
+				out.name("deadband");
+				out.beginObject();
+				out.name("absolute");
+				out.value(deadband.getAbsolute());
+				out.name("relative");
+				out.value(deadband.getRelative());
+				out.name("maxSilenceMs");
+				out.value(deadband.getMaxSilenceMillis());
+				out.endObject();
+			}
+		}
+
+		private static Deadband readDeadband(final JsonReader in) throws IOException {
+			double absolute = 0;
+			double relative = 0;
+			long maxSilenceMillis = 0;
+			in.beginObject();
+			while (in.hasNext()) {
+				final String name = in.nextName();
+				switch (name) {
+				case "absolute":
+					absolute = in.nextDouble();
+					break;
+				case "relative":
+					relative = in.nextDouble();
+					break;
+				case "maxSilenceMs":
+					maxSilenceMillis = in.nextLong();
+					break;
+				default:
+					LOG.error(() -> "Unknown property name " + name);
+					in.skipValue();
+					break;
+				}
+			}
+			in.endObject();
+			return new Deadband(absolute, relative, maxSilenceMillis);
+		}
+
+		private static Aggregation readAggregation(final JsonReader in) throws IOException {
+			long windowMillis = 0;
+			final List<Aggregate> aggregates = new ArrayList<>();
+			in.beginObject();
+			while (in.hasNext()) {
+				final String name = in.nextName();
+				switch (name) {
+				case "windowMs":
+					windowMillis = in.nextLong();
+					break;
+				case "aggregates":
+					in.beginArray();
+					while (in.hasNext()) {
+						aggregates.add(Aggregate.valueOf(in.nextString()));
+					}
+					in.endArray();
+					break;
+				default:
+					LOG.error(() -> "Unknown property name " + name);
+					in.skipValue();
+					break;
+				}
+			}
+			in.endObject();
+			return new Aggregation(windowMillis, aggregates);
+		}
+
+		private static void writeBackpressure(final JsonWriter out, final IDataSink sink) throws IOException {
+			if (sink.getBackpressure() != null) {
+				out.name("backpressure");
+				out.value(sink.getBackpressure().name());
+			}
+		}
 	}
 }
@@ -0,0 +1,119 @@
+package de.mechrain.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import de.mechrain.log.Logging;
+
+/**
+ * Creates the threads running per-connection loops (device read/request loops, CLI sessions) and the bounded worker
+ * pools of the server.
+ * With the {@value #PROPERTY} system property set to <code>virtual</code> and a Java 21+ runtime they run as virtual threads,
+ * otherwise as platform threads. Virtual threads are created reflectively so the sources still compile for Java 17.
+ */
+public final class ThreadSupport {
+
+	private static final Logger LOG = LogManager.getLogger(Logging.SERVER);
+
+	public static final String PROPERTY = "mechrain.threads";
+
+	private static final Method OF_VIRTUAL;
+	private static final Method BUILDER_NAME;
+	private static final Method BUILDER_UNSTARTED;
+
+	static {
+		Method ofVirtual = null;
+		Method builderName = null;
+		Method builderUnstarted = null;
+		try {
+			final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			builderName = builderClass.getMethod("name", String.class);
+			builderUnstarted = builderClass.getMethod("unstarted", Runnable.class);
+		} catch (final ClassNotFoundException | NoSuchMethodException e) {
+			/* runtime older than Java 21 */
+		}
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = builderName;
+		BUILDER_UNSTARTED = builderUnstarted;
+	}
+
+	private static final boolean VIRTUAL = initVirtual();
+
+	private ThreadSupport() {
+		throw new IllegalAccessError("Do not instantiate!");
+	}
+
+	private static boolean initVirtual() {
+		final boolean requested = "virtual".equalsIgnoreCase(System.getProperty(PROPERTY, "platform"));
+		if (requested && OF_VIRTUAL == null) {
+			LOG.warn(() -> "Virtual threads require Java 21+, running on " + Runtime.version() + " with platform threads");
+			return false;
+		}
+		if (requested) {
+			LOG.info("Using virtual threads for connection loops");
+		}
+		return requested;
+	}
+
+	/**
+	 * Checks if connection loops run as virtual threads.
+	 *
+	 * @return true if virtual threads are used
+	 */
+	public static boolean isVirtual() {
+		return VIRTUAL;
+	}
+
+	/**
+	 * Creates and starts a thread for a connection loop.
+	 *
+	 * @param name     the name of the thread
+	 * @param runnable the loop to run
+	 * @return the started thread
+	 */
+	public static Thread start(final String name, final Runnable runnable) {
+		final Thread thread;
+		if (VIRTUAL) {
+			try {
+				final Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+				thread = (Thread) BUILDER_UNSTARTED.invoke(builder, runnable);
+			} catch (final IllegalAccessException | InvocationTargetException e) {
+				throw new IllegalStateException("Could not create virtual thread " + name, e);
+			}
+		} else {
+			thread = new Thread(runnable, name);
+		}
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Creates a pool of daemon platform threads with a bounded queue. Tasks submitted while all threads are busy and the
+	 * queue is full are rejected with a {@link java.util.concurrent.RejectedExecutionException}.
+	 *
+	 * @param name          the name prefix of the pool threads
+	 * @param threads       the number of threads
+	 * @param queueCapacity the maximum number of waiting tasks
+	 * @return the executor
+	 */
+	public static ThreadPoolExecutor newBoundedExecutor(final String name, final int threads, final int queueCapacity) {
+		final AtomicInteger counter = new AtomicInteger();
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), r -> {
+					final Thread thread = new Thread(r, name + "-" + counter.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				});
+		/* idle pools do not keep threads around */
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+}